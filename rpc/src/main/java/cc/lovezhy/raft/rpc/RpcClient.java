@@ -48,6 +48,8 @@ public class RpcClient<T> implements ConsumerRpcService, RpcService {
     //for close
     private Future connectFuture;
 
+    private volatile Runnable writableListener;
+
     private RpcClient(Class<T> clazz, EndPoint endPoint, RpcClientOptions rpcClientOptions) {
         Preconditions.checkNotNull(clazz);
         Preconditions.checkNotNull(endPoint);
@@ -80,6 +82,29 @@ public class RpcClient<T> implements ConsumerRpcService, RpcService {
         return false;
     }
 
+    /**
+     * 写缓冲积压太多的时候不可写，调用方应该暂停发送
+     */
+    public boolean isWritable() {
+        Channel channel = nettyClient.getChannel();
+        return Objects.isNull(channel) || channel.isWritable();
+    }
+
+    /**
+     * 从不可写恢复到可写的时候回调
+     */
+    public void setWritableListener(Runnable writableListener) {
+        this.writableListener = writableListener;
+    }
+
+    @Override
+    public void onWritabilityChanged(Channel channel) {
+        Runnable listener = writableListener;
+        if (channel.isWritable() && Objects.nonNull(listener)) {
+            RpcExecutors.commonExecutor().execute(listener);
+        }
+    }
+
     /**
      * shutdown NettyClient
      */
@@ -6,6 +6,8 @@ public class RpcContext {
 
     private static final ThreadLocal<SettableFuture<Object>> asyncResponse = new ThreadLocal<>();
 
+    private static final ThreadLocal<SettableFuture<Object>> deferredResponse = new ThreadLocal<>();
+
     @SuppressWarnings("unchecked")
     public static <T> SettableFuture<T> getContextFuture() {
         SettableFuture<Object> objectSettableFuture = asyncResponse.get();
@@ -16,4 +18,21 @@ public class RpcContext {
     static void setAsyncResponse(SettableFuture<Object> future) {
         asyncResponse.set(future);
     }
+
+    /**
+     * 服务端的方法不能马上给出结果的时候调用，只能在RPC线程里调用
+     * 方法的返回值会被忽略，返回的future完成之后再把结果写回去，不用阻塞RPC线程
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> SettableFuture<T> deferResponse() {
+        SettableFuture<Object> future = SettableFuture.create();
+        deferredResponse.set(future);
+        return (SettableFuture<T>) future;
+    }
+
+    static SettableFuture<Object> takeDeferredResponse() {
+        SettableFuture<Object> future = deferredResponse.get();
+        deferredResponse.remove();
+        return future;
+    }
 }
@@ -9,13 +9,19 @@ import cc.lovezhy.raft.rpc.server.netty.RpcService;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import io.netty.channel.Channel;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 public class RpcServer {
 
@@ -102,10 +108,36 @@ public class RpcServer {
             }
             rpcStatistics.incrIncomingRequestAsync();
             RpcProvider provider = serviceMap.get(request.getClazz());
-            Object responseObject = provider.invoke(request.getMethod(), request.getArgs());
+            Object responseObject;
+            SettableFuture<Object> deferredResponse;
+            try {
+                responseObject = provider.invoke(request.getMethod(), request.getArgs());
+            } finally {
+                //invoke抛异常的时候也要清掉，不然会留给这个线程上的下一个请求
+                deferredResponse = RpcContext.takeDeferredResponse();
+            }
             if (request.getRpcRequestType().equals(RpcRequestType.ONE_WAY)) {
                 return;
             }
+            if (Objects.isNull(deferredResponse)) {
+                writeResponse(channel, request, responseObject);
+                return;
+            }
+            //结果没有出来之前不占RPC线程，失败的时候不回，调用方自己超时
+            Futures.addCallback(deferredResponse, new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(@Nullable Object result) {
+                    writeResponse(channel, request, result);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    log.error("deferred response fail, clazz={}, method={}, requestId={}", request.getClazz(), request.getMethod(), request.getRequestId(), t);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        private void writeResponse(Channel channel, RpcRequest request, Object responseObject) {
             RpcResponse rpcResponse = new RpcResponse();
             rpcResponse.setRequestId(request.getRequestId());
             rpcResponse.setResponseBody(responseObject);
@@ -20,6 +20,11 @@ public class RpcExecutors {
 
     private static final ScheduledExecutorService SCHEDULE_EXECUTOR = Executors.newScheduledThreadPool(RPC_SCHEDULE_EXECUTE_THREADS);
 
+    /**
+     * 每次请求都会用到，只包装一次
+     */
+    private static final ListeningScheduledExecutorService LISTENING_SCHEDULE_EXECUTOR = MoreExecutors.listeningDecorator(SCHEDULE_EXECUTOR);
+
     public static ExecutorService commonExecutor() {
         return FIXED_EXECUTOR;
     }
@@ -29,7 +34,7 @@ public class RpcExecutors {
     }
 
     public static ListeningScheduledExecutorService listeningScheduledExecutor() {
-        return MoreExecutors.listeningDecorator(SCHEDULE_EXECUTOR);
+        return LISTENING_SCHEDULE_EXECUTOR;
     }
 
 }
@@ -29,4 +29,10 @@ public class RpcInboundHandler extends SimpleChannelInboundHandler<Object> {
             throw new IllegalStateException("unknown channel message, msg=" + msg);
         }
     }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        rpcService.onWritabilityChanged(ctx.channel());
+        super.channelWritabilityChanged(ctx);
+    }
 }
@@ -19,6 +19,12 @@ import java.net.InetSocketAddress;
 public class NettyClient {
 
     private static final Logger log = LoggerFactory.getLogger(NettyClient.class);
+
+    /**
+     * 写缓冲的水位，一个AppendLog请求最大1MB，留出几个请求的余量
+     */
+    private static final WriteBufferWaterMark WRITE_BUFFER_WATER_MARK = new WriteBufferWaterMark(1024 * 1024, 4 * 1024 * 1024);
+
     private EndPoint endPoint;
     private Channel channel;
     private RpcService rpcService;
@@ -36,6 +42,7 @@ public class NettyClient {
         Bootstrap bootstrap = new Bootstrap()
                 .group(worker)
                 .channel(NioSocketChannel.class)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, WRITE_BUFFER_WATER_MARK)
                 .handler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) {
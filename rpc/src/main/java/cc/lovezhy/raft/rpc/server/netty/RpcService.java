@@ -7,4 +7,10 @@ import io.netty.channel.Channel;
 public interface RpcService {
     void onResponse(RpcResponse response);
     void handleRequest(Channel channel, RpcRequest request);
+
+    /**
+     * Channel的写缓冲超过高水位之后不可写，降到低水位之下恢复可写
+     */
+    default void onWritabilityChanged(Channel channel) {
+    }
 }
@@ -2,4 +2,6 @@ package cc.lovezhy.raft.rpc.async;
 
 public interface AsyncExampleService {
     String getStdName();
+
+    String getDeferredStdName();
 }
@@ -1,5 +1,9 @@
 package cc.lovezhy.raft.rpc.async;
 
+import cc.lovezhy.raft.rpc.RpcContext;
+import cc.lovezhy.raft.rpc.common.RpcExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
 public class AsyncExampleServiceImpl implements AsyncExampleService {
     @Override
     public String getStdName() {
@@ -10,4 +14,11 @@ public class AsyncExampleServiceImpl implements AsyncExampleService {
         }
         return "zhuyichen";
     }
+
+    @Override
+    public String getDeferredStdName() {
+        SettableFuture<String> response = RpcContext.deferResponse();
+        RpcExecutors.commonExecutor().execute(() -> response.set("zhuyichen"));
+        return null;
+    }
 }
@@ -0,0 +1,64 @@
+package cc.lovezhy.raft.rpc.async;
+
+import cc.lovezhy.raft.rpc.EndPoint;
+import cc.lovezhy.raft.rpc.RpcClient;
+import cc.lovezhy.raft.rpc.RpcClientOptions;
+import cc.lovezhy.raft.rpc.RpcContext;
+import cc.lovezhy.raft.rpc.RpcServer;
+import cc.lovezhy.raft.rpc.exception.RequestTimeoutException;
+import cc.lovezhy.raft.rpc.protocal.RpcRequestType;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class DeferredResponseTest {
+
+    private RpcServer rpcServer;
+    private AsyncExampleService asyncExampleService;
+
+    @Before
+    public void setUp() throws Exception {
+        EndPoint endPoint = EndPoint.create("127.0.0.1", 5383);
+        rpcServer = new RpcServer();
+        rpcServer.registerService(AsyncExampleServiceImpl.class);
+        rpcServer.start(endPoint);
+
+        RpcClientOptions rpcClientOptions = new RpcClientOptions();
+        rpcClientOptions.defineMethodRequestType("getDeferredStdName", RpcRequestType.ASYNC);
+        RpcClient<AsyncExampleService> rpcClient = RpcClient.create(AsyncExampleService.class, endPoint, rpcClientOptions);
+        SettableFuture<Void> connected = SettableFuture.create();
+        rpcClient.connect(connected);
+        connected.get(1, TimeUnit.SECONDS);
+        asyncExampleService = rpcClient.getInstance();
+    }
+
+    /**
+     * 服务端方法返回null，结果只能从deferResponse的future里来
+     * 第一次调用要初始化序列化，可能超过客户端60ms的超时，多试几次
+     */
+    @Test
+    public void deferredResponseTest() throws Exception {
+        String stdName = null;
+        for (int i = 0; i < 10 && Objects.isNull(stdName); i++) {
+            Assert.assertNull(asyncExampleService.getDeferredStdName());
+            SettableFuture<String> stdNameFuture = RpcContext.getContextFuture();
+            try {
+                stdName = stdNameFuture.get(1, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RequestTimeoutException);
+            }
+        }
+        Assert.assertEquals("zhuyichen", stdName);
+    }
+
+    @After
+    public void closeServer() {
+        rpcServer.close();
+    }
+}
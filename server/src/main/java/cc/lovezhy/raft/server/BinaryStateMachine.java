@@ -0,0 +1,198 @@
+package cc.lovezhy.raft.server;
+
+import cc.lovezhy.raft.server.log.BatchCommand;
+import cc.lovezhy.raft.server.log.BinaryCommand;
+import cc.lovezhy.raft.server.log.DefaultCommand;
+import cc.lovezhy.raft.server.log.DefaultCommandEnum;
+import cc.lovezhy.raft.server.log.LogEntry;
+import cc.lovezhy.raft.server.utils.BytesHashTable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.collect.Maps;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * key和value都以byte[]保存在开放寻址的哈希表里
+ * 读的时候直接返回保存的byte[]，不需要String的转换
+ */
+@ThreadSafe
+public class BinaryStateMachine implements StateMachine {
+
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
+    private final BytesHashTable table = new BytesHashTable();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Override
+    public byte[] getValue(String key) {
+        return getValue(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean supportBinaryCommand() {
+        return true;
+    }
+
+    @Override
+    public byte[] getValue(byte[] key) {
+        lock.readLock().lock();
+        try {
+            byte[] value = table.get(key);
+            return Objects.isNull(value) ? EMPTY_VALUE : value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        lock.readLock().lock();
+        try {
+            return Objects.nonNull(table.get(key.getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean apply(DefaultCommand command) {
+        lock.writeLock().lock();
+        try {
+            return applyInLock(command);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean apply(BatchCommand command) {
+        lock.writeLock().lock();
+        try {
+            return StateMachine.super.apply(command);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean apply(BinaryCommand command) {
+        lock.writeLock().lock();
+        try {
+            return applyInLock(command);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void applyBatch(List<LogEntry> logEntries, long firstIndex) {
+        lock.writeLock().lock();
+        try {
+            for (LogEntry logEntry : logEntries) {
+                if (logEntry.getCommand() instanceof BinaryCommand) {
+                    applyInLock(((BinaryCommand) logEntry.getCommand()));
+                } else if (logEntry.getCommand() instanceof DefaultCommand) {
+                    applyInLock(((DefaultCommand) logEntry.getCommand()));
+                } else if (logEntry.getCommand() instanceof BatchCommand) {
+                    apply(((BatchCommand) logEntry.getCommand()));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean applyInLock(DefaultCommand command) {
+        byte[] key = command.getKey().getBytes(StandardCharsets.UTF_8);
+        byte[] value = Objects.isNull(command.getValue()) ? EMPTY_VALUE : command.getValue().getBytes(StandardCharsets.UTF_8);
+        return applyInLock(command.getCommandEnum(), key, value);
+    }
+
+    private boolean applyInLock(BinaryCommand command) {
+        return applyInLock(command.getCommandEnum(), command.getKey(), command.getValue());
+    }
+
+    private boolean applyInLock(DefaultCommandEnum commandEnum, byte[] key, byte[] value) {
+        switch (commandEnum) {
+            case SET: {
+                table.put(key, value);
+                return true;
+            }
+            case REMOVE: {
+                table.remove(key);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * |size|keyLen|key|valueLen|value|...
+     */
+    @Override
+    public byte[] takeSnapShot() {
+        lock.readLock().lock();
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            Output output = new Output(byteArrayOutputStream);
+            output.writeInt(table.size());
+            table.forEach((key, value) -> {
+                output.writeInt(key.length);
+                output.writeBytes(key);
+                output.writeInt(value.length);
+                output.writeBytes(value);
+            });
+            output.flush();
+            output.close();
+            return byteArrayOutputStream.toByteArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void fromSnapShot(byte[] bytes) {
+        lock.writeLock().lock();
+        try {
+            table.clear();
+            Input input = new Input(bytes);
+            int size = input.readInt();
+            for (int i = 0; i < size; i++) {
+                byte[] key = input.readBytes(input.readInt());
+                byte[] value = input.readBytes(input.readInt());
+                table.put(key, value);
+            }
+            input.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Object> fetchAllEntry() {
+        lock.readLock().lock();
+        try {
+            Map<String, Object> entries = Maps.newHashMapWithExpectedSize(table.size());
+            table.forEach((key, value) -> entries.put(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8)));
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return table.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
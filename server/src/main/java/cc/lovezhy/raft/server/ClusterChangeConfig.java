@@ -7,11 +7,14 @@ import cc.lovezhy.raft.server.node.NodeId;
 
 public interface ClusterChangeConfig {
     ClusterConfCommand newAddNodeCommand();
+    ClusterConfCommand newAddLearnerCommand();
+    ClusterConfCommand newPromoteLearnerCommand(NodeId nodeId);
     ClusterConfCommand newDelNodeCommand(NodeId nodeId);
     EndPoint fetchLeaderEndPoint();
     int one(Command command, int expectedServers, boolean retry);
     void checkClusterConfig();
     void disconnect(NodeId nodeId);
+    void connect(NodeId nodeId);
     NodeId checkOneLeader();
     void end();
 
@@ -32,13 +32,41 @@ public class ClusterConfig {
         return nodeConfigs.size();
     }
 
+    /**
+     * 参与选举和commit的节点数，不包括Learner
+     */
+    public int getVoterCount() {
+        return (int) nodeConfigs.stream().filter(nodeConfig -> !nodeConfig.isLearner()).count();
+    }
+
+    /**
+     * 选举和commit需要的多数派大小
+     */
+    public int getQuorum() {
+        return getVoterCount() / 2 + 1;
+    }
+
     public boolean containsNode(NodeId nodeId) {
+        return getNodeConfig(nodeId) != null;
+    }
+
+    public boolean isVoter(NodeId nodeId) {
+        NodeConfig nodeConfig = getNodeConfig(nodeId);
+        return nodeConfig != null && !nodeConfig.isLearner();
+    }
+
+    public boolean isLearner(NodeId nodeId) {
+        NodeConfig nodeConfig = getNodeConfig(nodeId);
+        return nodeConfig != null && nodeConfig.isLearner();
+    }
+
+    private NodeConfig getNodeConfig(NodeId nodeId) {
         for (NodeConfig nodeConfig : nodeConfigs) {
             if (nodeConfig.getNodeId().equals(nodeId)) {
-                return true;
+                return nodeConfig;
             }
         }
-        return false;
+        return null;
     }
 
     @Override
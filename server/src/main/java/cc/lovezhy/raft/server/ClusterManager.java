@@ -48,11 +48,21 @@ public class ClusterManager implements Mock6824Config, ClusterChangeConfig {
 
     @Override
     public ClusterConfCommand newAddNodeCommand() {
+        return newAddNodeCommand(false);
+    }
+
+    @Override
+    public ClusterConfCommand newAddLearnerCommand() {
+        return newAddNodeCommand(true);
+    }
+
+    private ClusterConfCommand newAddNodeCommand(boolean learner) {
         int nextNodeId = this.servers++;
         int nextRpcPort = nodeRpcPortAllocator.getAndAdd(3);
 //        NodeId leaderNodeId = checkOneLeader();
 //        RaftNode leaderRaftNode = nodeIdRaftNodeMap.get(leaderNodeId);
-        NodeConfig nodeConfig = NodeConfig.create(NodeId.create(nextNodeId), EndPoint.create("localhost", nextRpcPort));
+        NodeConfig nodeConfig = learner ? NodeConfig.createLearner(NodeId.create(nextNodeId), EndPoint.create("localhost", nextRpcPort))
+                : NodeConfig.create(NodeId.create(nextNodeId), EndPoint.create("localhost", nextRpcPort));
         Properties properties = new Properties();
         properties.setProperty("local", "localhost:" + nextRpcPort + ":" + nextNodeId);
 //        properties.setProperty("peer", "localhost:" + leaderRaftNode.getEndPoint().getPort()+":" + leaderNodeId.getPeerId());
@@ -82,6 +92,19 @@ public class ClusterManager implements Mock6824Config, ClusterChangeConfig {
         return ClusterConfCommand.create(clusterConfig.getNodeConfigs());
     }
 
+    @Override
+    public ClusterConfCommand newPromoteLearnerCommand(NodeId nodeId) {
+        RaftNode raftNode = nodeIdRaftNodeMap.get(checkOneLeader());
+        List<NodeConfig> nodeConfigs = raftNode.getClusterConfig().getNodeConfigs().stream()
+                .map(nodeConfig -> nodeConfig.getNodeId().equals(nodeId) ? nodeConfig.toVoter() : nodeConfig)
+                .collect(Collectors.toList());
+        return ClusterConfCommand.create(nodeConfigs);
+    }
+
+    public RaftNode getRaftNode(NodeId nodeId) {
+        return nodeIdRaftNodeMap.get(nodeId);
+    }
+
     @Override
     public EndPoint fetchLeaderEndPoint() {
         NodeId leaderNodeId = checkOneLeader();
@@ -407,11 +430,15 @@ public class ClusterManager implements Mock6824Config, ClusterChangeConfig {
         if (!node.getNodeScheduler().isLeader()) {
             return StartResponse.create(-1, -1, false);
         }
-        node.getOuterService().appendLog(command);
+        JsonObject jsonObject = node.getOuterService().appendLog(command);
         boolean isLeader = node.getNodeScheduler().isLeader();
         int term = Math.toIntExact(node.getCurrentTerm());
-        int lastLogIndex = Math.toIntExact(node.getLogService().getLastLogIndex());
-        return StartResponse.create(lastLogIndex, term, isLeader);
+        //并发start的时候lastLogIndex可能已经是别的命令了，用appendLog返回的位置
+        Integer index = jsonObject.getInteger("index");
+        if (Objects.isNull(index)) {
+            return StartResponse.create(-1, term, false);
+        }
+        return StartResponse.create(index, term, isLeader);
     }
 
     @Override
@@ -1,19 +1,24 @@
 package cc.lovezhy.raft.server;
 
+import cc.lovezhy.raft.server.log.BatchCommand;
 import cc.lovezhy.raft.server.log.DefaultCommand;
+import cc.lovezhy.raft.server.log.LogEntry;
 import cc.lovezhy.raft.server.utils.KryoUtils;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
+import java.util.Set;
 
 @ThreadSafe
-public class DefaultStateMachine implements StateMachine {
+public class DefaultStateMachine implements PartitionedStateMachine {
 
 
     private final Map<String, Object> map = Maps.newConcurrentMap();
@@ -38,6 +43,68 @@ public class DefaultStateMachine implements StateMachine {
         return false;
     }
 
+    @Override
+    public synchronized boolean apply(BatchCommand command) {
+        return PartitionedStateMachine.super.apply(command);
+    }
+
+    /**
+     * 只加一次锁，同一个key只保留最后一次操作，最后一次性更新到map
+     */
+    @Override
+    public synchronized void applyBatch(List<LogEntry> logEntries, long firstIndex) {
+        Map<String, Object> toPut = Maps.newHashMapWithExpectedSize(logEntries.size());
+        Set<String> toRemove = Sets.newHashSet();
+        for (LogEntry logEntry : logEntries) {
+            if (logEntry.getCommand() instanceof BatchCommand) {
+                //guards需要看到前面日志的结果
+                map.keySet().removeAll(toRemove);
+                map.putAll(toPut);
+                toRemove.clear();
+                toPut.clear();
+                apply(((BatchCommand) logEntry.getCommand()));
+                continue;
+            }
+            if (!(logEntry.getCommand() instanceof DefaultCommand)) {
+                continue;
+            }
+            DefaultCommand defaultCommand = (DefaultCommand) logEntry.getCommand();
+            switch (defaultCommand.getCommandEnum()) {
+                case SET: {
+                    toRemove.remove(defaultCommand.getKey());
+                    toPut.put(defaultCommand.getKey(), defaultCommand.getValue());
+                    break;
+                }
+                case REMOVE: {
+                    toPut.remove(defaultCommand.getKey());
+                    toRemove.add(defaultCommand.getKey());
+                    break;
+                }
+            }
+        }
+        map.keySet().removeAll(toRemove);
+        map.putAll(toPut);
+    }
+
+    /**
+     * 不加锁，不同分区的key互不相交，直接依赖ConcurrentMap
+     */
+    @Override
+    public void applyPartition(List<DefaultCommand> commands) {
+        for (DefaultCommand command : commands) {
+            switch (command.getCommandEnum()) {
+                case SET: {
+                    map.put(command.getKey(), command.getValue());
+                    break;
+                }
+                case REMOVE: {
+                    map.remove(command.getKey());
+                    break;
+                }
+            }
+        }
+    }
+
     @Override
     public synchronized byte[] takeSnapShot() {
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
@@ -52,23 +119,25 @@ public class DefaultStateMachine implements StateMachine {
 
     @Override
     @SuppressWarnings("unchecked")
-    public void fromSnapShot(byte[] bytes) {
-        CompletableFuture.runAsync(() -> {
-            synchronized (this) {
-                map.clear();
-                Input input = new Input(bytes);
-                Kryo kryo = KryoUtils.getPool().borrow();
-                Map<String, String> snapShotMap = (Map<String, String>) kryo.readClassAndObject(input);
-                input.close();
-                KryoUtils.getPool().release(kryo);
-                map.putAll(snapShotMap);
-            }
-        });
+    public synchronized void fromSnapShot(byte[] bytes) {
+        //需要同步完成，applier会在installSnapshot之后紧接着apply后面的日志
+        map.clear();
+        Input input = new Input(bytes);
+        Kryo kryo = KryoUtils.getPool().borrow();
+        Map<String, String> snapShotMap = (Map<String, String>) kryo.readClassAndObject(input);
+        input.close();
+        KryoUtils.getPool().release(kryo);
+        map.putAll(snapShotMap);
     }
 
     @Override
     public byte[] getValue(String key) {
-        return map.getOrDefault(key, "").toString().getBytes();
+        return map.getOrDefault(key, "").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return map.containsKey(key);
     }
 
     public Map<String, Object> getMap() {
@@ -0,0 +1,649 @@
+package cc.lovezhy.raft.server;
+
+import cc.lovezhy.raft.server.log.BatchCommand;
+import cc.lovezhy.raft.server.log.BinaryCommand;
+import cc.lovezhy.raft.server.log.DefaultCommand;
+import cc.lovezhy.raft.server.log.DefaultCommandEnum;
+import cc.lovezhy.raft.server.log.LogEntry;
+import cc.lovezhy.raft.server.storage.SortedRunFile;
+import cc.lovezhy.raft.server.utils.FileUtils;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 数据放在磁盘上的状态机，一个简单的LSM
+ * <p>
+ * 写入先进memTable，超过memTableFlushBytes之后写成一个不可变的SortedRunFile
+ * run的数量超过COMPACTION_TRIGGER_RUNS之后，后台线程把最新的几个大小相近的run合并成一个
+ * <p>
+ * takeSnapShot不做全量序列化，只是把当前的run硬链接到checkpoint目录，再加上memTable的内容
+ * 需要发给其他节点的时候由openSnapShot以流的形式读出run文件的内容，按块发送
+ * <p>
+ * Raft日志还是在内存里，重启之后无法重放，所以启动的时候会清空目录
+ * 只清空自己创建的目录：目录里有MARKER_FILE，或者是空目录，其他情况拒绝启动
+ */
+@ThreadSafe
+public class DiskStateMachine implements StateMachine {
+
+    private static final Logger log = LoggerFactory.getLogger(DiskStateMachine.class);
+
+    private static final long DEFAULT_MEMTABLE_FLUSH_BYTES = 4 * 1024 * 1024;
+
+    private static final int COMPACTION_TRIGGER_RUNS = 4;
+
+    /**
+     * 每个entry在memTable中的额外开销，估算用
+     */
+    private static final int MEMTABLE_ENTRY_OVERHEAD = 64;
+
+    private static final String RUN_FILE_SUFFIX = ".run";
+    private static final String CHECKPOINT_PREFIX = "checkpoint-";
+
+    /**
+     * 创建目录的时候写入，有这个文件的目录才能在启动的时候清空
+     */
+    static final String MARKER_FILE = ".raft-disk-state-machine";
+
+    /**
+     * 数据放在stateMachineDir下面的这个子目录里，不直接用配置的目录
+     */
+    public static final String DATA_DIR_PREFIX = "raft-lsm-";
+
+    //本地checkpoint的清单，只能在本节点上恢复
+    private static final byte SNAPSHOT_MANIFEST = 0;
+    //包含了run文件的内容，可以发给其他节点
+    private static final byte SNAPSHOT_FILES = 1;
+
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
+    private final File directory;
+    private final long memTableFlushBytes;
+    private final boolean deleteOnClose;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile ConcurrentSkipListMap<byte[], byte[]> memTable = newMemTable();
+    private volatile long memTableBytes = 0;
+
+    /**
+     * 从新到旧
+     */
+    private volatile List<SortedRunFile> runs = ImmutableList.of();
+
+    private volatile File lastCheckpoint;
+
+    private final AtomicLong fileSequence = new AtomicLong();
+
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+    private final ExecutorService compactionExecutor;
+
+    private volatile boolean closed = false;
+
+    public DiskStateMachine(String directory) {
+        this(new File(directory), DEFAULT_MEMTABLE_FLUSH_BYTES, false);
+    }
+
+    /**
+     * 临时目录中的状态机，close的时候删除整个目录
+     */
+    public static DiskStateMachine createTemporary() {
+        try {
+            return new DiskStateMachine(Files.createTempDirectory("raft-state-machine").toFile(), DEFAULT_MEMTABLE_FLUSH_BYTES, true);
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    @VisibleForTesting
+    DiskStateMachine(File directory, long memTableFlushBytes, boolean deleteOnClose) {
+        Preconditions.checkNotNull(directory);
+        Preconditions.checkState(memTableFlushBytes > 0);
+        prepareDirectory(directory);
+        this.directory = directory;
+        this.memTableFlushBytes = memTableFlushBytes;
+        this.deleteOnClose = deleteOnClose;
+        this.compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "raft-state-machine-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public byte[] getValue(String key) {
+        return getValue(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 清空上一次启动留下的数据，然后写入MARKER_FILE
+     * 不是自己创建的非空目录不能删，可能是配置错了目录
+     */
+    private static void prepareDirectory(File directory) {
+        if (Files.isSymbolicLink(directory.toPath()) || (directory.exists() && !directory.isDirectory())) {
+            throw new IllegalStateException(String.format("category=%s is not a directory", directory));
+        }
+        String[] children = directory.list();
+        if (Objects.nonNull(children) && children.length > 0) {
+            if (!new File(directory, MARKER_FILE).isFile()) {
+                throw new IllegalStateException(String.format("category=%s is not empty and not created by DiskStateMachine", directory));
+            }
+            FileUtils.deleteRecursively(directory);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException(String.format("category=%s can not be create!", directory));
+        }
+        try {
+            Files.createFile(new File(directory, MARKER_FILE).toPath());
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean supportBinaryCommand() {
+        return true;
+    }
+
+    @Override
+    public byte[] getValue(byte[] key) {
+        lock.readLock().lock();
+        try {
+            byte[] value = find(key);
+            return Objects.isNull(value) ? EMPTY_VALUE : value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        lock.readLock().lock();
+        try {
+            return Objects.nonNull(find(key.getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 先查memTable再从新到旧查runs，key不存在或者已经删除的时候返回null
+     */
+    private byte[] find(byte[] key) {
+        byte[] value = memTable.get(key);
+        if (Objects.isNull(value)) {
+            for (SortedRunFile run : runs) {
+                value = run.get(key);
+                if (Objects.nonNull(value)) {
+                    break;
+                }
+            }
+        }
+        return value == SortedRunFile.TOMBSTONE ? null : value;
+    }
+
+    @Override
+    public boolean apply(DefaultCommand command) {
+        lock.writeLock().lock();
+        try {
+            boolean success = applyInLock(command);
+            flushIfNecessary();
+            return success;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean apply(BatchCommand command) {
+        lock.writeLock().lock();
+        try {
+            boolean success = applyInLock(command);
+            flushIfNecessary();
+            return success;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void applyBatch(List<LogEntry> logEntries, long firstIndex) {
+        lock.writeLock().lock();
+        try {
+            for (LogEntry logEntry : logEntries) {
+                if (logEntry.getCommand() instanceof DefaultCommand) {
+                    applyInLock(((DefaultCommand) logEntry.getCommand()));
+                } else if (logEntry.getCommand() instanceof BinaryCommand) {
+                    BinaryCommand binaryCommand = (BinaryCommand) logEntry.getCommand();
+                    applyInLock(binaryCommand.getCommandEnum(), binaryCommand.getKey(), binaryCommand.getValue());
+                } else if (logEntry.getCommand() instanceof BatchCommand) {
+                    applyInLock(((BatchCommand) logEntry.getCommand()));
+                }
+            }
+            flushIfNecessary();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean applyInLock(BatchCommand command) {
+        for (BatchCommand.Guard guard : command.getGuards()) {
+            if (!guard.test(containsKey(guard.getKey()), getValue(guard.getKey()))) {
+                return false;
+            }
+        }
+        command.getCommands().forEach(this::applyInLock);
+        return true;
+    }
+
+    private boolean applyInLock(DefaultCommand command) {
+        byte[] key = command.getKey().getBytes(StandardCharsets.UTF_8);
+        byte[] value = Objects.isNull(command.getValue()) ? EMPTY_VALUE : command.getValue().getBytes(StandardCharsets.UTF_8);
+        return applyInLock(command.getCommandEnum(), key, value);
+    }
+
+    private boolean applyInLock(DefaultCommandEnum commandEnum, byte[] key, byte[] value) {
+        switch (commandEnum) {
+            case SET: {
+                memTable.put(key, value);
+                memTableBytes += key.length + value.length + MEMTABLE_ENTRY_OVERHEAD;
+                return true;
+            }
+            case REMOVE: {
+                memTable.put(key, SortedRunFile.TOMBSTONE);
+                memTableBytes += key.length + MEMTABLE_ENTRY_OVERHEAD;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void flushIfNecessary() {
+        if (memTableBytes < memTableFlushBytes) {
+            return;
+        }
+        ConcurrentSkipListMap<byte[], byte[]> flushing = memTable;
+        SortedRunFile run = SortedRunFile.write(newRunFile(), flushing.entrySet().iterator(), flushing.size());
+        List<SortedRunFile> newRuns = Lists.newArrayListWithCapacity(runs.size() + 1);
+        newRuns.add(run);
+        newRuns.addAll(runs);
+        runs = ImmutableList.copyOf(newRuns);
+        memTable = newMemTable();
+        memTableBytes = 0;
+        log.info("flush memTable, file={}, runs={}", run.getFile().getName(), runs.size());
+        if (runs.size() > COMPACTION_TRIGGER_RUNS && compacting.compareAndSet(false, true)) {
+            compactionExecutor.execute(this::compact);
+        }
+    }
+
+    /**
+     * 从最新的run开始，只要下一个run不比已经选中的大太多就一起合并
+     * 如果合并到了最老的run，tombstone就可以丢掉了
+     */
+    private void compact() {
+        try {
+            while (!closed && runs.size() > COMPACTION_TRIGGER_RUNS) {
+                List<SortedRunFile> current = runs;
+                List<SortedRunFile> toMerge = Lists.newArrayList(current.get(0));
+                long mergedLength = current.get(0).length();
+                for (int i = 1; i < current.size(); i++) {
+                    if (toMerge.size() >= 2 && current.get(i).length() > mergedLength * 2) {
+                        break;
+                    }
+                    toMerge.add(current.get(i));
+                    mergedLength += current.get(i).length();
+                }
+                boolean includeOldest = toMerge.size() == current.size();
+                long expectedEntries = 0;
+                List<Iterator<Map.Entry<byte[], byte[]>>> iterators = Lists.newArrayList();
+                for (SortedRunFile run : toMerge) {
+                    iterators.add(run.iterator());
+                    expectedEntries += run.approximateEntryCount();
+                }
+                SortedRunFile merged = SortedRunFile.write(newRunFile(), mergeIterator(iterators, includeOldest), (int) Math.min(expectedEntries, Integer.MAX_VALUE));
+                if (!replaceRuns(toMerge, merged)) {
+                    merged.close();
+                    deleteFile(merged.getFile());
+                    return;
+                }
+                log.info("compaction done, merged={}, file={}, runs={}", toMerge.size(), merged.getFile().getName(), runs.size());
+                for (SortedRunFile run : toMerge) {
+                    run.close();
+                    deleteFile(run.getFile());
+                }
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * 合并期间可能有新的run flush出来，这些run在toMerge之前，保留
+     * 如果期间从snapshot恢复过，toMerge已经不在runs中了，放弃这次合并
+     */
+    private boolean replaceRuns(List<SortedRunFile> toMerge, SortedRunFile merged) {
+        lock.writeLock().lock();
+        try {
+            List<SortedRunFile> current = runs;
+            int from = current.indexOf(toMerge.get(0));
+            if (from < 0 || from + toMerge.size() > current.size() || !current.subList(from, from + toMerge.size()).equals(toMerge)) {
+                return false;
+            }
+            List<SortedRunFile> newRuns = Lists.newArrayList(current.subList(0, from));
+            newRuns.add(merged);
+            newRuns.addAll(current.subList(from + toMerge.size(), current.size()));
+            runs = ImmutableList.copyOf(newRuns);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 多路归并，iterators从新到旧，同一个key取最新的
+     */
+    private static Iterator<Map.Entry<byte[], byte[]>> mergeIterator(List<Iterator<Map.Entry<byte[], byte[]>>> iterators, boolean dropTombstone) {
+        List<PeekingIterator<Map.Entry<byte[], byte[]>>> peekingIterators = Lists.newArrayList();
+        for (Iterator<Map.Entry<byte[], byte[]>> iterator : iterators) {
+            peekingIterators.add(Iterators.peekingIterator(iterator));
+        }
+        Comparator<Integer> comparator = (o1, o2) -> {
+            int compare = SortedRunFile.KEY_COMPARATOR.compare(peekingIterators.get(o1).peek().getKey(), peekingIterators.get(o2).peek().getKey());
+            return compare != 0 ? compare : Integer.compare(o1, o2);
+        };
+        PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(iterators.size(), 1), comparator);
+        for (int i = 0; i < peekingIterators.size(); i++) {
+            if (peekingIterators.get(i).hasNext()) {
+                queue.add(i);
+            }
+        }
+        return new AbstractIterator<Map.Entry<byte[], byte[]>>() {
+            @Override
+            protected Map.Entry<byte[], byte[]> computeNext() {
+                while (!queue.isEmpty()) {
+                    int newest = queue.poll();
+                    Map.Entry<byte[], byte[]> entry = peekingIterators.get(newest).next();
+                    if (peekingIterators.get(newest).hasNext()) {
+                        queue.add(newest);
+                    }
+                    while (!queue.isEmpty() && Arrays.equals(peekingIterators.get(queue.peek()).peek().getKey(), entry.getKey())) {
+                        int older = queue.poll();
+                        peekingIterators.get(older).next();
+                        if (peekingIterators.get(older).hasNext()) {
+                            queue.add(older);
+                        }
+                    }
+                    if (dropTombstone && entry.getValue() == SortedRunFile.TOMBSTONE) {
+                        continue;
+                    }
+                    return entry;
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * 把当前的run硬链接到一个新的checkpoint目录，返回清单和memTable的内容
+     * |SNAPSHOT_MANIFEST|checkpointDir|runCount|runName...|memTable|
+     */
+    @Override
+    public byte[] takeSnapShot() {
+        lock.writeLock().lock();
+        try {
+            File checkpoint = new File(directory, CHECKPOINT_PREFIX + fileSequence.incrementAndGet());
+            if (!checkpoint.mkdir()) {
+                throw new IllegalStateException(String.format("category=%s can not be create!", checkpoint));
+            }
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            Output output = new Output(byteArrayOutputStream);
+            output.writeByte(SNAPSHOT_MANIFEST);
+            output.writeString(checkpoint.getAbsolutePath());
+            output.writeInt(runs.size());
+            for (SortedRunFile run : runs) {
+                Files.createLink(new File(checkpoint, run.getFile().getName()).toPath(), run.getFile().toPath());
+                output.writeString(run.getFile().getName());
+            }
+            writeMemTable(output, memTable);
+            output.flush();
+            output.close();
+            //LogService只保留最新的snapshot
+            if (Objects.nonNull(lastCheckpoint)) {
+                FileUtils.deleteRecursively(lastCheckpoint);
+            }
+            lastCheckpoint = checkpoint;
+            return byteArrayOutputStream.toByteArray();
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 会把所有run的内容读进内存，发给其他节点的时候用openSnapShot
+     */
+    @Override
+    public byte[] exportSnapShot(byte[] snapShot) {
+        try (InputStream inputStream = openSnapShot(snapShot)) {
+            return ByteStreams.toByteArray(inputStream);
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * |SNAPSHOT_FILES|runCount|runLength|runBytes|...|memTable|
+     * run文件在返回之前全部打开，读的过程中checkpoint被删掉也不影响
+     */
+    @Override
+    public InputStream openSnapShot(byte[] snapShot) {
+        if (snapShot[0] == SNAPSHOT_FILES) {
+            return new ByteArrayInputStream(snapShot);
+        }
+        List<InputStream> streams = Lists.newArrayList();
+        lock.readLock().lock();
+        try {
+            Input input = new Input(snapShot);
+            input.readByte();
+            File checkpoint = new File(input.readString());
+            Preconditions.checkState(checkpoint.isDirectory(), String.format("checkpoint=%s has been deleted", checkpoint));
+            int runCount = input.readInt();
+            Output header = new Output(16);
+            header.writeByte(SNAPSHOT_FILES);
+            header.writeInt(runCount);
+            streams.add(new ByteArrayInputStream(header.toBytes()));
+            for (int i = 0; i < runCount; i++) {
+                File runFile = new File(checkpoint, input.readString());
+                InputStream runInput = new FileInputStream(runFile);
+                Output runLength = new Output(8);
+                runLength.writeLong(runFile.length());
+                streams.add(new ByteArrayInputStream(runLength.toBytes()));
+                streams.add(runInput);
+            }
+            //剩下的就是memTable
+            streams.add(new ByteArrayInputStream(snapShot, input.position(), snapShot.length - input.position()));
+            return new SequenceInputStream(Collections.enumeration(streams));
+        } catch (IOException | RuntimeException e) {
+            for (InputStream stream : streams) {
+                try {
+                    stream.close();
+                } catch (IOException closeException) {
+                    log.warn(closeException.getMessage(), closeException);
+                }
+            }
+            log.error(e.getMessage(), e);
+            throw new IllegalStateException(e.getMessage(), e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void fromSnapShot(byte[] bytes) {
+        try {
+            fromSnapShot(new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * run文件按块从流中写到磁盘，不会把整个snapshot读进内存
+     */
+    @Override
+    public void fromSnapShot(InputStream inputStream) throws IOException {
+        lock.writeLock().lock();
+        try {
+            List<SortedRunFile> oldRuns = runs;
+            List<SortedRunFile> newRuns = Lists.newArrayList();
+            Input input = new Input(inputStream, 64 * 1024);
+            byte type = input.readByte();
+            if (type == SNAPSHOT_MANIFEST) {
+                File checkpoint = new File(input.readString());
+                int runCount = input.readInt();
+                for (int i = 0; i < runCount; i++) {
+                    File runFile = newRunFile();
+                    Files.createLink(runFile.toPath(), new File(checkpoint, input.readString()).toPath());
+                    newRuns.add(SortedRunFile.open(runFile));
+                }
+            } else {
+                int runCount = input.readInt();
+                for (int i = 0; i < runCount; i++) {
+                    File runFile = newRunFile();
+                    long length = input.readLong();
+                    try (OutputStream runOutput = new BufferedOutputStream(new FileOutputStream(runFile))) {
+                        for (long remain = length; remain > 0; ) {
+                            int len = (int) Math.min(remain, 64 * 1024);
+                            runOutput.write(input.readBytes(len));
+                            remain -= len;
+                        }
+                    }
+                    newRuns.add(SortedRunFile.open(runFile));
+                }
+            }
+            ConcurrentSkipListMap<byte[], byte[]> newMemTable = readMemTable(input);
+            runs = ImmutableList.copyOf(newRuns);
+            memTable = newMemTable;
+            memTableBytes = 0;
+            for (Map.Entry<byte[], byte[]> entry : newMemTable.entrySet()) {
+                memTableBytes += entry.getKey().length + entry.getValue().length + MEMTABLE_ENTRY_OVERHEAD;
+            }
+            for (SortedRunFile run : oldRuns) {
+                run.close();
+                deleteFile(run.getFile());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 需要把所有数据读到内存，只用于查看
+     */
+    @Override
+    public Map<String, Object> fetchAllEntry() {
+        lock.readLock().lock();
+        try {
+            List<Iterator<Map.Entry<byte[], byte[]>>> iterators = Lists.newArrayList();
+            iterators.add(memTable.entrySet().iterator());
+            for (SortedRunFile run : runs) {
+                iterators.add(run.iterator());
+            }
+            Map<String, Object> entries = Maps.newHashMap();
+            mergeIterator(iterators, true).forEachRemaining(entry -> entries.put(new String(entry.getKey(), StandardCharsets.UTF_8), new String(entry.getValue(), StandardCharsets.UTF_8)));
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @VisibleForTesting
+    int runCount() {
+        return runs.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        compactionExecutor.shutdown();
+        lock.writeLock().lock();
+        try {
+            runs.forEach(SortedRunFile::close);
+            runs = ImmutableList.of();
+            if (deleteOnClose) {
+                FileUtils.deleteRecursively(directory);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private File newRunFile() {
+        return new File(directory, String.format("%019d%s", fileSequence.incrementAndGet(), RUN_FILE_SUFFIX));
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            log.warn("delete file fail, file={}", file);
+        }
+    }
+
+    private static ConcurrentSkipListMap<byte[], byte[]> newMemTable() {
+        return new ConcurrentSkipListMap<>(SortedRunFile.KEY_COMPARATOR);
+    }
+
+    private static void writeMemTable(Output output, Map<byte[], byte[]> memTable) {
+        output.writeInt(memTable.size());
+        for (Map.Entry<byte[], byte[]> entry : memTable.entrySet()) {
+            output.writeInt(entry.getKey().length);
+            output.writeBytes(entry.getKey());
+            boolean tombstone = entry.getValue() == SortedRunFile.TOMBSTONE;
+            output.writeBoolean(tombstone);
+            output.writeInt(entry.getValue().length);
+            output.writeBytes(entry.getValue());
+        }
+    }
+
+    private static ConcurrentSkipListMap<byte[], byte[]> readMemTable(Input input) {
+        ConcurrentSkipListMap<byte[], byte[]> memTable = newMemTable();
+        int size = input.readInt();
+        for (int i = 0; i < size; i++) {
+            byte[] key = input.readBytes(input.readInt());
+            boolean tombstone = input.readBoolean();
+            byte[] value = input.readBytes(input.readInt());
+            memTable.put(key, tombstone ? SortedRunFile.TOMBSTONE : value);
+        }
+        return memTable;
+    }
+}
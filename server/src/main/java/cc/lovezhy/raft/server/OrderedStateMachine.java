@@ -0,0 +1,151 @@
+package cc.lovezhy.raft.server;
+
+import cc.lovezhy.raft.server.log.BatchCommand;
+import cc.lovezhy.raft.server.log.DefaultCommand;
+import cc.lovezhy.raft.server.log.LogEntry;
+import cc.lovezhy.raft.server.utils.KryoUtils;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * 按key有序的状态机，支持范围查询
+ * 基于ConcurrentSkipListMap，scan的时候不加锁，迭代器是弱一致的
+ */
+@ThreadSafe
+public class OrderedStateMachine implements PartitionedStateMachine {
+
+    private final ConcurrentNavigableMap<String, String> map = new ConcurrentSkipListMap<>();
+
+    @Override
+    public byte[] getValue(String key) {
+        return map.getOrDefault(key, "").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public synchronized boolean apply(DefaultCommand command) {
+        return applyInLock(command);
+    }
+
+    @Override
+    public synchronized boolean apply(BatchCommand command) {
+        return PartitionedStateMachine.super.apply(command);
+    }
+
+    @Override
+    public synchronized void applyBatch(List<LogEntry> logEntries, long firstIndex) {
+        for (LogEntry logEntry : logEntries) {
+            if (logEntry.getCommand() instanceof DefaultCommand) {
+                applyInLock(((DefaultCommand) logEntry.getCommand()));
+            } else if (logEntry.getCommand() instanceof BatchCommand) {
+                apply(((BatchCommand) logEntry.getCommand()));
+            }
+        }
+    }
+
+    /**
+     * 不加锁，不同分区的key互不相交，直接依赖ConcurrentSkipListMap
+     */
+    @Override
+    public void applyPartition(List<DefaultCommand> commands) {
+        commands.forEach(this::applyInLock);
+    }
+
+    private boolean applyInLock(DefaultCommand command) {
+        switch (command.getCommandEnum()) {
+            case SET: {
+                map.put(command.getKey(), command.getValue());
+                return true;
+            }
+            case REMOVE: {
+                map.remove(command.getKey());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * [from, to)范围内的entry，按key升序
+     *
+     * @param from  为空表示从头开始
+     * @param to    为空表示一直到结尾
+     * @param limit 最多返回的条数
+     */
+    public Iterator<Map.Entry<String, String>> scan(@Nullable String from, @Nullable String to, int limit) {
+        Preconditions.checkState(limit >= 0, String.format("limit=%d", limit));
+        NavigableMap<String, String> range = map;
+        if (Objects.nonNull(from) && Objects.nonNull(to)) {
+            if (from.compareTo(to) >= 0) {
+                return Collections.emptyIterator();
+            }
+            range = map.subMap(from, true, to, false);
+        } else if (Objects.nonNull(from)) {
+            range = map.tailMap(from, true);
+        } else if (Objects.nonNull(to)) {
+            range = map.headMap(to, false);
+        }
+        return Iterators.limit(range.entrySet().iterator(), limit);
+    }
+
+    /**
+     * 以prefix开头的entry
+     */
+    public Iterator<Map.Entry<String, String>> scanPrefix(String prefix, int limit) {
+        Preconditions.checkNotNull(prefix);
+        if (prefix.isEmpty()) {
+            return scan(null, null, limit);
+        }
+        return scan(prefix, prefix + Character.MAX_VALUE, limit);
+    }
+
+    @Override
+    public synchronized byte[] takeSnapShot() {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        Output output = new Output(byteArrayOutputStream);
+        Kryo kryo = KryoUtils.getPool().borrow();
+        kryo.writeClassAndObject(output, Maps.newHashMap(map));
+        output.flush();
+        output.close();
+        KryoUtils.getPool().release(kryo);
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized void fromSnapShot(byte[] bytes) {
+        map.clear();
+        Input input = new Input(bytes);
+        Kryo kryo = KryoUtils.getPool().borrow();
+        Map<String, String> snapShotMap = (Map<String, String>) kryo.readClassAndObject(input);
+        input.close();
+        KryoUtils.getPool().release(kryo);
+        map.putAll(snapShotMap);
+    }
+
+    @Override
+    public Map<String, Object> fetchAllEntry() {
+        return Maps.newHashMap(map);
+    }
+}
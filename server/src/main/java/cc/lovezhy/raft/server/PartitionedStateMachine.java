@@ -0,0 +1,18 @@
+package cc.lovezhy.raft.server;
+
+import cc.lovezhy.raft.server.log.DefaultCommand;
+
+import java.util.List;
+
+/**
+ * 可以按key分区并行apply的状态机
+ * DefaultCommand只对同一个key有顺序要求，不同key的命令可以交给不同的线程
+ */
+public interface PartitionedStateMachine extends StateMachine {
+
+    /**
+     * 会被多个线程同时调用，每次调用的key互不相交，同一个key的命令按日志顺序
+     * 调用期间不会有takeSnapShot和fromSnapShot
+     */
+    void applyPartition(List<DefaultCommand> commands);
+}
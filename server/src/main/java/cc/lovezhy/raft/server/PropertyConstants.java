@@ -3,4 +3,8 @@ package cc.lovezhy.raft.server;
 public class PropertyConstants {
     public static final String LOCAL_SERVER_KEY = "local";
     public static final String PEER_SERVERS_KEY = "peer";
+    public static final String STATE_MACHINE_KEY = "stateMachine";
+    public static final String STATE_MACHINE_DIR_KEY = "stateMachineDir";
+    public static final String APPLY_PARALLELISM_KEY = "applyParallelism";
+    public static final String LEADER_LEASE_KEY = "leaderLease";
 }
@@ -11,8 +11,26 @@ public class RaftConstants {
 
     public static final long HEART_BEAT_TIME_INTERVAL_TIMEOUT = 160;
 
-    //选举超时时间,150 ~ 200ms之间
+    //Leader等待一条日志commit的最长时间
+    public static final long PROPOSAL_COMMIT_TIMEOUT = 2000;
+
+    //Leader处理Follower的ReadIndex请求的时候最长等待多久，和RPC的超时差不多
+    public static final long READ_INDEX_TIMEOUT = 60;
+
+    //最小的选举超时时间
+    public static final long MIN_ELECTION_TIMEOUT = 150;
+
+    //节点之间时钟走速的误差上限，Leader的租约要减掉
+    public static final long CLOCK_DRIFT_BOUND = 30;
+
+    //Leader租约的长度，多数派确认之后这么久之内不会选出新的Leader
+    public static final long LEADER_LEASE_TIMEOUT = MIN_ELECTION_TIMEOUT - CLOCK_DRIFT_BOUND;
+
+    //Leader这么久之内没有收到多数派的响应就变回Follower，取最大的选举超时时间，这时候其他节点可能已经选出了新Leader
+    public static final long CHECK_QUORUM_TIMEOUT = 2 * MIN_ELECTION_TIMEOUT;
+
+    //选举超时时间,150 ~ 300ms之间
     public static long getRandomStartElectionTimeout() {
-        return (long) (150 + Math.random() * 150);
+        return (long) (MIN_ELECTION_TIMEOUT + Math.random() * MIN_ELECTION_TIMEOUT);
     }
 }
@@ -61,6 +61,34 @@ public class RaftStarter {
 
     }
 
+    private void loadStateMachineType(String value) {
+        if (StringUtil.isNullOrEmpty(value)) {
+            return;
+        }
+        localRaftNode.setStateMachineType(StateMachineType.valueOf(value.trim().toUpperCase()));
+    }
+
+    private void loadStateMachineDir(String value) {
+        if (StringUtil.isNullOrEmpty(value)) {
+            return;
+        }
+        localRaftNode.setStateMachineDir(value.trim());
+    }
+
+    private void loadApplyParallelism(String value) {
+        if (StringUtil.isNullOrEmpty(value)) {
+            return;
+        }
+        localRaftNode.setApplyParallelism(Integer.parseInt(value.trim()));
+    }
+
+    private void loadLeaderLease(String value) {
+        if (StringUtil.isNullOrEmpty(value)) {
+            return;
+        }
+        localRaftNode.setLeaderLease(Boolean.parseBoolean(value.trim()));
+    }
+
     private void check() {
         Preconditions.checkState(clusterConfig.getNodeCount() == (peerRaftNodes.size() + 1));
     }
@@ -84,6 +112,13 @@ public class RaftStarter {
 
         loadLocalRaftNode(properties.getProperty(LOCAL_SERVER_KEY));
 
+        loadStateMachineType(properties.getProperty(STATE_MACHINE_KEY));
+
+        loadStateMachineDir(properties.getProperty(STATE_MACHINE_DIR_KEY));
+
+        loadApplyParallelism(properties.getProperty(APPLY_PARALLELISM_KEY));
+
+        loadLeaderLease(properties.getProperty(LEADER_LEASE_KEY));
 
         check();
 
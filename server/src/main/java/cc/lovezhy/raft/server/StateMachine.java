@@ -1,18 +1,107 @@
 package cc.lovezhy.raft.server;
 
+import cc.lovezhy.raft.server.log.BatchCommand;
 import cc.lovezhy.raft.server.log.DefaultCommand;
+import cc.lovezhy.raft.server.log.LogEntry;
 
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
 
 public interface StateMachine {
 
+    /**
+     * key和value都按UTF-8编码，key不存在的时候返回空数组
+     */
     byte[] getValue(String key);
 
+    default byte[] getValue(byte[] key) {
+        return getValue(new String(key, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * getValue分不出key不存在和值为空字符串，BatchCommand.Guard.notExist要用这个判断
+     */
+    boolean containsKey(String key);
+
     boolean apply(DefaultCommand command);
 
+    /**
+     * 是否会apply BinaryCommand，不支持的状态机在applyBatch中会跳过BinaryCommand
+     */
+    default boolean supportBinaryCommand() {
+        return false;
+    }
+
+    /**
+     * guards全部满足的时候依次apply所有的命令
+     * 实现需要保证整个BatchCommand和其他命令、snapshot之间互斥
+     *
+     * @return guards不满足的时候返回false，状态机不变
+     */
+    default boolean apply(BatchCommand command) {
+        for (BatchCommand.Guard guard : command.getGuards()) {
+            if (!guard.test(containsKey(guard.getKey()), getValue(guard.getKey()))) {
+                return false;
+            }
+        }
+        command.getCommands().forEach(this::apply);
+        return true;
+    }
+
+    /**
+     * 批量apply一段连续的已提交日志
+     *
+     * @param logEntries 连续的日志，不是DefaultCommand和BatchCommand的日志直接跳过
+     * @param firstIndex logEntries中第一条日志的索引
+     */
+    default void applyBatch(List<LogEntry> logEntries, long firstIndex) {
+        for (LogEntry logEntry : logEntries) {
+            if (logEntry.getCommand() instanceof DefaultCommand) {
+                apply(((DefaultCommand) logEntry.getCommand()));
+            } else if (logEntry.getCommand() instanceof BatchCommand) {
+                apply(((BatchCommand) logEntry.getCommand()));
+            }
+        }
+    }
+
     byte[] takeSnapShot();
 
     void fromSnapShot(byte[] bytes);
 
+    /**
+     * 把takeSnapShot的结果转成可以发给其他节点的格式
+     * 默认takeSnapShot的结果已经是完整的数据了
+     */
+    default byte[] exportSnapShot(byte[] snapShot) {
+        return snapShot;
+    }
+
+    /**
+     * 以流的形式导出takeSnapShot的结果，InstallSnapshot按块读出来发送，不用把整个snapshot放进内存
+     * 默认就是exportSnapShot的结果
+     */
+    default InputStream openSnapShot(byte[] snapShot) {
+        return new ByteArrayInputStream(exportSnapShot(snapShot));
+    }
+
+    /**
+     * 从openSnapShot导出的流中恢复，默认整个读进内存之后调用fromSnapShot
+     */
+    default void fromSnapShot(InputStream inputStream) throws IOException {
+        fromSnapShot(ByteStreams.toByteArray(inputStream));
+    }
+
     Map<String, Object> fetchAllEntry();
+
+    /**
+     * 释放状态机持有的资源
+     */
+    default void close() {
+    }
 }
@@ -0,0 +1,12 @@
+package cc.lovezhy.raft.server;
+
+public enum StateMachineType {
+    //String的key和value，ConcurrentHashMap
+    DEFAULT,
+    //byte[]的key和value，开放寻址哈希表
+    BINARY,
+    //按key有序，支持范围查询
+    ORDERED,
+    //数据放在磁盘上的LSM
+    DISK
+}
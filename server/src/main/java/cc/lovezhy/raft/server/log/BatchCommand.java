@@ -0,0 +1,162 @@
+package cc.lovezhy.raft.server.log;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 一条日志里带多个SET/REMOVE，状态机原子的apply
+ * <p>
+ * guards全部满足的时候才执行commands，否则整个BatchCommand什么都不做
+ */
+@Immutable
+public class BatchCommand implements Command {
+
+    private List<DefaultCommand> commands;
+
+    private List<Guard> guards;
+
+    public static BatchCommand create(List<DefaultCommand> commands) {
+        return create(commands, Collections.emptyList());
+    }
+
+    public static BatchCommand create(List<DefaultCommand> commands, List<Guard> guards) {
+        Preconditions.checkNotNull(commands);
+        Preconditions.checkNotNull(guards);
+        Preconditions.checkState(!commands.isEmpty(), "commands is empty");
+        //HTTP传进来的guards没有经过Guard.create，这里再检查一遍
+        guards.forEach(guard -> {
+            Preconditions.checkNotNull(guard.getKey(), "guard key is null");
+            Preconditions.checkState(guard.isNotExist() == (guard.getExpectedValue() == null), String.format("guard of key=%s should have either expectedValue or notExist", guard.getKey()));
+        });
+        return new BatchCommand(Lists.newArrayList(commands), Lists.newArrayList(guards));
+    }
+
+    private BatchCommand() {
+    }
+
+    private BatchCommand(List<DefaultCommand> commands, List<Guard> guards) {
+        this.commands = commands;
+        this.guards = guards;
+    }
+
+    public List<DefaultCommand> getCommands() {
+        return MoreObjects.firstNonNull(commands, Collections.<DefaultCommand>emptyList());
+    }
+
+    public List<Guard> getGuards() {
+        return MoreObjects.firstNonNull(guards, Collections.<Guard>emptyList());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BatchCommand that = (BatchCommand) o;
+        return Objects.equal(commands, that.commands) &&
+                Objects.equal(guards, that.guards);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(commands, guards);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("commands", commands)
+                .add("guards", guards)
+                .toString();
+    }
+
+    /**
+     * compare-and-set的条件，key当前存在并且值等于expectedValue，或者notExist的时候key当前不存在
+     * 值按UTF-8比较，和StateMachine里其他地方一致
+     */
+    @Immutable
+    public static class Guard {
+
+        private String key;
+
+        private String expectedValue;
+
+        private boolean notExist;
+
+        public static Guard create(String key, String expectedValue) {
+            Preconditions.checkNotNull(key);
+            Preconditions.checkNotNull(expectedValue);
+            return new Guard(key, expectedValue, false);
+        }
+
+        public static Guard notExist(String key) {
+            Preconditions.checkNotNull(key);
+            return new Guard(key, null, true);
+        }
+
+        private Guard() {
+        }
+
+        private Guard(String key, String expectedValue, boolean notExist) {
+            this.key = key;
+            this.expectedValue = expectedValue;
+            this.notExist = notExist;
+        }
+
+        /**
+         * @param exists key当前是否存在
+         * @param value  key当前的值，不存在的时候不看
+         */
+        public boolean test(boolean exists, byte[] value) {
+            if (notExist) {
+                return !exists;
+            }
+            return exists && Arrays.equals(value, expectedValue.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        @Nullable
+        public String getExpectedValue() {
+            return expectedValue;
+        }
+
+        public boolean isNotExist() {
+            return notExist;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Guard guard = (Guard) o;
+            return notExist == guard.notExist &&
+                    Objects.equal(key, guard.key) &&
+                    Objects.equal(expectedValue, guard.expectedValue);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key, expectedValue, notExist);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("key", key)
+                    .add("expectedValue", expectedValue)
+                    .add("notExist", notExist)
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package cc.lovezhy.raft.server.log;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.concurrent.Immutable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * key和value都是byte[]的命令，需要配合BinaryStateMachine使用
+ */
+@Immutable
+public class BinaryCommand implements Command {
+
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
+    private DefaultCommandEnum commandEnum;
+
+    private byte[] key;
+
+    private byte[] value;
+
+    public static BinaryCommand setCommand(byte[] key, byte[] value) {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(value);
+        return new BinaryCommand(DefaultCommandEnum.SET, key, value);
+    }
+
+    public static BinaryCommand removeCommand(byte[] key) {
+        Preconditions.checkNotNull(key);
+        return new BinaryCommand(DefaultCommandEnum.REMOVE, key, EMPTY_VALUE);
+    }
+
+    private BinaryCommand() {
+    }
+
+    private BinaryCommand(DefaultCommandEnum commandEnum, byte[] key, byte[] value) {
+        this.commandEnum = commandEnum;
+        this.key = key;
+        this.value = value;
+    }
+
+    public DefaultCommandEnum getCommandEnum() {
+        return commandEnum;
+    }
+
+    public byte[] getKey() {
+        return key;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BinaryCommand that = (BinaryCommand) o;
+        return commandEnum == that.commandEnum &&
+                Arrays.equals(key, that.key) &&
+                Arrays.equals(value, that.value);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = commandEnum != null ? commandEnum.hashCode() : 0;
+        result = 31 * result + Arrays.hashCode(key);
+        result = 31 * result + Arrays.hashCode(value);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("commandEnum", commandEnum)
+                .add("key", new String(key, StandardCharsets.UTF_8))
+                .add("valueLength", value.length)
+                .toString();
+    }
+}
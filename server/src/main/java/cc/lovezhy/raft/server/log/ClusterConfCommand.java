@@ -9,6 +9,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import jdk.nashorn.internal.ir.annotations.Immutable;
 
+import javax.annotation.Nullable;
 import java.util.List;
 
 @Immutable
@@ -31,9 +32,12 @@ public class ClusterConfCommand implements Command {
         return ImmutableList.copyOf(clusterNodeConfig);
     }
 
+    /**
+     * 按NodeId判断，Learner提升为Voter的时候NodeConfig变了，但不是新加节点
+     */
     public boolean isAddCommand(ClusterConfig currentConfig) {
         for (NodeConfig nodeConfig : clusterNodeConfig) {
-            if (!currentConfig.getNodeConfigs().contains(nodeConfig)) {
+            if (!currentConfig.containsNode(nodeConfig.getNodeId())) {
                 return true;
             }
         }
@@ -43,7 +47,7 @@ public class ClusterConfCommand implements Command {
     private NodeConfig extractNewNodeConfig(ClusterConfig clusterConfig) {
         NodeConfig newNodeId = null;
         for (NodeConfig nodeConfig : clusterNodeConfig) {
-            if (!clusterConfig.getNodeConfigs().contains(nodeConfig)) {
+            if (!clusterConfig.containsNode(nodeConfig.getNodeId())) {
                 newNodeId = nodeConfig;
                 break;
             }
@@ -51,6 +55,28 @@ public class ClusterConfCommand implements Command {
         return newNodeId;
     }
 
+    /**
+     * 新加的是Learner的时候不需要先追日志，它不影响commit
+     */
+    public boolean isNewNodeLearner(ClusterConfig clusterConfig) {
+        NodeConfig nodeConfig = extractNewNodeConfig(clusterConfig);
+        Preconditions.checkNotNull(nodeConfig);
+        return nodeConfig.isLearner();
+    }
+
+    /**
+     * @return 在currentConfig中是Learner，在这个命令中是Voter的节点，没有的时候为null
+     */
+    @Nullable
+    public NodeId extractPromotedNodeId(ClusterConfig currentConfig) {
+        for (NodeConfig nodeConfig : clusterNodeConfig) {
+            if (!nodeConfig.isLearner() && currentConfig.isLearner(nodeConfig.getNodeId())) {
+                return nodeConfig.getNodeId();
+            }
+        }
+        return null;
+    }
+
     public NodeId extractNewNodeId(ClusterConfig clusterConfig) {
         NodeConfig nodeConfig = extractNewNodeConfig(clusterConfig);
         Preconditions.checkNotNull(nodeConfig);
@@ -5,6 +5,12 @@ public interface Command {
         if (this instanceof ClusterConfCommand) {
             return CommandType.CLUSTER_CONF;
         }
+        if (this instanceof BinaryCommand) {
+            return CommandType.BINARY;
+        }
+        if (this instanceof BatchCommand) {
+            return CommandType.BATCH;
+        }
         return CommandType.DEFAULT;
     }
 }
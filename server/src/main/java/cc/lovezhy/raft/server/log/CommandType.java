@@ -2,5 +2,7 @@ package cc.lovezhy.raft.server.log;
 
 public enum CommandType {
     CLUSTER_CONF,
+    BINARY,
+    BATCH,
     DEFAULT
 }
@@ -3,7 +3,9 @@ package cc.lovezhy.raft.server.log;
 import cc.lovezhy.raft.server.StateMachine;
 import cc.lovezhy.raft.server.storage.StorageService;
 
+import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface LogService {
 
@@ -11,8 +13,24 @@ public interface LogService {
 
     List<LogEntry> get(long start, long end);
 
+    /**
+     * 从start开始取日志，直到end或者序列化之后的大小超过maxBytes，至少返回一条
+     * 直接返回存储中序列化之后的数据，不反序列化，返回的byte[]和存储共用，不能修改
+     */
+    List<byte[]> getEncoded(long start, long end, long maxBytes);
+
     boolean hasInSnapshot(long index);
 
+    /**
+     * index所在term的第一条日志的位置，Follower拒绝AppendLog的时候告诉Leader，让Leader一次跳过一整个term
+     */
+    long getFirstIndexOfTerm(long index);
+
+    /**
+     * index之前(包括index)最后一条term为term的日志的位置，没有返回-1
+     */
+    long getLastIndexOfTerm(long term, long index);
+
     boolean set(long index, LogEntry entry);
 
     void commit(long index);
@@ -29,21 +47,59 @@ public interface LogService {
 
     long getLastCommitLogIndex();
 
+    long getLastAppliedLogIndex();
+
     long getLastLogTerm();
 
     long getLastLogIndex();
 
+    /**
+     * 把已经append的日志刷盘，Follower在响应AppendLog之前、Leader在把自己算进多数派之前调用
+     *
+     * @return 刷盘之后的lastPersistedLogIndex
+     */
+    long flush();
+
+    /**
+     * 已经刷盘的最后一条日志的位置，不会超过lastLogIndex
+     */
+    long getLastPersistedLogIndex();
+
+    /**
+     * flush会不会阻塞在磁盘IO上
+     */
+    boolean isPersistent();
+
     boolean isNewerThanSelf(long lastLogTerm, long lastLogIndex);
 
+    /**
+     * 最近一次的snapshot，data是takeSnapShot的结果，发给其他节点之前要用openSnapShot导出
+     */
     Snapshot getSnapShot();
 
+    /**
+     * 以流的形式导出snapshot的数据，InstallSnapshot按块发送
+     */
+    InputStream openSnapShot(Snapshot snapshot);
+
     void createSnapshot();
 
-    boolean installSnapshot(Snapshot snapshot, LogEntry logEntry);
+    /**
+     * @param snapshot  只用lastLogIndex和lastLogTerm
+     * @param inputStream openSnapShot导出的数据
+     */
+    boolean installSnapshot(Snapshot snapshot, InputStream inputStream, LogEntry logEntry);
+
+    /**
+     * index位置的日志apply到状态机之后完成，close之后或者apply失败的时候异常完成
+     */
+    CompletableFuture<Void> waitApplied(long index);
 
     void execInLock(Runnable action);
 
     StateMachine getStateMachine();
 
     StorageService getStorageService();
+
+    void close();
 }
@@ -1,10 +1,10 @@
 package cc.lovezhy.raft.server.log;
 
+import cc.lovezhy.raft.server.PartitionedStateMachine;
 import cc.lovezhy.raft.server.StateMachine;
 import cc.lovezhy.raft.server.log.exception.HasCompactException;
 import cc.lovezhy.raft.server.storage.*;
 import cc.lovezhy.raft.server.utils.EventRecorder;
-import com.alibaba.fastjson.JSON;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
@@ -12,9 +12,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -28,14 +36,27 @@ public class LogServiceImpl implements LogService {
     private volatile Long lastCommitLogIndex;
     private volatile Long lastCommitLogTerm;
 
-//    private volatile Long lastAppliedLogIndex;
-//    private volatile Long lastAppliedLogTerm;
+    /**
+     * 已经apply到状态机的位置，由applyExecutor单独推进
+     */
+    private volatile Long lastAppliedLogIndex;
+    private volatile Long lastAppliedLogTerm;
+
+    /**
+     * 已经刷盘的位置，append和flush都持有this的锁，所以不会和截断交错
+     */
+    private volatile long lastPersistedLogIndex;
 
     private volatile Snapshot snapshot;
 
 
     @VisibleForTesting
     public static final int MAX_LOG_BEFORE_TAKE_SNAPSHOT = 20;
+
+    /**
+     * applier每次从日志中取出的最大条数
+     */
+    private static final int MAX_APPLY_BATCH_SIZE = 512;
     private AtomicInteger appliedLogInMemoryCounter = new AtomicInteger(0);
 
     /**
@@ -47,7 +68,91 @@ public class LogServiceImpl implements LogService {
 
     private ReentrantLock LOG_LOCK = new ReentrantLock(true);
 
+    /**
+     * apply状态机和snapshot之间的互斥，加锁顺序为APPLY_LOCK -> LOG_LOCK
+     */
+    private ReentrantLock APPLY_LOCK = new ReentrantLock();
+
+    private final Object applyNotifier = new Object();
+
+    private ExecutorService applyExecutor;
+
+    /**
+     * 不为空的时候按key分区并行apply
+     */
+    @Nullable
+    private PartitionedApplier partitionedApplier;
+
+    private volatile boolean closed = false;
+
+    /**
+     * apply失败之后重试的等待时间，每次失败翻倍，成功之后重置
+     */
+    private static final long MIN_APPLY_RETRY_MILLS = 10;
+    private static final long MAX_APPLY_RETRY_MILLS = 1000;
+
+    /**
+     * 最近一次apply失败的原因，apply成功之后清空，不为空的时候等待apply的请求直接失败
+     */
+    private volatile Exception applyFailure;
+
+    /**
+     * 等待apply的future，key是日志的位置，同一个位置的等待共用一个future
+     */
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> appliedFutures = new ConcurrentSkipListMap<>();
+
+    /**
+     * commit只负责推进lastCommitLogIndex，由这里把已提交的日志批量apply到状态机
+     * 这样apply慢的时候不会拖住AppendEntries的响应和Leader的复制
+     */
+    private Runnable applyTask = () -> {
+        long retryMills = MIN_APPLY_RETRY_MILLS;
+        while (!closed) {
+            synchronized (applyNotifier) {
+                while (!closed && lastAppliedLogIndex >= lastCommitLogIndex) {
+                    try {
+                        applyNotifier.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            if (closed) {
+                return;
+            }
+            try {
+                applyCommitted();
+                applyFailure = null;
+                retryMills = MIN_APPLY_RETRY_MILLS;
+            } catch (Exception e) {
+                //同一条日志大概率还会失败，不能马上重试，等待的请求也不能一直挂着
+                log.error("apply fail, lastAppliedLogIndex={}, retry after {}ms", lastAppliedLogIndex, retryMills, e);
+                applyFailure = e;
+                failAppliedFutures(new IllegalStateException("apply fail, " + e.getMessage(), e));
+                long deadline = System.currentTimeMillis() + retryMills;
+                synchronized (applyNotifier) {
+                    //commit的时候也会notify，等够时间才重试
+                    for (long waitMills = retryMills; !closed && waitMills > 0; waitMills = deadline - System.currentTimeMillis()) {
+                        try {
+                            applyNotifier.wait(waitMills);
+                        } catch (InterruptedException interruptedException) {
+                            return;
+                        }
+                    }
+                }
+                retryMills = Math.min(retryMills * 2, MAX_APPLY_RETRY_MILLS);
+            }
+        }
+    };
+
     public LogServiceImpl(StateMachine stateMachine, StorageType storageType, EventRecorder eventRecorder) {
+        this(stateMachine, storageType, eventRecorder, 1);
+    }
+
+    /**
+     * @param applyParallelism 大于1并且状态机是PartitionedStateMachine的时候并行apply
+     */
+    public LogServiceImpl(StateMachine stateMachine, StorageType storageType, EventRecorder eventRecorder, int applyParallelism) {
         Preconditions.checkNotNull(stateMachine);
         Preconditions.checkNotNull(storageType);
         Preconditions.checkNotNull(eventRecorder);
@@ -71,27 +176,46 @@ public class LogServiceImpl implements LogService {
         this.storageService.append(LogConstants.getInitialLogEntry().toStorageEntry());
         this.lastCommitLogIndex = 0L;
         this.lastCommitLogTerm = 0L;
-//        this.lastAppliedLogIndex = 0L;
-//        this.lastAppliedLogTerm = 0L;
+        this.lastAppliedLogIndex = 0L;
+        this.lastAppliedLogTerm = 0L;
+        this.lastPersistedLogIndex = 0L;
         this.eventRecorder = eventRecorder;
+        if (applyParallelism > 1) {
+            if (stateMachine instanceof PartitionedStateMachine) {
+                this.partitionedApplier = new PartitionedApplier((PartitionedStateMachine) stateMachine, applyParallelism);
+            } else {
+                log.warn("stateMachine={} not support partitioned apply, fallback to single thread", stateMachine.getClass().getSimpleName());
+            }
+        }
+        this.applyExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "raft-log-applier");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.applyExecutor.execute(applyTask);
     }
 
     @Override
     @Nullable
     public LogEntry get(long index) {
         Preconditions.checkState(index >= 0, String.format("index=%d", index));
-        //如果日志已经被压缩
-        if (index < start) {
-            log.error("Log Has Been Compact, start={}, requestIndex={}", start, index);
-            throw new HasCompactException(String.format("start=%d, index=%d", start, index));
-        }
-        //如果还未有这个Index，返回空
-        if (index >= start + storageService.getLen()) {
-            return null;
+        LOG_LOCK.lock();
+        try {
+            //如果日志已经被压缩
+            if (index < start) {
+                log.error("Log Has Been Compact, start={}, requestIndex={}", start, index);
+                throw new HasCompactException(String.format("start=%d, index=%d", start, index));
+            }
+            //如果还未有这个Index，返回空
+            if (index >= start + storageService.getLen()) {
+                return null;
+            }
+            StorageEntry storageEntry = storageService.get((int) (index - start));
+            Preconditions.checkNotNull(storageEntry);
+            return storageEntry.toLogEntry();
+        } finally {
+            LOG_LOCK.unlock();
         }
-        StorageEntry storageEntry = storageService.get((int) (index - start));
-        Preconditions.checkNotNull(storageEntry);
-        return storageEntry.toLogEntry();
     }
 
     /**
@@ -100,19 +224,98 @@ public class LogServiceImpl implements LogService {
     @Override
     public List<LogEntry> get(long start, long end) {
         log.debug("get logEntry, start={}, end={}", start, end);
-        if (start > end) {
-            return Collections.emptyList();
+        LOG_LOCK.lock();
+        try {
+            if (start > end) {
+                return Collections.emptyList();
+            }
+            if (start < this.start) {
+                throw new HasCompactException(String.format("logStart=%d, requestStart=%d", this.start, start));
+            }
+            if (end > this.start + storageService.getLen()) {
+                throw new IndexOutOfBoundsException();
+            }
+            List<StorageEntry> storageEntries = storageService.range(((int) start - this.start), ((int) end - this.start));
+            List<LogEntry> logEntries = Lists.newArrayList();
+            storageEntries.forEach(storageEntry -> logEntries.add(storageEntry.toLogEntry()));
+            return logEntries;
+        } finally {
+            LOG_LOCK.unlock();
         }
-        if (start < this.start) {
-            throw new HasCompactException(String.format("logStart=%d, requestStart=%d", this.start, start));
+    }
+
+    @Override
+    public List<byte[]> getEncoded(long start, long end, long maxBytes) {
+        LOG_LOCK.lock();
+        try {
+            if (start > end) {
+                return Collections.emptyList();
+            }
+            if (start < this.start) {
+                throw new HasCompactException(String.format("logStart=%d, requestStart=%d", this.start, start));
+            }
+            if (end > this.start + storageService.getLen()) {
+                throw new IndexOutOfBoundsException();
+            }
+            List<byte[]> encodedEntries = Lists.newArrayList();
+            long bytes = 0;
+            for (StorageEntry storageEntry : storageService.range(((int) start - this.start), ((int) end - this.start))) {
+                if (!encodedEntries.isEmpty() && bytes >= maxBytes) {
+                    break;
+                }
+                bytes += storageEntry.size();
+                encodedEntries.add(storageEntry.getValues());
+            }
+            return encodedEntries;
+        } finally {
+            LOG_LOCK.unlock();
         }
-        if (end > this.start + storageService.getLen()) {
-            throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    public long getFirstIndexOfTerm(long index) {
+        LOG_LOCK.lock();
+        try {
+            Preconditions.checkState(index >= start && index < start + storageService.getLen(), String.format("start=%d, index=%d", start, index));
+            //commit之前的日志一定和Leader一致，不用往前找了
+            long lowIndex = Math.max(start, Math.min(lastCommitLogIndex + 1, index));
+            List<StorageEntry> storageEntries = storageService.range((int) (lowIndex - start), (int) (index - start));
+            ListIterator<StorageEntry> iterator = storageEntries.listIterator(storageEntries.size());
+            long term = iterator.previous().toLogEntry().getTerm();
+            long firstIndex = index;
+            while (iterator.hasPrevious() && iterator.previous().toLogEntry().getTerm() == term) {
+                firstIndex--;
+            }
+            return firstIndex;
+        } finally {
+            LOG_LOCK.unlock();
+        }
+    }
+
+    @Override
+    public long getLastIndexOfTerm(long term, long index) {
+        LOG_LOCK.lock();
+        try {
+            long highIndex = Math.min(index, start + storageService.getLen() - 1);
+            if (highIndex < start) {
+                return -1;
+            }
+            List<StorageEntry> storageEntries = storageService.range(0, (int) (highIndex - start));
+            ListIterator<StorageEntry> iterator = storageEntries.listIterator(storageEntries.size());
+            for (long currentIndex = highIndex; iterator.hasPrevious(); currentIndex--) {
+                long currentTerm = iterator.previous().toLogEntry().getTerm();
+                if (currentTerm == term) {
+                    return currentIndex;
+                }
+                //term是递增的
+                if (currentTerm < term) {
+                    return -1;
+                }
+            }
+            return -1;
+        } finally {
+            LOG_LOCK.unlock();
         }
-        List<StorageEntry> storageEntries = storageService.range(((int) start - this.start), ((int) end - this.start));
-        List<LogEntry> logEntries = Lists.newArrayList();
-        storageEntries.forEach(storageEntry -> logEntries.add(storageEntry.toLogEntry()));
-        return logEntries;
     }
 
     @Override
@@ -138,26 +341,71 @@ public class LogServiceImpl implements LogService {
         if (index > start + storageService.getLen() - 1) {
             return;
         }
-        if (index == this.lastCommitLogIndex) {
+        if (index <= this.lastCommitLogIndex) {
             return;
         }
-        //attention i debug a day
-        long expectNextIndex = this.lastCommitLogIndex + 1;
-        while (index >= expectNextIndex) {
-            LogEntry logEntry = get(expectNextIndex);
-            log.info("commit logEntry={}", JSON.toJSONString(logEntry));
-            if (Objects.nonNull(logEntry)) {
-                if (logEntry.getCommand() instanceof ClusterConfCommand) {
+        log.debug("commit index={}", index);
+        this.lastCommitLogTerm = get(index).getTerm();
+        this.lastCommitLogIndex = index;
+        synchronized (applyNotifier) {
+            applyNotifier.notifyAll();
+        }
+    }
 
-                } else {
-                    this.stateMachine.apply(((DefaultCommand) logEntry.getCommand()));
+    /**
+     * 把(lastAppliedLogIndex, lastCommitLogIndex]之间的日志分批apply到状态机
+     * 只在取日志的时候持有LOG_LOCK
+     */
+    private void applyCommitted() {
+        APPLY_LOCK.lock();
+        try {
+            long commitIndex = this.lastCommitLogIndex;
+            while (lastAppliedLogIndex < commitIndex && !closed) {
+                long fromIndex = lastAppliedLogIndex + 1;
+                long toIndex = Math.min(commitIndex, fromIndex + MAX_APPLY_BATCH_SIZE - 1);
+                List<LogEntry> logEntries = Lists.newArrayListWithCapacity((int) (toIndex - fromIndex + 1));
+                execInLock(() -> {
+                    for (long i = fromIndex; i <= toIndex; i++) {
+                        logEntries.add(get(i));
+                    }
+                });
+                /*
+                 * BatchCommand带guard，重复apply结果不一样，所以单独apply并且apply完马上推进lastApplied
+                 * 失败重试的时候从失败的那条开始，不会把前面的BatchCommand再apply一遍
+                 * 普通的SET/REMOVE重复apply结果一样，可以整段一起apply
+                 */
+                int from = 0;
+                for (int i = 0; i < logEntries.size(); i++) {
+                    if (!(logEntries.get(i).getCommand() instanceof BatchCommand)) {
+                        continue;
+                    }
+                    applySegment(logEntries.subList(from, i), fromIndex + from);
+                    applySegment(logEntries.subList(i, i + 1), fromIndex + i);
+                    from = i + 1;
                 }
+                applySegment(logEntries.subList(from, logEntries.size()), fromIndex + from);
+                createSnapShotIfNecessary(logEntries.size());
             }
-            expectNextIndex++;
+        } finally {
+            APPLY_LOCK.unlock();
         }
-        this.lastCommitLogIndex = index;
-        this.lastCommitLogTerm = get(index).getTerm();
-        createSnapShotIfNecessary();
+    }
+
+    /**
+     * apply一段连续的日志，成功之后lastApplied推进到这段的最后一条
+     */
+    private void applySegment(List<LogEntry> segment, long firstIndex) {
+        if (segment.isEmpty()) {
+            return;
+        }
+        if (Objects.nonNull(partitionedApplier)) {
+            partitionedApplier.apply(segment, firstIndex);
+        } else {
+            this.stateMachine.applyBatch(segment, firstIndex);
+        }
+        this.lastAppliedLogTerm = segment.get(segment.size() - 1).getTerm();
+        this.lastAppliedLogIndex = firstIndex + segment.size() - 1;
+        completeAppliedFutures();
     }
 
     @Override
@@ -172,34 +420,32 @@ public class LogServiceImpl implements LogService {
 
     @Override
     public synchronized int appendLog(List<LogEntry> entries) {
-        return appendLog(storageService.getLen() - 1 + start, entries);
+        return appendLog(storageService.getLen() + start, entries);
     }
 
     @Override
     public synchronized int appendLog(long fromIndex, List<LogEntry> entries) {
         Preconditions.checkNotNull(entries);
-        /**
-         * origin bug
-         * 如果为空，根据fromIndex，要将后面的log进行remove
-         */
-        if (entries.isEmpty()) {
-            if (fromIndex <= (storageService.getLen() - 1 + start)) {
-                System.out.println("origin bug");
-            }
-//            return start;
-        }
         try {
             LOG_LOCK.lock();
-            while (fromIndex <= (storageService.getLen() - 1 + start)) {
-                if (entries.isEmpty()) {
-                    storageService.remove(Math.toIntExact(fromIndex));
+            /*
+             * 已经有的日志，term相同说明是同一条，直接跳过
+             * term不同说明冲突了，删除这条以及后面所有的日志
+             * 不能因为entries比本地的日志短就删除后面的日志，流水线复制的时候旧的请求可能比新的请求晚到
+             */
+            int offset = 0;
+            for (long index = fromIndex; offset < entries.size() && index <= getLastLogIndex(); offset++, index++) {
+                //已经被压缩的日志一定是已经提交的
+                if (index < start) {
+                    continue;
+                }
+                if (!get(index).getTerm().equals(entries.get(offset).getTerm())) {
+                    storageService.remove(Math.toIntExact(index - start));
+                    lastPersistedLogIndex = Math.min(lastPersistedLogIndex, index - 1);
                     break;
                 }
-                set(fromIndex, entries.get(0));
-                entries.remove(entries.get(0));
-                fromIndex++;
             }
-            for (LogEntry entry : entries) {
+            for (LogEntry entry : entries.subList(offset, entries.size())) {
                 storageService.append(entry.toStorageEntry());
             }
             return storageService.getLen() - 1 + start;
@@ -218,6 +464,11 @@ public class LogServiceImpl implements LogService {
         return this.lastCommitLogIndex;
     }
 
+    @Override
+    public long getLastAppliedLogIndex() {
+        return this.lastAppliedLogIndex;
+    }
+
     @Override
     public long getLastLogTerm() {
         LogEntry logEntry = storageService.get(storageService.getLen() - 1).toLogEntry();
@@ -229,6 +480,29 @@ public class LogServiceImpl implements LogService {
         return storageService.getLen() - 1 + (long) start;
     }
 
+    /**
+     * 只持有this的锁，不持有LOG_LOCK，刷盘的时候Leader还可以读日志发给Follower
+     */
+    @Override
+    public synchronized long flush() {
+        long lastLogIndex = getLastLogIndex();
+        if (lastLogIndex > lastPersistedLogIndex) {
+            storageService.flush();
+            lastPersistedLogIndex = lastLogIndex;
+        }
+        return lastPersistedLogIndex;
+    }
+
+    @Override
+    public long getLastPersistedLogIndex() {
+        return lastPersistedLogIndex;
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return storageService.isPersistent();
+    }
+
     // 日志比较的原则是，如果本地的最后一条log entry的term更大，则term大的更新，如果term一样大，则log index更大的更新
     @Override
     public boolean isNewerThanSelf(long lastLogTerm, long lastLogIndex) {
@@ -248,8 +522,14 @@ public class LogServiceImpl implements LogService {
         return snapshot;
     }
 
-    private void createSnapShotIfNecessary() {
-        int counter = appliedLogInMemoryCounter.incrementAndGet();
+    @Override
+    public InputStream openSnapShot(Snapshot snapshot) {
+        Preconditions.checkNotNull(snapshot);
+        return stateMachine.openSnapShot(snapshot.getData());
+    }
+
+    private void createSnapShotIfNecessary(int appliedCount) {
+        int counter = appliedLogInMemoryCounter.addAndGet(appliedCount);
         if (counter >= MAX_LOG_BEFORE_TAKE_SNAPSHOT) {
             eventRecorder.add(EventRecorder.Event.SnapShot, String.format("ready to take snapshot, appliedLogInMemory=%d", counter));
             createSnapshot();
@@ -259,44 +539,101 @@ public class LogServiceImpl implements LogService {
 
     @Override
     public void createSnapshot() {
+        APPLY_LOCK.lock();
         LOG_LOCK.lock();
         try {
-            eventRecorder.add(EventRecorder.Event.SnapShot, String.format("before snapshot, start=%d, lastCommitLogIndex=%d", this.start, getLastCommitLogIndex()));
+            //状态机里只有apply过的日志，所以snapshot的位置是lastApplied而不是lastCommit
+            eventRecorder.add(EventRecorder.Event.SnapShot, String.format("before snapshot, start=%d, lastAppliedLogIndex=%d", this.start, getLastAppliedLogIndex()));
             byte[] snapshotValues = stateMachine.takeSnapShot();
-            Long lastCommitLogIndex = getLastCommitLogIndex();
-            Long lastCommitLogTerm = getLastCommitLogTerm();
+            Long lastAppliedLogIndex = this.lastAppliedLogIndex;
+            Long lastAppliedLogTerm = this.lastAppliedLogTerm;
             Snapshot snapshot = new Snapshot();
             snapshot.setData(snapshotValues);
-            snapshot.setLastLogIndex(lastCommitLogIndex);
-            snapshot.setLastLogTerm(lastCommitLogTerm);
+            snapshot.setLastLogIndex(lastAppliedLogIndex);
+            snapshot.setLastLogTerm(lastAppliedLogTerm);
             this.snapshot = snapshot;
-            this.storageService.discard(Math.toIntExact(lastCommitLogIndex - start - 1));
-            this.start = Math.toIntExact(lastCommitLogIndex - 1);
-            eventRecorder.add(EventRecorder.Event.SnapShot, String.format("after snapshot, start=%d, lastCommitLogIndex=%d", this.start, getLastCommitLogIndex()));
+            this.storageService.discard(Math.toIntExact(lastAppliedLogIndex - start - 1));
+            this.start = Math.toIntExact(lastAppliedLogIndex - 1);
+            eventRecorder.add(EventRecorder.Event.SnapShot, String.format("after snapshot, start=%d, lastAppliedLogIndex=%d", this.start, getLastAppliedLogIndex()));
         } finally {
             LOG_LOCK.unlock();
+            APPLY_LOCK.unlock();
         }
     }
 
     @Override
-    public boolean installSnapshot(Snapshot snapshot, LogEntry logEntry) {
+    public boolean installSnapshot(Snapshot snapshot, InputStream inputStream, LogEntry logEntry) {
         Preconditions.checkNotNull(snapshot);
+        Preconditions.checkNotNull(inputStream);
+        APPLY_LOCK.lock();
         LOG_LOCK.lock();
         try {
-            stateMachine.fromSnapShot(snapshot.getData());
+            try {
+                stateMachine.fromSnapShot(inputStream);
+            } catch (IOException e) {
+                log.error(e.getMessage(), e);
+                throw new IllegalStateException(e.getMessage(), e);
+            }
             this.lastCommitLogIndex = snapshot.getLastLogIndex();
-//            this.lastAppliedLogIndex = snapshot.getLastLogIndex();
-//            this.lastAppliedLogTerm = snapshot.getLastLogTerm();
-//            this.lastAppliedLogIndex = snapshot.getLastLogTerm();
-//            this.start = Math.toIntExact(lastCommitLogIndex);
+            this.lastCommitLogTerm = snapshot.getLastLogTerm();
+            this.lastAppliedLogIndex = snapshot.getLastLogIndex();
+            this.lastAppliedLogTerm = snapshot.getLastLogTerm();
             storageService.append(logEntry.toStorageEntry());
             this.start = (int) (this.lastCommitLogIndex - storageService.getLen() + 1);
+            this.lastPersistedLogIndex = this.lastCommitLogIndex;
         } finally {
             LOG_LOCK.unlock();
+            APPLY_LOCK.unlock();
         }
+        completeAppliedFutures();
         return true;
     }
 
+    @Override
+    public CompletableFuture<Void> waitApplied(long index) {
+        if (index <= lastAppliedLogIndex) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Exception applyFailure = this.applyFailure;
+        if (Objects.nonNull(applyFailure)) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("apply fail, " + applyFailure.getMessage(), applyFailure));
+            return future;
+        }
+        CompletableFuture<Void> future = appliedFutures.computeIfAbsent(index, key -> new CompletableFuture<>());
+        //可能在放进去之前已经apply了，或者已经close了
+        if (index <= lastAppliedLogIndex) {
+            completeAppliedFutures();
+        }
+        if (closed) {
+            failAppliedFutures();
+        }
+        return future;
+    }
+
+    private void completeAppliedFutures() {
+        Map<Long, CompletableFuture<Void>> futures = appliedFutures.headMap(lastAppliedLogIndex, true);
+        for (Long index : futures.keySet()) {
+            CompletableFuture<Void> future = futures.remove(index);
+            if (Objects.nonNull(future)) {
+                future.complete(null);
+            }
+        }
+    }
+
+    private void failAppliedFutures() {
+        failAppliedFutures(new IllegalStateException("logService closed"));
+    }
+
+    private void failAppliedFutures(Exception cause) {
+        for (Long index : appliedFutures.keySet()) {
+            CompletableFuture<Void> future = appliedFutures.remove(index);
+            if (Objects.nonNull(future)) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
     @Override
     public void execInLock(Runnable action) {
         try {
@@ -307,6 +644,20 @@ public class LogServiceImpl implements LogService {
         }
     }
 
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (applyNotifier) {
+            applyNotifier.notifyAll();
+        }
+        failAppliedFutures();
+        applyExecutor.shutdown();
+        if (Objects.nonNull(partitionedApplier)) {
+            partitionedApplier.close();
+        }
+        stateMachine.close();
+    }
+
     public StorageService getStorageService() {
         return storageService;
     }
@@ -0,0 +1,103 @@
+package cc.lovezhy.raft.server.log;
+
+import cc.lovezhy.raft.server.PartitionedStateMachine;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 把一批已提交的日志按key的hash分给多个线程apply
+ * <p>
+ * 不是DefaultCommand的日志(比如ClusterConfCommand)是屏障，前面的日志全部apply完之后单独apply
+ * apply方法返回的时候整批日志都已经apply完，所以LogServiceImpl在两次apply之间做snapshot是安全的
+ */
+class PartitionedApplier {
+
+    private static final Logger log = LoggerFactory.getLogger(PartitionedApplier.class);
+
+    /**
+     * 太少的日志分区的开销比收益大，直接在applier线程apply
+     */
+    private static final int MIN_PARTITION_BATCH_SIZE = 64;
+
+    private final PartitionedStateMachine stateMachine;
+    private final int parallelism;
+    private final ListeningExecutorService executor;
+
+    PartitionedApplier(PartitionedStateMachine stateMachine, int parallelism) {
+        Preconditions.checkNotNull(stateMachine);
+        Preconditions.checkState(parallelism > 1, "parallelism should be greater than 1");
+        this.stateMachine = stateMachine;
+        this.parallelism = parallelism;
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "raft-log-applier-partition-" + threadCounter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    void apply(List<LogEntry> logEntries, long firstIndex) {
+        int from = 0;
+        for (int i = 0; i < logEntries.size(); i++) {
+            if (logEntries.get(i).getCommand() instanceof DefaultCommand) {
+                continue;
+            }
+            applySegment(logEntries.subList(from, i), firstIndex + from);
+            stateMachine.applyBatch(Collections.singletonList(logEntries.get(i)), firstIndex + i);
+            from = i + 1;
+        }
+        applySegment(logEntries.subList(from, logEntries.size()), firstIndex + from);
+    }
+
+    /**
+     * segment中全部是DefaultCommand
+     */
+    private void applySegment(List<LogEntry> segment, long firstIndex) {
+        if (segment.isEmpty()) {
+            return;
+        }
+        if (segment.size() < MIN_PARTITION_BATCH_SIZE) {
+            stateMachine.applyBatch(segment, firstIndex);
+            return;
+        }
+        List<List<DefaultCommand>> partitions = Lists.newArrayListWithCapacity(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            partitions.add(Lists.newArrayListWithCapacity(segment.size() / parallelism + 1));
+        }
+        for (LogEntry logEntry : segment) {
+            DefaultCommand command = (DefaultCommand) logEntry.getCommand();
+            partitions.get(Math.floorMod(command.getKey().hashCode(), parallelism)).add(command);
+        }
+        List<ListenableFuture<?>> futures = Lists.newArrayListWithCapacity(parallelism);
+        for (List<DefaultCommand> partition : partitions) {
+            if (!partition.isEmpty()) {
+                futures.add(executor.submit(() -> stateMachine.applyPartition(partition)));
+            }
+        }
+        try {
+            Futures.allAsList(futures).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            log.error(e.getMessage(), e);
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    void close() {
+        executor.shutdown();
+    }
+}
@@ -2,18 +2,20 @@ package cc.lovezhy.raft.server.node;
 
 import cc.lovezhy.raft.rpc.EndPoint;
 import cc.lovezhy.raft.rpc.common.RpcExecutors;
-import cc.lovezhy.raft.server.log.LogEntry;
 import cc.lovezhy.raft.server.log.LogService;
 import cc.lovezhy.raft.server.log.Snapshot;
-import cc.lovezhy.raft.server.service.model.InstallSnapshotRequest;
 import cc.lovezhy.raft.server.service.model.InstallSnapshotResponse;
 import cc.lovezhy.raft.server.service.model.ReplicatedLogRequest;
 import cc.lovezhy.raft.server.service.model.ReplicatedLogResponse;
 import com.alibaba.fastjson.JSON;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -84,92 +86,123 @@ public class AddNodeScheduler {
 
     private Runnable prepareAppendLog(PeerRaftNode peerRaftNode, PeerNodeStateMachine peerNodeStateMachine, SettableFuture<Boolean> appendLogResult) {
         return () -> {
+            ReplicatedLogRequest replicatedLogRequest;
+            long currentLastLogIndex;
+            boolean truncated;
             try {
                 log.info("prepareAppendLog, to {}", peerRaftNode.getNodeId().getPeerId());
-                long currentLastLogIndex = logService.getLastLogIndex();
+                currentLastLogIndex = logService.getLastLogIndex();
                 long currentLastCommitLogIndex = logService.getLastCommitLogIndex();
                 long preLogIndex = peerNodeStateMachine.getNextIndex() - 1;
 
-                ReplicatedLogRequest replicatedLogRequest = new ReplicatedLogRequest();
+                replicatedLogRequest = new ReplicatedLogRequest();
                 replicatedLogRequest.setTerm(term);
                 replicatedLogRequest.setLeaderId(leaderNodeId);
                 replicatedLogRequest.setLeaderCommit(currentLastCommitLogIndex);
                 if (logService.hasInSnapshot(preLogIndex)) {
-                    if (!peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.INSTALLSNAPSHOT)) {
-                        Runnable runnable = prepareInstallSnapshot(peerRaftNode, peerNodeStateMachine);
-                        peerNodeStateMachine.appendFirst(runnable);
-                    }
-                    appendLogResult.set(false);
+                    installSnapshot(peerRaftNode, peerNodeStateMachine, appendLogResult);
                     return;
                 }
                 replicatedLogRequest.setPrevLogIndex(preLogIndex);
                 replicatedLogRequest.setPrevLogTerm(logService.get(preLogIndex).getTerm());
-                List<LogEntry> logEntries = logService.get(peerNodeStateMachine.getNextIndex(), currentLastLogIndex);
-                replicatedLogRequest.setEntries(logEntries);
-                //同步方法
-                log.info("send to {} replicatedLogRequest={}", JSON.toJSONString(peerRaftNode), JSON.toJSONString(replicatedLogRequest));
-                ReplicatedLogResponse replicatedLogResponse = peerRaftNode.getRaftService().requestAppendLog(replicatedLogRequest);
-                log.info("receive from {} replicatedLogResponse={}", JSON.toJSONString(peerRaftNode), JSON.toJSONString(replicatedLogResponse));
-
-                if (replicatedLogResponse.getSuccess()) {
-                    peerNodeStateMachine.setNextIndex(currentLastLogIndex + 1);
-                    peerNodeStateMachine.setMatchIndex(currentLastLogIndex);
-                    if (!peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.NORMAL)) {
-                        peerNodeStateMachine.setNodeStatus(PeerNodeStatus.NORMAL);
-                    }
-                    if (peerNodeStateMachine.needSendAppendLogImmediately() || peerNodeStateMachine.getMatchIndex() < logService.getLastLogIndex()) {
-                        Runnable runnable = prepareAppendLog(peerRaftNode, peerNodeStateMachine, SettableFuture.create());
-                        peerNodeStateMachine.appendFirst(runnable);
-                    }
-                } else {
-                    if (!peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.INSTALLSNAPSHOT)) {
-                        long nextPreLogIndex = replicatedLogResponse.getLastCommitIndex();
-                        //如果已经是在Snapshot中
-                        if (logService.hasInSnapshot(nextPreLogIndex)) {
-                            Runnable runnable = prepareInstallSnapshot(peerRaftNode, peerNodeStateMachine);
-                            peerNodeStateMachine.appendFirst(runnable);
-                        } else {
-                            peerNodeStateMachine.setNextIndex(nextPreLogIndex + 1);
+                //和正常复制一样按条数和大小分批，一次只取一批，不把落后的日志全部读进内存
+                long batchLastIndex = Math.min(currentLastLogIndex, preLogIndex + PeerNodeStateMachine.MAX_APPEND_ENTRIES);
+                List<byte[]> encodedEntries = logService.getEncoded(preLogIndex + 1, batchLastIndex, peerNodeStateMachine.getAppendBatchBytes());
+                replicatedLogRequest.setEncodedEntries(encodedEntries);
+                truncated = preLogIndex + encodedEntries.size() < currentLastLogIndex;
+            } catch (Exception e) {
+                appendLogResult.set(Boolean.FALSE);
+                log.error("fail prepareAppendLog to {}", JSON.toJSONString(peerRaftNode));
+                log.error(e.getMessage(), e);
+                return;
+            }
+            long lastIndex = replicatedLogRequest.getPrevLogIndex() + replicatedLogRequest.getEntryCount();
+            long sendTime = System.currentTimeMillis();
+            //新节点追日志的时候一次只发一个请求，响应回来之后在回调里接着发下一批，不占着复制队列的线程等
+            FutureCallback<ReplicatedLogResponse> callback = new FutureCallback<ReplicatedLogResponse>() {
+                @Override
+                public void onSuccess(@Nullable ReplicatedLogResponse replicatedLogResponse) {
+                    Preconditions.checkNotNull(replicatedLogResponse);
+                    log.info("receive from {} replicatedLogResponse={}", JSON.toJSONString(peerRaftNode), JSON.toJSONString(replicatedLogResponse));
+                    if (replicatedLogResponse.getSuccess()) {
+                        peerNodeStateMachine.adjustAppendBatch(System.currentTimeMillis() - sendTime, truncated);
+                        peerNodeStateMachine.setNextIndex(lastIndex + 1);
+                        peerNodeStateMachine.setMatchIndex(lastIndex);
+                        if (lastIndex < currentLastLogIndex) {
+                            //还没追上，接着发下一批，追上之后才完成这一轮
+                            peerNodeStateMachine.appendFirst(prepareAppendLog(peerRaftNode, peerNodeStateMachine, appendLogResult));
+                            return;
+                        }
+                        if (!peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.NORMAL)) {
+                            peerNodeStateMachine.setNodeStatus(PeerNodeStatus.NORMAL);
+                        }
+                        if (peerNodeStateMachine.getMatchIndex() < logService.getLastLogIndex()) {
                             Runnable runnable = prepareAppendLog(peerRaftNode, peerNodeStateMachine, SettableFuture.create());
                             peerNodeStateMachine.appendFirst(runnable);
                         }
+                    } else {
+                        if (!peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.INSTALLSNAPSHOT)) {
+                            long nextPreLogIndex = replicatedLogResponse.getLastCommitIndex();
+                            //如果已经是在Snapshot中
+                            if (logService.hasInSnapshot(nextPreLogIndex)) {
+                                installSnapshot(peerRaftNode, peerNodeStateMachine, appendLogResult);
+                                return;
+                            } else {
+                                peerNodeStateMachine.setNextIndex(nextPreLogIndex + 1);
+                                Runnable runnable = prepareAppendLog(peerRaftNode, peerNodeStateMachine, SettableFuture.create());
+                                peerNodeStateMachine.appendFirst(runnable);
+                            }
+                        }
                     }
+                    appendLogResult.set(replicatedLogResponse.getSuccess());
                 }
-                appendLogResult.set(replicatedLogResponse.getSuccess());
+
+                @Override
+                public void onFailure(Throwable t) {
+                    log.error("fail appendLog to {}, errMsg={}", JSON.toJSONString(peerRaftNode), t.getMessage());
+                    if (replicatedLogRequest.getEntryCount() > 0) {
+                        peerNodeStateMachine.shrinkAppendBatch();
+                    }
+                    appendLogResult.set(Boolean.FALSE);
+                }
+            };
+            try {
+                log.info("send to {}, prevLogIndex={}, entries={}", peerRaftNode.getNodeId().getPeerId(), replicatedLogRequest.getPrevLogIndex(), replicatedLogRequest.getEntryCount());
+                Futures.addCallback(peerRaftNode.requestAppendLog(replicatedLogRequest), callback, RpcExecutors.commonExecutor());
             } catch (Exception e) {
-                appendLogResult.set(Boolean.FALSE);
-                log.error("fail appendLog to {}", JSON.toJSONString(peerRaftNode));
                 log.error("isConnectAlive={}", peerRaftNode.isConnectAlive());
-                log.error(e.getMessage(), e);
+                callback.onFailure(e);
             }
         };
     }
 
-    private Runnable prepareInstallSnapshot(PeerRaftNode peerRaftNode, PeerNodeStateMachine peerNodeStateMachine) {
-        return () -> {
+    /**
+     * 发snapshot会阻塞，放到SnapshotSender自己的线程池里，不占复制队列的线程
+     * 发完之后才完成appendLogResult，syncLog再发下一轮AppendLog
+     */
+    private void installSnapshot(PeerRaftNode peerRaftNode, PeerNodeStateMachine peerNodeStateMachine, SettableFuture<Boolean> appendLogResult) {
+        if (peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.INSTALLSNAPSHOT) || peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.PROBE)) {
+            appendLogResult.set(false);
+            return;
+        }
+        peerNodeStateMachine.setNodeStatus(PeerNodeStatus.INSTALLSNAPSHOT);
+        SnapshotSender.execute(() -> {
             try {
-                if (peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.INSTALLSNAPSHOT) || peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.PROBE)) {
-                    return;
-                }
-                peerNodeStateMachine.setNodeStatus(PeerNodeStatus.INSTALLSNAPSHOT);
                 Snapshot snapShot = logService.getSnapShot();
-                InstallSnapshotRequest installSnapShotRequest = new InstallSnapshotRequest();
-                installSnapShotRequest.setLeaderId(leaderNodeId);
-                installSnapShotRequest.setTerm(term);
-                installSnapShotRequest.setSnapshot(snapShot);
-                installSnapShotRequest.setLogEntry(logService.get(snapShot.getLastLogIndex()));
-                InstallSnapshotResponse installSnapshotResponse = peerRaftNode.getRaftService().requestInstallSnapShot(installSnapShotRequest);
+                InstallSnapshotResponse installSnapshotResponse = SnapshotSender.send(logService, snapShot, peerRaftNode.getRaftService(), leaderNodeId, term);
                 if (installSnapshotResponse.getSuccess()) {
-                    peerNodeStateMachine.setNodeStatus(PeerNodeStatus.PROBE);
                     peerNodeStateMachine.setNextIndex(snapShot.getLastLogIndex() + 1);
                     peerNodeStateMachine.setMatchIndex(snapShot.getLastLogIndex());
+                    peerNodeStateMachine.setNodeStatus(PeerNodeStatus.PROBE);
                 } else {
                     throw new IllegalStateException();
                 }
             } catch (Exception e) {
                 log.error(e.getMessage());
+            } finally {
+                appendLogResult.set(false);
             }
-        };
+        });
     }
 
 
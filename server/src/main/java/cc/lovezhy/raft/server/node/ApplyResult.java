@@ -0,0 +1,83 @@
+package cc.lovezhy.raft.server.node;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import io.vertx.core.json.JsonObject;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Objects;
+
+/**
+ * OuterService.propose的结果
+ * <p>
+ * success为true表示日志已经commit并且在Leader上apply了，之后在Leader上读一定能读到
+ * success为false的时候index可能为-1，表示日志没有append；不为-1表示append了但是没有等到commit，这条日志之后仍然可能commit
+ */
+@Immutable
+public class ApplyResult {
+
+    private final boolean success;
+
+    private final long index;
+
+    private final long term;
+
+    private final String errMsg;
+
+    public static ApplyResult success(long index, long term) {
+        return new ApplyResult(true, index, term, null);
+    }
+
+    public static ApplyResult fail(String errMsg) {
+        return fail(-1, -1, errMsg);
+    }
+
+    public static ApplyResult fail(long index, long term, String errMsg) {
+        Preconditions.checkNotNull(errMsg);
+        return new ApplyResult(false, index, term, errMsg);
+    }
+
+    private ApplyResult(boolean success, long index, long term, String errMsg) {
+        this.success = success;
+        this.index = index;
+        this.term = term;
+        this.errMsg = errMsg;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public long getIndex() {
+        return index;
+    }
+
+    public long getTerm() {
+        return term;
+    }
+
+    public String getErrMsg() {
+        return errMsg;
+    }
+
+    public JsonObject toJson() {
+        JsonObject jsonObject = new JsonObject().put("success", success);
+        if (index >= 0) {
+            jsonObject.put("index", index).put("term", term);
+        }
+        if (Objects.nonNull(errMsg)) {
+            jsonObject.put("errMsg", errMsg);
+        }
+        return jsonObject;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("success", success)
+                .add("index", index)
+                .add("term", term)
+                .add("errMsg", errMsg)
+                .toString();
+    }
+}
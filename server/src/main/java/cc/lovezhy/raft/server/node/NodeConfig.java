@@ -8,6 +8,11 @@ public class NodeConfig {
     private NodeId nodeId;
     private EndPoint endPoint;
 
+    /**
+     * Learner只接收日志，不参与选举，也不算进多数派
+     */
+    private boolean learner;
+
     public static NodeConfig create(NodeId nodeId, EndPoint endPoint) {
         NodeConfig config = new NodeConfig();
         config.nodeId = nodeId;
@@ -15,6 +20,12 @@ public class NodeConfig {
         return config;
     }
 
+    public static NodeConfig createLearner(NodeId nodeId, EndPoint endPoint) {
+        NodeConfig config = create(nodeId, endPoint);
+        config.learner = true;
+        return config;
+    }
+
     private NodeConfig() {}
 
 
@@ -26,18 +37,30 @@ public class NodeConfig {
         return endPoint;
     }
 
+    public boolean isLearner() {
+        return learner;
+    }
+
+    /**
+     * Learner追上日志之后提升为Voter
+     */
+    public NodeConfig toVoter() {
+        return create(nodeId, endPoint);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         NodeConfig config = (NodeConfig) o;
-        return Objects.equal(nodeId, config.nodeId) &&
+        return learner == config.learner &&
+                Objects.equal(nodeId, config.nodeId) &&
                 Objects.equal(endPoint, config.endPoint);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(nodeId, endPoint);
+        return Objects.hashCode(nodeId, endPoint, learner);
     }
 
     @Override
@@ -45,6 +68,7 @@ public class NodeConfig {
         return MoreObjects.toStringHelper(this)
                 .add("nodeId", nodeId)
                 .add("endPoint", endPoint)
+                .add("learner", learner)
                 .toString();
     }
 }
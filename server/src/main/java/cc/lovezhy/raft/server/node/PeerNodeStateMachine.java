@@ -1,20 +1,42 @@
 package cc.lovezhy.raft.server.node;
 
-import cc.lovezhy.raft.rpc.common.RpcExecutors;
-import com.google.common.collect.Maps;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
-import com.google.common.util.concurrent.SettableFuture;
-
 import java.io.Closeable;
-import java.util.Map;
-import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Leader眼中的一个Follower
+ * <p>
+ * NORMAL状态下AppendLog是流水线的，发送之后就乐观的推进nextIndex
+ * 在路上的请求数、日志条数、字节数都有上限，窗口满了就暂停，等响应回来再继续发，慢的Follower不会拖垮Leader
+ * 被拒绝或者超时之后回退nextIndex，进入PROBE状态，每次只发一个请求，直到成功再恢复流水线
+ * nextIndex和inflight相关的状态在发送线程和响应回调之间共享，需要持有this的锁
+ * <p>
+ * 一个AppendLog请求最多带MAX_APPEND_ENTRIES条日志，大小不超过appendBatchBytes
+ * appendBatchBytes根据RTT调整，响应快并且还有日志没带上就翻倍，响应慢或者超时就减半
+ * <p>
+ * 复制任务每次都从nextIndex开始发，所以队列里最多只留一个等待执行的复制任务，多次触发合并成一次
+ * 任务在所有Peer共用的线程池上串行执行，见ReplicationTaskQueue
+ */
 public class PeerNodeStateMachine implements Closeable {
 
+    public static final int MAX_INFLIGHT_APPEND_REQUEST = 4;
+
+    public static final int MAX_APPEND_ENTRIES = 512;
+
+    public static final long MIN_APPEND_BATCH_BYTES = 4 * 1024;
+
+    public static final long MAX_APPEND_BATCH_BYTES = 1024 * 1024;
+
+    public static final int MAX_INFLIGHT_APPEND_ENTRIES = MAX_INFLIGHT_APPEND_REQUEST * MAX_APPEND_ENTRIES;
+
+    public static final long MAX_INFLIGHT_APPEND_BYTES = MAX_INFLIGHT_APPEND_REQUEST * MAX_APPEND_BATCH_BYTES;
+
+    /**
+     * RPC超时是60ms，RTT超过这个值就认为一次带的太多了
+     */
+    public static final long TARGET_APPEND_RTT_MILLS = 20;
+
     public static PeerNodeStateMachine create(Long nextIndex) {
         return new PeerNodeStateMachine(nextIndex);
     }
@@ -22,57 +44,77 @@ public class PeerNodeStateMachine implements Closeable {
     private volatile Long nextIndex;
     private volatile Long matchIndex;
     private volatile PeerNodeStatus nodeStatus;
-    private LinkedBlockingDeque<Runnable> taskQueue;
-    private ListeningExecutorService taskExecutor;
-    private ExecutorService schedulerExecutor;
-
-    private Map<Integer, SettableFuture<Boolean>> appendLogIndexCompleteFuture = Maps.newConcurrentMap();
-    private volatile Integer maxWaitIndex = 1;
-    private volatile boolean shutdown = false;
-
-    private Runnable scheduleTask = () -> {
-        for (; ; ) {
-            Runnable task = null;
-            try {
-                task = taskQueue.take();
-            } catch (InterruptedException e) {
-                // ignore
-            }
-            if (Objects.isNull(task)) {
-                continue;
-            }
-            if (shutdown) {
-                break;
-            }
-            taskExecutor.submit(task).addListener(() -> {
-                SettableFuture<Boolean> voidSettableFuture = appendLogIndexCompleteFuture.get(matchIndex.intValue());
-                if (Objects.nonNull(voidSettableFuture) && !voidSettableFuture.isDone()) {
-                    appendLogIndexCompleteFuture.remove(matchIndex.intValue());
-                    voidSettableFuture.set(true);
-                }
-            }, RpcExecutors.commonExecutor());
-        }
-    };
+    private final ReplicationTaskQueue taskQueue = new ReplicationTaskQueue();
+
+    /**
+     * 还没有收到响应的AppendLog请求
+     */
+    private int inflightAppendRequests = 0;
+
+    private int inflightAppendEntries = 0;
+
+    private long inflightAppendBytes = 0;
+
+    /**
+     * 队列里是否已经有一个还没开始执行的复制任务
+     */
+    private final AtomicBoolean replicatePending = new AtomicBoolean(false);
+
+    /**
+     * 每次回退nextIndex加1，回退之前发出去的请求的失败响应直接忽略，避免重复回退
+     */
+    private long generation = 0;
+
+    private volatile long appendBatchBytes = 64 * 1024;
+
+    /**
+     * 最近一次AppendLog有没有收到响应，RPC失败的时候为false
+     */
+    private volatile boolean reachable = true;
+
+    /**
+     * 最近一次给这个Follower发AppendLog或者心跳的时间
+     */
+    private volatile long lastSendTime = 0;
+
+    /**
+     * 收到响应的请求里最晚的发送时间，System.nanoTime，还没有收到过响应的时候是Long.MIN_VALUE
+     * Follower是在发送之后才收到请求、重置选举超时的，所以Leader的租约从发送时间开始算
+     */
+    private final AtomicLong lastAckedSendNanos = new AtomicLong(Long.MIN_VALUE);
 
     private PeerNodeStateMachine(Long nextIndex) {
-        this.taskQueue = new LinkedBlockingDeque<>(10);
-        this.taskExecutor = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
-        this.schedulerExecutor = Executors.newSingleThreadExecutor();
         this.nextIndex = nextIndex;
         this.matchIndex = 0L;
         this.nodeStatus = PeerNodeStatus.NORMAL;
-        this.schedulerExecutor.execute(scheduleTask);
     }
 
     /**
      * 把任务抢占到队列开头，优先执行
      */
     public void appendFirst(Runnable task) {
-        taskQueue.addFirst(task);
+        taskQueue.offerFirst(task);
     }
 
     public void append(Runnable task) {
-        taskQueue.add(task);
+        taskQueue.offer(task);
+    }
+
+    /**
+     * 提交一个复制任务，队列里已经有还没执行的复制任务的时候直接合并
+     *
+     * @return 是否真的进了队列
+     */
+    public boolean replicate(Runnable replicateTask) {
+        if (!replicatePending.compareAndSet(false, true)) {
+            return false;
+        }
+        taskQueue.offer(() -> {
+            //先清掉标记再执行，执行过程中新的触发不会丢
+            replicatePending.set(false);
+            replicateTask.run();
+        });
+        return true;
     }
 
     public Long getNextIndex() {
@@ -103,26 +145,159 @@ public class PeerNodeStateMachine implements Closeable {
         return taskQueue.isEmpty();
     }
 
-    public SettableFuture<Boolean> setCompleteFuture(Integer notifyIndex) {
-        if (notifyIndex < maxWaitIndex) {
-            SettableFuture<Boolean> settableFuture = SettableFuture.create();
-            return settableFuture;
+    /**
+     * NORMAL状态下窗口没满就可以发，PROBE状态下只允许一个
+     */
+    public synchronized boolean canSendAppendLog() {
+        switch (nodeStatus) {
+            case NORMAL:
+                return inflightAppendRequests < MAX_INFLIGHT_APPEND_REQUEST
+                        && inflightAppendEntries < MAX_INFLIGHT_APPEND_ENTRIES
+                        && inflightAppendBytes < MAX_INFLIGHT_APPEND_BYTES;
+            case PROBE:
+                return inflightAppendRequests == 0;
+            default:
+                return false;
         }
-        SettableFuture<Boolean> settableFuture = SettableFuture.create();
-        maxWaitIndex = maxWaitIndex > notifyIndex ? maxWaitIndex : notifyIndex;
-        appendLogIndexCompleteFuture.put(notifyIndex, settableFuture);
-        return settableFuture;
     }
 
-    public boolean needSendAppendLogImmediately() {
-        return maxWaitIndex > matchIndex;
+    /**
+     * 下一个请求最多带多少条日志，不超过窗口剩下的部分
+     */
+    public synchronized int getSendableEntries() {
+        return Math.max(Math.min(MAX_APPEND_ENTRIES, MAX_INFLIGHT_APPEND_ENTRIES - inflightAppendEntries), 1);
+    }
+
+    /**
+     * 下一个请求最多带多少字节，不超过窗口剩下的部分
+     */
+    public synchronized long getSendableBytes() {
+        return Math.max(Math.min(appendBatchBytes, MAX_INFLIGHT_APPEND_BYTES - inflightAppendBytes), MIN_APPEND_BATCH_BYTES);
+    }
+
+    /**
+     * 请求发出去之后调用，乐观的认为nextIndex之前的日志都会被接受
+     *
+     * @param entries 这个请求带的日志条数
+     * @param bytes   这个请求带的日志大小
+     * @return 响应回来的时候交还给onAppendLogSuccess或者onAppendLogFail
+     */
+    public synchronized Inflight onAppendLogSent(long nextIndex, int entries, long bytes) {
+        inflightAppendRequests++;
+        inflightAppendEntries += entries;
+        inflightAppendBytes += bytes;
+        this.nextIndex = Math.max(this.nextIndex, nextIndex);
+        this.lastSendTime = System.currentTimeMillis();
+        return new Inflight(generation, entries, bytes);
+    }
+
+    private void release(Inflight inflight) {
+        inflightAppendRequests = Math.max(inflightAppendRequests - 1, 0);
+        inflightAppendEntries = Math.max(inflightAppendEntries - inflight.entries, 0);
+        inflightAppendBytes = Math.max(inflightAppendBytes - inflight.bytes, 0);
+    }
+
+    public long getAppendBatchBytes() {
+        return appendBatchBytes;
+    }
+
+    /**
+     * @param rttMills  这个请求的RTT
+     * @param truncated 这个请求是否因为大小限制没有带上所有的日志
+     */
+    public synchronized void adjustAppendBatch(long rttMills, boolean truncated) {
+        if (rttMills > TARGET_APPEND_RTT_MILLS) {
+            shrinkAppendBatch();
+        } else if (truncated) {
+            appendBatchBytes = Math.min(appendBatchBytes * 2, MAX_APPEND_BATCH_BYTES);
+        }
+    }
+
+    public synchronized void shrinkAppendBatch() {
+        appendBatchBytes = Math.max(appendBatchBytes / 2, MIN_APPEND_BATCH_BYTES);
+    }
+
+    /**
+     * @param lastIndex 这个请求中最后一条日志的位置
+     */
+    public synchronized void onAppendLogSuccess(Inflight inflight, long lastIndex) {
+        release(inflight);
+        if (lastIndex > matchIndex) {
+            setMatchIndex(lastIndex);
+        }
+        if (nextIndex <= lastIndex) {
+            nextIndex = lastIndex + 1;
+        }
+        if (nodeStatus == PeerNodeStatus.PROBE) {
+            nodeStatus = PeerNodeStatus.NORMAL;
+        }
+    }
+
+    /**
+     * 请求被拒绝或者超时
+     *
+     * @param inflight    发送时onAppendLogSent的返回值
+     * @param rewindIndex 回退到的nextIndex
+     * @return 是否回退了，同一次回退之前发出去的请求只会回退一次
+     */
+    public synchronized boolean onAppendLogFail(Inflight inflight, long rewindIndex) {
+        release(inflight);
+        if (inflight.generation != generation || nodeStatus == PeerNodeStatus.INSTALLSNAPSHOT) {
+            return false;
+        }
+        generation++;
+        nextIndex = Math.max(rewindIndex, matchIndex + 1);
+        nodeStatus = PeerNodeStatus.PROBE;
+        return true;
+    }
+
+    public void onHeartbeatSent() {
+        this.lastSendTime = System.currentTimeMillis();
+    }
+
+    /**
+     * intervalMills之内发过AppendLog，Follower已经知道Leader还活着，不用再发心跳
+     */
+    public boolean needHeartbeat(long intervalMills) {
+        return System.currentTimeMillis() - lastSendTime >= intervalMills;
+    }
+
+    public void onAcked(long sendNanos) {
+        lastAckedSendNanos.accumulateAndGet(sendNanos, Math::max);
+    }
+
+    public long getLastAckedSendNanos() {
+        return lastAckedSendNanos.get();
+    }
+
+    public boolean isReachable() {
+        return reachable;
+    }
+
+    public void setReachable(boolean reachable) {
+        this.reachable = reachable;
+    }
+
+    /**
+     * 一个在路上的AppendLog请求
+     */
+    public static class Inflight {
+
+        private final long generation;
+
+        private final int entries;
+
+        private final long bytes;
+
+        private Inflight(long generation, int entries, long bytes) {
+            this.generation = generation;
+            this.entries = entries;
+            this.bytes = bytes;
+        }
     }
 
     @Override
     public void close() {
-        shutdown = true;
-        taskQueue.clear();
-        taskExecutor.shutdown();
-        schedulerExecutor.shutdown();
+        taskQueue.close();
     }
 }
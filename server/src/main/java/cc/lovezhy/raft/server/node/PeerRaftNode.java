@@ -1,12 +1,17 @@
 package cc.lovezhy.raft.server.node;
 
 import cc.lovezhy.raft.rpc.EndPoint;
+import cc.lovezhy.raft.rpc.RpcContext;
 import cc.lovezhy.raft.rpc.RpcClient;
 import cc.lovezhy.raft.rpc.RpcClientOptions;
 import cc.lovezhy.raft.rpc.common.RpcExecutors;
 import cc.lovezhy.raft.rpc.protocal.RpcRequestType;
 import cc.lovezhy.raft.server.service.RaftService;
 import cc.lovezhy.raft.server.service.model.ConnectRequest;
+import cc.lovezhy.raft.server.service.model.ReadIndexRequest;
+import cc.lovezhy.raft.server.service.model.ReadIndexResponse;
+import cc.lovezhy.raft.server.service.model.ReplicatedLogRequest;
+import cc.lovezhy.raft.server.service.model.ReplicatedLogResponse;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
@@ -29,6 +34,11 @@ public class PeerRaftNode implements Closeable {
 
     private RpcClientOptions rpcClientOptions;
 
+    /**
+     * 重连之后rpcClient会换掉，listener在这里保存一份
+     */
+    private volatile Runnable writableListener;
+
     public PeerRaftNode(NodeId nodeId, EndPoint endPoint) {
         this(nodeId, endPoint, true);
     }
@@ -42,6 +52,9 @@ public class PeerRaftNode implements Closeable {
         rpcClientOptions.defineMethodRequestType("requestPreVote", RpcRequestType.ASYNC);
         rpcClientOptions.defineMethodRequestType("requestVote", RpcRequestType.ASYNC);
         rpcClientOptions.defineMethodRequestType("requestConnect", RpcRequestType.ONE_WAY);
+        //AppendLog是流水线发送的，不能阻塞发送线程
+        rpcClientOptions.defineMethodRequestType("requestAppendLog", RpcRequestType.ASYNC);
+        rpcClientOptions.defineMethodRequestType("requestReadIndex", RpcRequestType.ASYNC);
         rpcClientOptions.setOnNet(isOnNet);
         this.rpcClientOptions = rpcClientOptions;
     }
@@ -59,6 +72,7 @@ public class PeerRaftNode implements Closeable {
             log.debug("start connect, clientNodeId={}, clientNodeId={}", clientNodeId, nodeId);
             this.rpcClient = RpcClient.create(RaftService.class, endPoint, rpcClientOptions);
             this.raftService = rpcClient.getInstance();
+            this.rpcClient.setWritableListener(writableListener);
             SettableFuture<Void> settableFuture = SettableFuture.create();
             this.rpcClient.connect(settableFuture);
             settableFuture.addListener(() -> {
@@ -74,10 +88,40 @@ public class PeerRaftNode implements Closeable {
         return rpcClient.isConnectAlive();
     }
 
+    /**
+     * 连接的写缓冲积压太多的时候为false，这时候不应该再发AppendLog
+     */
+    public boolean isWritable() {
+        return Objects.isNull(rpcClient) || rpcClient.isWritable();
+    }
+
+    /**
+     * 连接从不可写恢复到可写的时候回调
+     */
+    public void setWritableListener(Runnable writableListener) {
+        this.writableListener = writableListener;
+        if (Objects.nonNull(rpcClient)) {
+            rpcClient.setWritableListener(writableListener);
+        }
+    }
+
     public RaftService getRaftService() {
         return raftService;
     }
 
+    /**
+     * requestAppendLog是ASYNC的，直接调用getRaftService().requestAppendLog只会返回null
+     */
+    public SettableFuture<ReplicatedLogResponse> requestAppendLog(ReplicatedLogRequest replicatedLogRequest) {
+        raftService.requestAppendLog(replicatedLogRequest);
+        return RpcContext.getContextFuture();
+    }
+
+    public SettableFuture<ReadIndexResponse> requestReadIndex(ReadIndexRequest readIndexRequest) {
+        raftService.requestReadIndex(readIndexRequest);
+        return RpcContext.getContextFuture();
+    }
+
 
     public RpcClientOptions getRpcClientOptions() {
         return rpcClientOptions;
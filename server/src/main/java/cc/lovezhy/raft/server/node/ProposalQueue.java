@@ -0,0 +1,126 @@
+package cc.lovezhy.raft.server.node;
+
+import cc.lovezhy.raft.server.log.Command;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Leader上的写请求队列，group commit
+ * <p>
+ * 并发的写请求先进队列，攒够MAX_BATCH_SIZE个或者等够BATCH_WINDOW_MICROS之后，一起append到日志里，一轮AppendLog复制出去
+ * 每个请求拿到的future在自己那条日志commit之后完成
+ */
+class ProposalQueue implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ProposalQueue.class);
+
+    static final int MAX_BATCH_SIZE = 256;
+
+    static final long BATCH_WINDOW_MICROS = 500;
+
+    /**
+     * 队列满了直接拒绝，不让请求无限堆积
+     */
+    static final int MAX_PENDING_PROPOSALS = 16 * 1024;
+
+    private final LinkedBlockingQueue<Proposal> queue = new LinkedBlockingQueue<>(MAX_PENDING_PROPOSALS);
+    private final ExecutorService executor;
+    private final Consumer<List<Proposal>> batchConsumer;
+    private volatile boolean shutdown = false;
+
+    ProposalQueue(Consumer<List<Proposal>> batchConsumer) {
+        Preconditions.checkNotNull(batchConsumer);
+        this.batchConsumer = batchConsumer;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "raft-proposal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.execute(this::runBatches);
+    }
+
+    private void runBatches() {
+        while (!shutdown) {
+            List<Proposal> batch = Lists.newArrayList();
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(BATCH_WINDOW_MICROS);
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+                    long waitNanos = deadline - System.nanoTime();
+                    if (batch.size() >= MAX_BATCH_SIZE || waitNanos <= 0) {
+                        break;
+                    }
+                    Proposal proposal = queue.poll(waitNanos, TimeUnit.NANOSECONDS);
+                    if (proposal == null) {
+                        break;
+                    }
+                    batch.add(proposal);
+                }
+            } catch (InterruptedException e) {
+                //ignore
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+            try {
+                batchConsumer.accept(batch);
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+                batch.forEach(proposal -> proposal.fail(e.getMessage()));
+            }
+        }
+    }
+
+    CompletableFuture<ApplyResult> submit(Command command) {
+        Proposal proposal = new Proposal(command);
+        if (shutdown || !queue.offer(proposal)) {
+            proposal.fail("too many proposals");
+        }
+        return proposal.getFuture();
+    }
+
+    @Override
+    public void close() {
+        shutdown = true;
+        executor.shutdownNow();
+        for (Proposal proposal = queue.poll(); proposal != null; proposal = queue.poll()) {
+            proposal.fail("closed");
+        }
+    }
+
+    static class Proposal {
+
+        private final Command command;
+
+        private final CompletableFuture<ApplyResult> future = new CompletableFuture<>();
+
+        private Proposal(Command command) {
+            Preconditions.checkNotNull(command);
+            this.command = command;
+        }
+
+        Command getCommand() {
+            return command;
+        }
+
+        CompletableFuture<ApplyResult> getFuture() {
+            return future;
+        }
+
+        void fail(String errMsg) {
+            future.complete(ApplyResult.fail(errMsg));
+        }
+    }
+}
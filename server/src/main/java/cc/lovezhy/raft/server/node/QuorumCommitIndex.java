@@ -0,0 +1,47 @@
+package cc.lovezhy.raft.server.node;
+
+import cc.lovezhy.raft.server.ClusterConfig;
+import com.google.common.collect.Lists;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Leader推进commitIndex的规则
+ * <p>
+ * 大多数Voter都已经复制到的位置就是新的commitIndex，Leader自己算作已经复制到lastPersistedLogIndex，还没刷盘的日志不算
+ * 只能直接commit当前term的日志，之前term的日志跟着一起commit
+ */
+final class QuorumCommitIndex {
+
+    private QuorumCommitIndex() {
+    }
+
+    /**
+     * @param peerMatchIndexes 其他节点的matchIndex，Learner会被排除
+     * @param termOf           根据index取日志的term
+     * @return 新的commitIndex，不能推进的时候返回lastCommitIndex
+     */
+    static long compute(ClusterConfig clusterConfig, long leaderPersistedIndex, Map<NodeId, Long> peerMatchIndexes,
+                        long lastCommitIndex, LongUnaryOperator termOf, long leaderTerm) {
+        int quorum = clusterConfig.getQuorum();
+        List<Long> matchIndexes = Lists.newArrayList(leaderPersistedIndex);
+        //Learner不算进多数派
+        peerMatchIndexes.forEach((nodeId, matchIndex) -> {
+            if (clusterConfig.isVoter(nodeId)) {
+                matchIndexes.add(matchIndex);
+            }
+        });
+        if (matchIndexes.size() < quorum) {
+            return lastCommitIndex;
+        }
+        matchIndexes.sort(Comparator.reverseOrder());
+        long quorumMatchIndex = matchIndexes.get(quorum - 1);
+        if (quorumMatchIndex > lastCommitIndex && termOf.applyAsLong(quorumMatchIndex) == leaderTerm) {
+            return quorumMatchIndex;
+        }
+        return lastCommitIndex;
+    }
+}
@@ -4,9 +4,14 @@ import cc.lovezhy.raft.rpc.EndPoint;
 import cc.lovezhy.raft.rpc.RpcContext;
 import cc.lovezhy.raft.rpc.RpcServer;
 import cc.lovezhy.raft.rpc.common.RpcExecutors;
+import cc.lovezhy.raft.server.BinaryStateMachine;
 import cc.lovezhy.raft.server.ClusterConfig;
 import cc.lovezhy.raft.server.DefaultStateMachine;
+import cc.lovezhy.raft.server.DiskStateMachine;
 import cc.lovezhy.raft.server.NodeSlf4jHelper;
+import cc.lovezhy.raft.server.OrderedStateMachine;
+import cc.lovezhy.raft.server.StateMachine;
+import cc.lovezhy.raft.server.StateMachineType;
 import cc.lovezhy.raft.server.log.*;
 import cc.lovezhy.raft.server.log.exception.HasCompactException;
 import cc.lovezhy.raft.server.service.RaftService;
@@ -25,20 +30,31 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import io.netty.util.Timeout;
 import io.vertx.core.json.JsonObject;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -52,6 +68,28 @@ public class RaftNode implements RaftService {
 
     private final Logger log = LoggerFactory.getLogger(RaftNode.class);
 
+    private static final AtomicInteger electionThreadCounter = new AtomicInteger(0);
+
+    /**
+     * 所有节点共用的选举线程，只在发起选举的时候占用，空闲一段时间之后回收
+     */
+    private static final ExecutorService ELECTION_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "raft-election-" + electionThreadCounter.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final AtomicInteger logFlushThreadCounter = new AtomicInteger(0);
+
+    /**
+     * Follower收到日志之后在这里刷盘，不占用RPC的IO线程
+     */
+    private static final ExecutorService LOG_FLUSH_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "raft-log-flush-" + logFlushThreadCounter.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private NodeId nodeId;
 
     /**
@@ -78,6 +116,13 @@ public class RaftNode implements RaftService {
 
     private AtomicLong heartbeatTimeRecorder = new AtomicLong();
 
+    /**
+     * Follower最近一次收到Leader的AppendLog的时间，以及其中最大的leaderCommit，有界陈旧读用
+     * 和heartbeatTimeRecorder不同，投票的时候不会更新
+     */
+    private AtomicLong leaderContactTimeRecorder = new AtomicLong();
+    private AtomicLong leaderCommitRecorder = new AtomicLong();
+
     /**
      * 为其他的节点提供Rpc服务
      */
@@ -104,12 +149,38 @@ public class RaftNode implements RaftService {
      */
     private TickManager tickManager = new TickManager();
 
+    /**
+     * 接收Leader分块发来的snapshot
+     */
+    private final SnapshotReceiver snapshotReceiver = new SnapshotReceiver();
+
     private OuterService outerService;
 
     private EventRecorder eventRecorder;
 
     private volatile boolean stopped = false;
 
+    /**
+     * 状态机的实现
+     */
+    private StateMachineType stateMachineType = StateMachineType.DEFAULT;
+
+    /**
+     * DiskStateMachine的数据目录，为空的时候放在临时目录下
+     */
+    private String stateMachineDir;
+
+    /**
+     * 大于1的时候按key分区并行apply日志
+     */
+    private int applyParallelism = 1;
+
+    /**
+     * 开启之后Leader在租约内直接读本地，不用心跳确认
+     * 作为代价，Follower在最小选举超时之内收到过Leader的请求就不投票，整个集群要一起开启
+     */
+    private volatile boolean leaderLease = false;
+
     public RaftNode(NodeId nodeId, EndPoint endPoint, ClusterConfig clusterConfig, List<PeerRaftNode> peerRaftNodes) {
         Preconditions.checkNotNull(nodeId);
         Preconditions.checkNotNull(endPoint);
@@ -143,12 +214,50 @@ public class RaftNode implements RaftService {
         return endPoint;
     }
 
+    public void setStateMachineType(StateMachineType stateMachineType) {
+        Preconditions.checkNotNull(stateMachineType);
+        this.stateMachineType = stateMachineType;
+    }
+
+    public void setStateMachineDir(String stateMachineDir) {
+        Preconditions.checkNotNull(stateMachineDir);
+        this.stateMachineDir = stateMachineDir;
+    }
+
+    public void setApplyParallelism(int applyParallelism) {
+        Preconditions.checkState(applyParallelism >= 1, "applyParallelism should be greater than 0");
+        this.applyParallelism = applyParallelism;
+    }
+
+    public void setLeaderLease(boolean leaderLease) {
+        this.leaderLease = leaderLease;
+    }
+
+    private StateMachine newStateMachine() {
+        switch (stateMachineType) {
+            case DEFAULT:
+                return new DefaultStateMachine();
+            case BINARY:
+                return new BinaryStateMachine();
+            case ORDERED:
+                return new OrderedStateMachine();
+            case DISK: {
+                String directory = Objects.nonNull(stateMachineDir) ? stateMachineDir : System.getProperty("java.io.tmpdir") + File.separator + "raft";
+                return new DiskStateMachine(directory + File.separator + DiskStateMachine.DATA_DIR_PREFIX + nodeId.getPeerId());
+            }
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
     public void init() {
         NodeSlf4jHelper.initialize(nodeId);
         NodeSlf4jHelper.changeObjectLogger(nodeId, this);
         tickManager.init();
         currentTerm = 0L;
         heartbeatTimeRecorder.set(0L);
+        leaderContactTimeRecorder.set(0L);
+        leaderCommitRecorder.set(0L);
         //start rpc server
         rpcServer = new RpcServer();
         NodeSlf4jHelper.changeObjectLogger(nodeId, rpcServer);
@@ -165,11 +274,15 @@ public class RaftNode implements RaftService {
         httpService.createHttpServer();
         peerRaftNodes.forEach(peerRaftNode -> peerRaftNode.connect(this.nodeId));
         nodeScheduler.changeNodeStatus(NodeStatus.FOLLOWER);
-        tickManager.tickElectionTimeOut();
         eventRecorder = new EventRecorder(log);
-        logService = new LogServiceImpl(new DefaultStateMachine(), StorageType.MEMORY, eventRecorder);
+        if (Objects.nonNull(logService)) {
+            logService.close();
+        }
+        logService = new LogServiceImpl(newStateMachine(), StorageType.MEMORY, eventRecorder, applyParallelism);
         NodeSlf4jHelper.changeObjectLogger(nodeId, logService);
         stopped = false;
+        //stopped清掉之后再tick，重启的节点才能挂上选举超时
+        tickManager.tickElectionTimeOut();
     }
 
     public void init1(LogService logService, Long currentTerm, NodeId voteFor) {
@@ -178,6 +291,8 @@ public class RaftNode implements RaftService {
         tickManager.init();
         this.currentTerm = currentTerm;
         heartbeatTimeRecorder.set(0L);
+        leaderContactTimeRecorder.set(0L);
+        leaderCommitRecorder.set(0L);
         //start rpc server
         rpcServer = new RpcServer();
         NodeSlf4jHelper.changeObjectLogger(nodeId, rpcServer);
@@ -194,11 +309,12 @@ public class RaftNode implements RaftService {
         httpService.createHttpServer();
         peerRaftNodes.forEach(peerRaftNode -> peerRaftNode.connect(this.nodeId));
         nodeScheduler.changeNodeStatus(NodeStatus.FOLLOWER);
-        tickManager.tickElectionTimeOut();
         eventRecorder = new EventRecorder(log);
         this.logService = logService;
         NodeSlf4jHelper.changeObjectLogger(nodeId, logService);
         stopped = false;
+        //stopped清掉之后再tick，重启的节点才能挂上选举超时
+        tickManager.tickElectionTimeOut();
     }
 
 
@@ -211,8 +327,8 @@ public class RaftNode implements RaftService {
             return;
         }
         AtomicInteger preVotedGrantedCount = new AtomicInteger(1);
-        VoteAction voteAction = new VoteAction(clusterConfig.getNodeCount() / 2, clusterConfig.getNodeCount() / 2 + 1);
-        peerRaftNodes.forEach(peerRaftNode -> {
+        VoteAction voteAction = new VoteAction(clusterConfig.getVoterCount() / 2, clusterConfig.getQuorum());
+        voterPeers().forEach(peerRaftNode -> {
             try {
                 VoteRequest voteRequest = new VoteRequest();
                 voteRequest.setTerm(voteTerm);
@@ -256,7 +372,7 @@ public class RaftNode implements RaftService {
             }
         });
         voteAction.await();
-        if (preVotedGrantedCount.get() > clusterConfig.getNodeCount() / 2) {
+        if (preVotedGrantedCount.get() >= clusterConfig.getQuorum()) {
             eventRecorder.add(EventRecorder.Event.PRE_VOTE, String.format("preVote success, voteTerm=%d", voteTerm));
             voteForLeader(voteTerm);
         } else {
@@ -277,8 +393,8 @@ public class RaftNode implements RaftService {
         long nextWaitTimeOut = tickManager.tickElectionTimeOut();
         //初始值为1，把自己加进去
         AtomicInteger votedCount = new AtomicInteger(1);
-        VoteAction voteAction = new VoteAction(clusterConfig.getNodeCount() / 2, clusterConfig.getNodeCount() / 2 + 1);
-        peerRaftNodes.forEach(peerRaftNode -> {
+        VoteAction voteAction = new VoteAction(clusterConfig.getVoterCount() / 2, clusterConfig.getQuorum());
+        voterPeers().forEach(peerRaftNode -> {
             try {
                 VoteRequest voteRequest = new VoteRequest();
                 voteRequest.setTerm(currentTerm);
@@ -336,7 +452,8 @@ public class RaftNode implements RaftService {
                     log.info("be the leader success, currentTerm={}", voteTerm);
                     peerNodeScheduler = new PeerNodeScheduler();
                     peerNodeScheduler.tickHeartBeat();
-                    outerService.appendLog(LogConstants.getDummyCommand());
+                    //已经持有outerService的锁了，不能走ProposalQueue
+                    outerService.appendLog(LogConstants.getDummyCommand(), true);
                 } else {
                     eventRecorder.add(EventRecorder.Event.VOTE, String.format("be leader fail, term =  [%d]", voteTerm));
                     log.debug("be the leader fail, currentTerm={}", voteTerm);
@@ -348,6 +465,47 @@ public class RaftNode implements RaftService {
         }
     }
 
+    /**
+     * 开启租约的时候，最小选举超时之内收到过Leader的请求，Leader的租约可能还没过期，不能帮别人当选
+     */
+    private boolean isInLeaderLease() {
+        return leaderLease && !nodeScheduler.isLeader() && !nodeScheduler.isLoseHeartbeat(MIN_ELECTION_TIMEOUT);
+    }
+
+    /**
+     * 选举只需要问Voter，Learner的票不算数
+     */
+    private List<PeerRaftNode> voterPeers() {
+        ClusterConfig clusterConfig = this.clusterConfig;
+        return peerRaftNodes.stream().filter(peerRaftNode -> clusterConfig.isVoter(peerRaftNode.getNodeId())).collect(Collectors.toList());
+    }
+
+    /**
+     * Follower的线性一致读，Leader确认身份之后把commitIndex给Follower，Follower自己等apply
+     * 心跳确认要等一轮RPC，不在RPC线程里等，这一轮确认完成之后再把结果写回去，最多等到READ_INDEX_TIMEOUT
+     */
+    @Override
+    public ReadIndexResponse requestReadIndex(ReadIndexRequest readIndexRequest) {
+        Long term = currentTerm;
+        PeerNodeScheduler scheduler = peerNodeScheduler;
+        if (!nodeScheduler.isLeader() || Objects.isNull(scheduler)) {
+            return new ReadIndexResponse(term, false, null);
+        }
+        SettableFuture<ReadIndexResponse> response = RpcContext.deferResponse();
+        //最多等READ_INDEX_TIMEOUT，再晚Follower那边已经超时了
+        Timeout timeout = TimeCountDownUtil.newTimeout(() -> response.set(new ReadIndexResponse(term, false, null)), READ_INDEX_TIMEOUT, DEFAULT_TIME_UNIT);
+        scheduler.confirmReadIndex().whenComplete((readIndex, t) -> {
+            timeout.cancel();
+            if (Objects.nonNull(t)) {
+                log.info("fail readIndex from {}, errMsg={}", readIndexRequest.getNodeId(), t.getMessage());
+                response.set(new ReadIndexResponse(term, false, null));
+            } else {
+                response.set(new ReadIndexResponse(term, true, readIndex));
+            }
+        });
+        return null;
+    }
+
     @Override
     public void requestConnect(ConnectRequest connectRequest) {
         NodeId requestNodeId = connectRequest.getNodeId();
@@ -362,6 +520,9 @@ public class RaftNode implements RaftService {
     public VoteResponse requestPreVote(VoteRequest voteRequest) {
         log.info("receive preVote, voteRequest={}", JSON.toJSONString(voteRequest));
         Long term = currentTerm;
+        if (clusterConfig.isLearner(nodeId) || isInLeaderLease()) {
+            return new VoteResponse(term, false);
+        }
         if (term >= voteRequest.getTerm()) {
             VoteResponse voteResponse = new VoteResponse(term, false);
             log.info("response preVote, voteResponse={}", voteResponse);
@@ -378,6 +539,10 @@ public class RaftNode implements RaftService {
     @Override
     public VoteResponse requestVote(VoteRequest voteRequest) {
         Long term = currentTerm;
+        //Learner不投票
+        if (clusterConfig.isLearner(nodeId) || isInLeaderLease()) {
+            return new VoteResponse(term, false);
+        }
         if (term >= voteRequest.getTerm()) {
             return new VoteResponse(term, false);
         }
@@ -430,12 +595,16 @@ public class RaftNode implements RaftService {
     }
 
     private ReplicatedLogResponse appendLog(ReplicatedLogRequest replicatedLogRequest) {
+        leaderContactTimeRecorder.set(System.currentTimeMillis());
+        leaderCommitRecorder.accumulateAndGet(replicatedLogRequest.getLeaderCommit(), Math::max);
         try {
             log.info("prevLogIndex={}, LogEntry={}", replicatedLogRequest.getPrevLogIndex(), replicatedLogRequest.getEntries());
             LogEntry logEntry = logService.get(replicatedLogRequest.getPrevLogIndex());
             log.info("currentNode entry={}", JSON.toJSONString(logEntry));
             if (Objects.isNull(logEntry)) {
-                return new ReplicatedLogResponse(replicatedLogRequest.getTerm(), false, logService.getLastCommitLogIndex());
+                ReplicatedLogResponse replicatedLogResponse = new ReplicatedLogResponse(replicatedLogRequest.getTerm(), false, logService.getLastCommitLogIndex());
+                replicatedLogResponse.setConflictIndex(logService.getLastLogIndex() + 1);
+                return replicatedLogResponse;
             }
             boolean isSameTerm;
             isSameTerm = logEntry.getTerm().equals(replicatedLogRequest.getPrevLogTerm());
@@ -445,6 +614,8 @@ public class RaftNode implements RaftService {
                 for (LogEntry needAppendLogEntry : logEntries) {
                     switch (needAppendLogEntry.getCommand().type()) {
                         case DEFAULT:
+                        case BINARY:
+                        case BATCH:
                             break;
                         case CLUSTER_CONF: {
                             ClusterConfCommand clusterConfCommand = ((ClusterConfCommand) needAppendLogEntry.getCommand());
@@ -453,13 +624,24 @@ public class RaftNode implements RaftService {
                         }
                     }
                 }
-                logService.commit(replicatedLogRequest.getLeaderCommit());
-            } else {
-                try {
-                    log.info("not isSameTerm");
-                } catch (Exception e) {
-                    log.info("hasCompact, errMsg={}", e.getMessage());
+                //只能commit和Leader确认过一致的日志，后面的可能是旧Leader留下来的
+                long lastIndex = replicatedLogRequest.getPrevLogIndex() + logEntries.size();
+                logService.commit(Math.min(replicatedLogRequest.getLeaderCommit(), lastIndex));
+                //刷盘之后才能告诉Leader已经复制了
+                if (logService.getLastPersistedLogIndex() < lastIndex) {
+                    if (logService.isPersistent()) {
+                        long lastTerm = logEntries.isEmpty() ? replicatedLogRequest.getPrevLogTerm() : logEntries.get(logEntries.size() - 1).getTerm();
+                        return flushThenResponse(replicatedLogRequest.getTerm(), lastIndex, lastTerm);
+                    }
+                    //不用写盘的时候直接在这里推进，换线程反而多一次延迟
+                    logService.flush();
                 }
+            } else {
+                log.info("not isSameTerm");
+                ReplicatedLogResponse replicatedLogResponse = new ReplicatedLogResponse(replicatedLogRequest.getTerm(), false, logService.getLastCommitLogIndex());
+                replicatedLogResponse.setConflictTerm(logEntry.getTerm());
+                replicatedLogResponse.setConflictIndex(logService.getFirstIndexOfTerm(replicatedLogRequest.getPrevLogIndex()));
+                return replicatedLogResponse;
             }
             /**
              * 因为可能是还在seek日志在哪儿的阶段，有的日志是需要被覆盖的，而commit之后就不允许修改了，
@@ -467,13 +649,38 @@ public class RaftNode implements RaftService {
              */
 //            logService.commit(replicatedLogRequest.getLeaderCommit());
             log.info("/appendLog, isSameTerm={}", isSameTerm);
-            return new ReplicatedLogResponse(replicatedLogRequest.getTerm(), isSameTerm, logService.getLastCommitLogIndex());
+            return new ReplicatedLogResponse(replicatedLogRequest.getTerm(), true, logService.getLastCommitLogIndex());
         } catch (HasCompactException e) {
             log.info("hasCompact, errMsg={}", e.getMessage());
             return new ReplicatedLogResponse(replicatedLogRequest.getTerm(), true, logService.getLastCommitLogIndex());
         }
     }
 
+    /**
+     * fsync不在IO线程上做，放到LOG_FLUSH_EXECUTOR里，刷完再回包
+     * 排在后面的请求如果已经被前面的刷盘覆盖了就不用再刷，多个AppendLog共用一次fsync
+     */
+    private ReplicatedLogResponse flushThenResponse(long term, long lastIndex, long lastTerm) {
+        SettableFuture<ReplicatedLogResponse> response = RpcContext.deferResponse();
+        LOG_FLUSH_EXECUTOR.execute(() -> {
+            try {
+                if (logService.getLastPersistedLogIndex() < lastIndex) {
+                    logService.flush();
+                }
+                //等刷盘的时候新Leader可能已经把这段日志截掉了
+                boolean success = logService.getLastPersistedLogIndex() >= lastIndex && logService.get(lastIndex).getTerm() == lastTerm;
+                response.set(new ReplicatedLogResponse(term, success, logService.getLastCommitLogIndex()));
+            } catch (HasCompactException e) {
+                log.info("hasCompact, errMsg={}", e.getMessage());
+                response.set(new ReplicatedLogResponse(term, true, logService.getLastCommitLogIndex()));
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+                response.set(new ReplicatedLogResponse(term, false, logService.getLastCommitLogIndex()));
+            }
+        });
+        return null;
+    }
+
     @Override
     public InstallSnapshotResponse requestInstallSnapShot(InstallSnapshotRequest installSnapShotRequest) {
         Long term = currentTerm;
@@ -481,9 +688,25 @@ public class RaftNode implements RaftService {
             return new InstallSnapshotResponse(term, false);
         }
         eventRecorder.add(EventRecorder.Event.SnapShot, String.format("install snapshot, term=%d, leaderId=[%d]", installSnapShotRequest.getTerm(), installSnapShotRequest.getLeaderId().getPeerId()));
-        log.info("installSnapshot " + JSON.toJSONString(installSnapShotRequest));
-        logService.installSnapshot(installSnapShotRequest.getSnapshot(), installSnapShotRequest.getLogEntry());
-        return new InstallSnapshotResponse(term, true);
+        log.info("installSnapshot, snapshot={}, offset={}, length={}, done={}", installSnapShotRequest.getSnapshot(), installSnapShotRequest.getOffset(), installSnapShotRequest.getData().length, installSnapShotRequest.getDone());
+        if (!installSnapShotRequest.getDone()) {
+            return receiveSnapshot(installSnapShotRequest, term);
+        }
+        //最后一块要恢复状态机，不能在IO线程上做，放到snapshot线程上，做完再回包
+        SettableFuture<InstallSnapshotResponse> response = RpcContext.deferResponse();
+        SnapshotSender.execute(() -> response.set(receiveSnapshot(installSnapShotRequest, term)));
+        return null;
+    }
+
+    private InstallSnapshotResponse receiveSnapshot(InstallSnapshotRequest installSnapShotRequest, Long term) {
+        try {
+            boolean success = snapshotReceiver.receive(installSnapShotRequest.getSnapshot(), installSnapShotRequest.getOffset(), installSnapShotRequest.getData(), installSnapShotRequest.getDone(),
+                    inputStream -> logService.installSnapshot(installSnapShotRequest.getSnapshot(), inputStream, installSnapShotRequest.getLogEntry()));
+            return new InstallSnapshotResponse(term, success);
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            return new InstallSnapshotResponse(term, false);
+        }
     }
 
     private void applyClusterConfig(ClusterConfCommand command) {
@@ -532,6 +755,10 @@ public class RaftNode implements RaftService {
         if (Objects.nonNull(this.peerNodeScheduler)) {
             this.peerNodeScheduler.close();
         }
+        if (Objects.nonNull(this.outerService)) {
+            this.outerService.close();
+        }
+        this.snapshotReceiver.close();
         stopped = true;
     }
 
@@ -616,7 +843,12 @@ public class RaftNode implements RaftService {
 
         void changeNodeStatus(NodeStatus nodeStatus) {
             Preconditions.checkNotNull(nodeStatus);
-            currentNodeStatus.set(nodeStatus);
+            NodeStatus previousStatus = currentNodeStatus.getAndSet(nodeStatus);
+            //不再是Leader了，等待commit的请求直接失败
+            if (previousStatus == NodeStatus.LEADER && nodeStatus != NodeStatus.LEADER && Objects.nonNull(peerNodeScheduler)) {
+                peerNodeScheduler.failProposals();
+                peerNodeScheduler.failReadRounds();
+            }
         }
 
         /**
@@ -694,38 +926,343 @@ public class RaftNode implements RaftService {
 
         private Map<PeerRaftNode, PeerNodeStateMachine> peerNode;
 
+        /**
+         * 成为Leader时候的term，只能直接commit这个term的日志
+         */
+        private final long leaderTerm;
+
+        /**
+         * 等待commit的请求，key是日志的位置
+         */
+        private final ConcurrentSkipListMap<Long, SettableFuture<Boolean>> proposalFutures = new ConcurrentSkipListMap<>();
+
+        /**
+         * 正在进行的一轮ReadIndex心跳确认，以及在它进行中到达、等着下一轮的读请求
+         */
+        private ReadIndexRound inflightReadRound;
+        private ReadIndexRound pendingReadRound;
+
+        private volatile boolean closed = false;
+
+        /**
+         * 当选的时间，CheckQuorum用
+         */
+        private final long leaderStartNanos;
+
+        /**
+         * 下一次心跳的定时任务，close的时候取消
+         */
+        private volatile Timeout heartbeatTimeout;
+
         PeerNodeScheduler() {
-            this.peerNode = Maps.newHashMap();
+            this.leaderTerm = currentTerm;
+            this.leaderStartNanos = System.nanoTime();
+            //配置变更的时候会加入新的Peer，和心跳、commit的遍历并发
+            this.peerNode = Maps.newConcurrentMap();
             // 更新nextIndex和matchIndex
             long nextIndex = logService.getLastLogIndex() + 1;
-            peerRaftNodes.forEach(peerRaftNode -> {
-                PeerNodeStateMachine peerNodeStateMachine = PeerNodeStateMachine.create(nextIndex);
-                this.peerNode.put(peerRaftNode, peerNodeStateMachine);
-            });
+            peerRaftNodes.forEach(peerRaftNode -> putPeer(peerRaftNode, PeerNodeStateMachine.create(nextIndex)));
+        }
+
+        private void putPeer(PeerRaftNode peerRaftNode, PeerNodeStateMachine peerNodeStateMachine) {
+            this.peerNode.put(peerRaftNode, peerNodeStateMachine);
+            //连接恢复可写之后继续复制
+            peerRaftNode.setWritableListener(() -> peerNodeStateMachine.replicate(prepareAppendLog(peerRaftNode, peerNodeStateMachine)));
+        }
+
+        /**
+         * 配置变更commit之后，开始给新节点复制日志
+         */
+        void addPeer(NodeId peerNodeId) {
+            peerRaftNodes.stream()
+                    .filter(peerRaftNode -> peerRaftNode.getNodeId().equals(peerNodeId) && !peerNode.containsKey(peerRaftNode))
+                    .findAny()
+                    .ifPresent(peerRaftNode -> {
+                        PeerNodeStateMachine peerNodeStateMachine = PeerNodeStateMachine.create(logService.getLastLogIndex() + 1);
+                        putPeer(peerRaftNode, peerNodeStateMachine);
+                        peerNodeStateMachine.replicate(prepareAppendLog(peerRaftNode, peerNodeStateMachine));
+                    });
+        }
+
+        void putPeer(AddNodeScheduler addNodeScheduler) {
+            putPeer(addNodeScheduler.getPeerRaftNode(), addNodeScheduler.getPeerNodeStateMachine());
+        }
+
+        /**
+         * Learner复制到了commitIndex才能提升为Voter，否则提升之后会拖慢commit
+         */
+        boolean isCaughtUp(NodeId peerNodeId) {
+            return peerNode.entrySet().stream()
+                    .anyMatch(entry -> entry.getKey().getNodeId().equals(peerNodeId) && entry.getValue().getMatchIndex() >= logService.getLastCommitLogIndex());
         }
 
+        /**
+         * 最近半个心跳间隔内发过AppendLog的Follower不再发心跳，两次发送之间最多隔1.5个心跳间隔，小于选举超时
+         */
         void tickHeartBeat() {
-            Runnable appendHeartBeatTask = () -> peerNode.forEach((peerRaftNode, peerNodeStateMachine) -> peerNodeStateMachine.append(prepareAppendLog(peerRaftNode, peerNodeStateMachine, SettableFuture.create())));
-            appendHeartBeatTask.run();
-            TimeCountDownUtil.addSchedulerTask(HEART_BEAT_TIME_INTERVAL, DEFAULT_TIME_UNIT, this::tickHeartBeat, (Supplier<Boolean>) () -> nodeScheduler.isLeader());
+            if (closed || stepDownIfQuorumLost()) {
+                return;
+            }
+            peerNode.forEach((peerRaftNode, peerNodeStateMachine) -> {
+                if (peerNodeStateMachine.needHeartbeat(HEART_BEAT_TIME_INTERVAL / 2)) {
+                    peerNodeStateMachine.append(prepareHeartbeat(peerRaftNode, peerNodeStateMachine, null));
+                }
+            });
+            heartbeatTimeout = TimeCountDownUtil.addSchedulerTask(HEART_BEAT_TIME_INTERVAL, DEFAULT_TIME_UNIT, this::tickHeartBeat, (Supplier<Boolean>) () -> nodeScheduler.isLeader());
+        }
+
+        /**
+         * ReadIndex，完成的时候状态机已经apply到了读请求到达时的commitIndex
+         */
+        CompletableFuture<Long> readIndex() {
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            confirmReadIndex().whenComplete((readIndex, t) -> {
+                if (Objects.nonNull(t)) {
+                    future.completeExceptionally(t);
+                    return;
+                }
+                logService.waitApplied(readIndex).whenComplete((v, e) -> {
+                    if (Objects.isNull(e)) {
+                        future.complete(readIndex);
+                    } else {
+                        future.completeExceptionally(e);
+                    }
+                });
+            });
+            return future;
+        }
+
+        /**
+         * 确认自己还是Leader之后，返回读请求到达时的commitIndex，不等apply，Follower来要ReadIndex的时候用
+         * 只有当前term有日志commit之后，commitIndex才一定不比之前的Leader小，在这之前直接失败，让客户端重试
+         */
+        CompletableFuture<Long> confirmReadIndex() {
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            long readIndex = logService.getLastCommitLogIndex();
+            if (logService.getLastCommitLogTerm() != leaderTerm) {
+                future.completeExceptionally(new IllegalStateException("no log committed in current term"));
+                return future;
+            }
+            confirmLeadership().whenComplete((confirmed, t) -> {
+                if (Boolean.TRUE.equals(confirmed)) {
+                    future.complete(readIndex);
+                } else {
+                    future.completeExceptionally(new IllegalStateException("leadership not confirmed"));
+                }
+            });
+            return future;
+        }
+
+        /**
+         * 租约内直接等apply到commitIndex，不用心跳确认；不在租约内的时候退化成ReadIndex，它的心跳响应同时续上租约
+         */
+        CompletableFuture<Long> leaseRead() {
+            long readIndex = logService.getLastCommitLogIndex();
+            if (!isInLease() || logService.getLastCommitLogTerm() != leaderTerm) {
+                return readIndex();
+            }
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            logService.waitApplied(readIndex).whenComplete((v, e) -> {
+                if (Objects.isNull(e)) {
+                    future.complete(readIndex);
+                } else {
+                    future.completeExceptionally(e);
+                }
+            });
+            return future;
         }
 
-        List<SettableFuture<Boolean>> appendLog(int logIndex) {
-            List<SettableFuture<Boolean>> settableFutureList = Lists.newArrayList();
+        /**
+         * CheckQuorum，一个选举超时之内多数派Voter都没有响应过，说明自己被分区了，变回Follower
+         * 客户端马上能知道要去找新的Leader，不用等写请求超时
+         * 刚当选的时候还没有响应，从当选的时间开始算
+         *
+         * @return 是否变回了Follower
+         */
+        private boolean stepDownIfQuorumLost() {
+            long elapsedNanos = Math.min(getConfirmedElapsedNanos(), System.nanoTime() - leaderStartNanos);
+            if (elapsedNanos < DEFAULT_TIME_UNIT.toNanos(CHECK_QUORUM_TIMEOUT)) {
+                return false;
+            }
+            //已经有新一任的Leader了，不能把它变回Follower
+            if (peerNodeScheduler != this || currentTerm != leaderTerm) {
+                return false;
+            }
+            log.warn("lost contact with quorum for {}ms, step down, term={}", DEFAULT_TIME_UNIT.convert(elapsedNanos, TimeUnit.NANOSECONDS), leaderTerm);
+            eventRecorder.add(EventRecorder.Event.VOTE, String.format("check quorum fail, step down, term=%d", leaderTerm));
+            nodeScheduler.changeNodeStatus(NodeStatus.FOLLOWER);
+            tickManager.tickElectionTimeOut();
+            close();
+            return true;
+        }
+
+        boolean isInLease() {
+            return getConfirmedElapsedNanos() < DEFAULT_TIME_UNIT.toNanos(LEADER_LEASE_TIMEOUT);
+        }
+
+        /**
+         * 多数派Voter（包括自己）都响应过的请求里最早的发送时间，是最近一次确认自己还是Leader的时间，也是租约的开始时间
+         *
+         * @return 距离这个时间过了多久，还没有多数派响应过的时候为Long.MAX_VALUE
+         */
+        long getConfirmedElapsedNanos() {
+            ClusterConfig clusterConfig = RaftNode.this.clusterConfig;
+            long now = System.nanoTime();
+            List<Long> ackedSendNanos = Lists.newArrayList(now);
             peerNode.forEach((peerRaftNode, peerNodeStateMachine) -> {
-                SettableFuture<Boolean> settableFuture = peerNodeStateMachine.setCompleteFuture(logIndex);
-                settableFutureList.add(settableFuture);
-                //TODO 为啥一定是Empty才能appendTask？当时我是咋想的？？
-//                if (peerNodeStateMachine.taskQueueIsEmpty()) {
-//                    peerNodeStateMachine.appendFirst(prepareAppendLog(peerRaftNode, peerNodeStateMachine, settableFuture));
-//                }
-                peerNodeStateMachine.appendFirst(prepareAppendLog(peerRaftNode, peerNodeStateMachine, settableFuture));
+                long lastAckedSendNanos = peerNodeStateMachine.getLastAckedSendNanos();
+                if (clusterConfig.isVoter(peerRaftNode.getNodeId()) && lastAckedSendNanos != Long.MIN_VALUE) {
+                    ackedSendNanos.add(lastAckedSendNanos);
+                }
             });
-            return settableFutureList;
+            int quorum = clusterConfig.getQuorum();
+            if (ackedSendNanos.size() < quorum) {
+                return Long.MAX_VALUE;
+            }
+            ackedSendNanos.sort(Comparator.reverseOrder());
+            return now - ackedSendNanos.get(quorum - 1);
         }
 
+        /**
+         * 同时只有一轮心跳确认在进行，进行中到达的读请求等这一轮结束后一起发起下一轮
+         * 不能直接用进行中的那一轮，它的心跳可能在读请求到达之前就被响应了
+         */
+        private synchronized CompletableFuture<Boolean> confirmLeadership() {
+            if (Objects.isNull(inflightReadRound)) {
+                //先赋值再发心跳，只有Leader一个Voter的时候这一轮会直接完成
+                ReadIndexRound readIndexRound = newReadRound();
+                inflightReadRound = readIndexRound;
+                startReadRound(readIndexRound);
+                return readIndexRound.getFuture();
+            }
+            if (Objects.isNull(pendingReadRound)) {
+                pendingReadRound = newReadRound();
+            }
+            return pendingReadRound.getFuture();
+        }
 
-        private Runnable prepareAppendLog(PeerRaftNode peerRaftNode, PeerNodeStateMachine peerNodeStateMachine, SettableFuture<Boolean> appendLogResult) {
+        private ReadIndexRound newReadRound() {
+            ClusterConfig clusterConfig = RaftNode.this.clusterConfig;
+            return new ReadIndexRound(clusterConfig.getQuorum(), clusterConfig.getVoterCount());
+        }
+
+        private void startReadRound(ReadIndexRound readIndexRound) {
+            readIndexRound.getFuture().whenComplete((confirmed, t) -> onReadRoundComplete(readIndexRound));
+            ClusterConfig clusterConfig = RaftNode.this.clusterConfig;
+            int voterPeerCount = 0;
+            for (Map.Entry<PeerRaftNode, PeerNodeStateMachine> entry : peerNode.entrySet()) {
+                if (clusterConfig.isVoter(entry.getKey().getNodeId())) {
+                    voterPeerCount++;
+                    entry.getValue().append(prepareHeartbeat(entry.getKey(), entry.getValue(), readIndexRound));
+                }
+            }
+            //配置里有但是还没开始复制的Voter，当作没有响应
+            for (int i = voterPeerCount + 1; i < clusterConfig.getVoterCount(); i++) {
+                readIndexRound.onFail();
+            }
+        }
+
+        private synchronized void onReadRoundComplete(ReadIndexRound readIndexRound) {
+            if (inflightReadRound != readIndexRound) {
+                return;
+            }
+            ReadIndexRound nextReadRound = pendingReadRound;
+            inflightReadRound = nextReadRound;
+            pendingReadRound = null;
+            if (Objects.nonNull(nextReadRound)) {
+                if (closed) {
+                    nextReadRound.fail();
+                } else {
+                    startReadRound(nextReadRound);
+                }
+            }
+        }
+
+        synchronized void failReadRounds() {
+            if (Objects.nonNull(pendingReadRound)) {
+                pendingReadRound.fail();
+                pendingReadRound = null;
+            }
+            if (Objects.nonNull(inflightReadRound)) {
+                inflightReadRound.fail();
+            }
+        }
+
+        /**
+         * @return commit之后为true，不再是Leader或者大多数节点不可达的时候为false
+         */
+        SettableFuture<Boolean> appendLog(long logIndex) {
+            return appendLog(logIndex, logIndex).get(0);
+        }
+
+        /**
+         * [fromIndex, toIndex]一批日志只触发一轮AppendLog
+         * 先触发复制再刷自己的盘，两边同时进行，commit的延迟是max(刷盘, RTT)而不是两者相加
+         */
+        List<SettableFuture<Boolean>> appendLog(long fromIndex, long toIndex) {
+            List<SettableFuture<Boolean>> settableFutures = Lists.newArrayList();
+            for (long logIndex = fromIndex; logIndex <= toIndex; logIndex++) {
+                SettableFuture<Boolean> settableFuture = SettableFuture.create();
+                proposalFutures.put(logIndex, settableFuture);
+                settableFutures.add(settableFuture);
+            }
+            peerNode.forEach((peerRaftNode, peerNodeStateMachine) -> peerNodeStateMachine.replicate(prepareAppendLog(peerRaftNode, peerNodeStateMachine)));
+            logService.flush();
+            //刷盘之后自己才算进多数派，Follower的响应可能已经先回来了
+            advanceCommitIndex();
+            return settableFutures;
+        }
+
+        /**
+         * commitIndex怎么推进见QuorumCommitIndex
+         * commit之后一次完成所有等待的请求，而不是每个请求单独等待投票
+         */
+        synchronized void advanceCommitIndex() {
+            Map<NodeId, Long> peerMatchIndexes = Maps.newHashMapWithExpectedSize(peerNode.size());
+            peerNode.forEach((peerRaftNode, peerNodeStateMachine) -> peerMatchIndexes.put(peerRaftNode.getNodeId(), peerNodeStateMachine.getMatchIndex()));
+            long lastCommitIndex = logService.getLastCommitLogIndex();
+            long commitIndex = QuorumCommitIndex.compute(RaftNode.this.clusterConfig, logService.getLastPersistedLogIndex(), peerMatchIndexes,
+                    lastCommitIndex, index -> logService.get(index).getTerm(), leaderTerm);
+            if (commitIndex > lastCommitIndex) {
+                logService.commit(commitIndex);
+            }
+            completeProposals(proposalFutures.headMap(logService.getLastCommitLogIndex(), true), true);
+        }
+
+        /**
+         * 大多数节点都不可达，等待的请求没法commit了，直接失败
+         */
+        void checkQuorumReachable() {
+            ClusterConfig clusterConfig = RaftNode.this.clusterConfig;
+            long reachableCount = 1 + peerNode.entrySet().stream()
+                    .filter(entry -> clusterConfig.isVoter(entry.getKey().getNodeId()) && entry.getValue().isReachable())
+                    .count();
+            if (reachableCount < clusterConfig.getQuorum()) {
+                failProposals();
+            }
+        }
+
+        void failProposals() {
+            completeProposals(proposalFutures, false);
+        }
+
+        /**
+         * 逐个remove，不能clear，否则会把并发加进来的future也一起删掉
+         */
+        private void completeProposals(Map<Long, SettableFuture<Boolean>> futures, boolean result) {
+            for (Long index : futures.keySet()) {
+                SettableFuture<Boolean> future = futures.remove(index);
+                if (Objects.nonNull(future)) {
+                    future.set(result);
+                }
+            }
+        }
+
+        /**
+         * 把nextIndex之后的日志发给Follower，不等响应
+         * 响应在回调中处理，成功之后推进matchIndex，再由advanceCommitIndex完成等待的请求
+         */
+        private Runnable prepareAppendLog(PeerRaftNode peerRaftNode, PeerNodeStateMachine peerNodeStateMachine) {
             /**
              * BUG
              * 在发生网络分区的时候，发送log的任务已经被添加到各个PeerNode的任务队列中准备执行了，那时候currentTerm可能已经是最新的了
@@ -733,184 +1270,329 @@ public class RaftNode implements RaftService {
              */
             long term = currentTerm;
             return () -> {
+                ReplicatedLogRequest replicatedLogRequest;
+                PeerNodeStateMachine.Inflight inflight;
+                boolean truncated;
                 try {
-                    log.info("prepareAppendLog, to {}", peerRaftNode.getNodeId().getPeerId());
-                    long currentLastLogIndex = logService.getLastLogIndex();
-                    long currentLastCommitLogIndex = logService.getLastCommitLogIndex();
-                    long preLogIndex = peerNodeStateMachine.getNextIndex() - 1;
-
-                    ReplicatedLogRequest replicatedLogRequest = new ReplicatedLogRequest();
-                    replicatedLogRequest.setTerm(term);
-                    replicatedLogRequest.setLeaderId(nodeId);
-                    replicatedLogRequest.setLeaderCommit(currentLastCommitLogIndex);
-                    if (logService.hasInSnapshot(preLogIndex)) {
-                        if (!peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.INSTALLSNAPSHOT)) {
-                            Runnable runnable = prepareInstallSnapshot(peerRaftNode, peerNodeStateMachine);
-                            peerNodeStateMachine.appendFirst(runnable);
+                    synchronized (peerNodeStateMachine) {
+                        //窗口满了或者连接写不动了先暂停，等响应回来或者恢复可写的时候再触发
+                        if (!peerNodeStateMachine.canSendAppendLog() || !peerRaftNode.isWritable()) {
+                            return;
                         }
-                        appendLogResult.set(false);
-                        return;
+                        log.info("prepareAppendLog, to {}", peerRaftNode.getNodeId().getPeerId());
+                        long currentLastLogIndex = logService.getLastLogIndex();
+                        long preLogIndex = peerNodeStateMachine.getNextIndex() - 1;
+                        if (logService.hasInSnapshot(preLogIndex)) {
+                            peerNodeStateMachine.appendFirst(prepareInstallSnapshot(peerRaftNode, peerNodeStateMachine));
+                            return;
+                        }
+                        replicatedLogRequest = new ReplicatedLogRequest();
+                        replicatedLogRequest.setTerm(term);
+                        replicatedLogRequest.setLeaderId(nodeId);
+                        replicatedLogRequest.setLeaderCommit(logService.getLastCommitLogIndex());
+                        replicatedLogRequest.setPrevLogIndex(preLogIndex);
+                        replicatedLogRequest.setPrevLogTerm(logService.get(preLogIndex).getTerm());
+                        long batchLastIndex = Math.min(currentLastLogIndex, preLogIndex + peerNodeStateMachine.getSendableEntries());
+                        //存储里的byte[]直接发出去，发给多个Follower的时候也是共用的
+                        List<byte[]> encodedEntries = logService.getEncoded(preLogIndex + 1, batchLastIndex, peerNodeStateMachine.getSendableBytes());
+                        replicatedLogRequest.setEncodedEntries(encodedEntries);
+                        truncated = preLogIndex + encodedEntries.size() < currentLastLogIndex;
+                        long bytes = encodedEntries.stream().mapToLong(values -> values.length).sum();
+                        inflight = peerNodeStateMachine.onAppendLogSent(preLogIndex + encodedEntries.size() + 1, encodedEntries.size(), bytes);
                     }
-                    replicatedLogRequest.setPrevLogIndex(preLogIndex);
-                    replicatedLogRequest.setPrevLogTerm(logService.get(preLogIndex).getTerm());
-                    List<LogEntry> logEntries = logService.get(peerNodeStateMachine.getNextIndex(), currentLastLogIndex);
-                    replicatedLogRequest.setEntries(logEntries);
-                    //同步方法
-                    log.info("send to {} replicatedLogRequest={}", JSON.toJSONString(peerRaftNode), JSON.toJSONString(replicatedLogRequest));
-                    ReplicatedLogResponse replicatedLogResponse = peerRaftNode.getRaftService().requestAppendLog(replicatedLogRequest);
-                    log.info("receive from {} replicatedLogResponse={}", JSON.toJSONString(peerRaftNode), JSON.toJSONString(replicatedLogResponse));
-                    /*
-                     * 可能发生
-                     * 成为Leader后直接被网络分区了
-                     * 然后又好了，此时另外一个分区已经有Leader且Term比自己大
-                     */
-                    if (replicatedLogResponse.getTerm() > term) {
-                        log.error("currentTerm={}, remoteServerTerm={}, remoteNodeId={}", term, replicatedLogResponse.getTerm(), peerRaftNode.getNodeId());
-                        log.error("may have network isolate");
-                        currentTerm = replicatedLogResponse.getTerm();
-                        nodeScheduler.changeNodeStatus(NodeStatus.FOLLOWER);
-                        tickManager.tickElectionTimeOut();
-                        appendLogResult.set(false);
-                        close();
-                        return;
+                } catch (Exception e) {
+                    log.error("fail prepareAppendLog to {}", JSON.toJSONString(peerRaftNode));
+                    log.error(e.getMessage(), e);
+                    return;
+                }
+                long lastIndex = replicatedLogRequest.getPrevLogIndex() + replicatedLogRequest.getEntryCount();
+                long sendTime = System.currentTimeMillis();
+                long sendNanos = System.nanoTime();
+                FutureCallback<ReplicatedLogResponse> callback = new FutureCallback<ReplicatedLogResponse>() {
+                    @Override
+                    public void onSuccess(@Nullable ReplicatedLogResponse replicatedLogResponse) {
+                        Preconditions.checkNotNull(replicatedLogResponse);
+                        log.info("receive from {} replicatedLogResponse={}", JSON.toJSONString(peerRaftNode), JSON.toJSONString(replicatedLogResponse));
+                        peerNodeStateMachine.setReachable(true);
+                        if (stepDownIfStale(term, replicatedLogResponse, peerRaftNode)) {
+                            return;
+                        }
+                        peerNodeStateMachine.onAcked(sendNanos);
+                        if (replicatedLogResponse.getSuccess()) {
+                            peerNodeStateMachine.adjustAppendBatch(System.currentTimeMillis() - sendTime, truncated);
+                            peerNodeStateMachine.onAppendLogSuccess(inflight, lastIndex);
+                            advanceCommitIndex();
+                        } else {
+                            long rewindIndex = rewindIndex(replicatedLogRequest, replicatedLogResponse);
+                            if (peerNodeStateMachine.onAppendLogFail(inflight, rewindIndex) && logService.hasInSnapshot(peerNodeStateMachine.getNextIndex() - 1)) {
+                                //如果已经是在Snapshot中
+                                peerNodeStateMachine.appendFirst(prepareInstallSnapshot(peerRaftNode, peerNodeStateMachine));
+                                return;
+                            }
+                        }
+                        if (peerNodeStateMachine.getNextIndex() <= logService.getLastLogIndex()) {
+                            peerNodeStateMachine.replicate(prepareAppendLog(peerRaftNode, peerNodeStateMachine));
+                        }
                     }
 
-                    if (replicatedLogResponse.getSuccess()) {
-                        peerNodeStateMachine.setNextIndex(currentLastLogIndex + 1);
-                        peerNodeStateMachine.setMatchIndex(currentLastLogIndex);
-                        if (!peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.NORMAL)) {
-                            peerNodeStateMachine.setNodeStatus(PeerNodeStatus.NORMAL);
+                    @Override
+                    public void onFailure(Throwable t) {
+                        log.error("fail appendLog to {}, errMsg={}", JSON.toJSONString(peerRaftNode), t.getMessage());
+                        peerNodeStateMachine.setReachable(false);
+                        checkQuorumReachable();
+                        //不知道Follower收到了多少，从matchIndex之后重新探测
+                        if (replicatedLogRequest.getEntryCount() > 0) {
+                            peerNodeStateMachine.shrinkAppendBatch();
                         }
-                        if (peerNodeStateMachine.needSendAppendLogImmediately() || peerNodeStateMachine.getMatchIndex() < logService.getLastLogIndex()) {
-                            Runnable runnable = prepareAppendLog(peerRaftNode, peerNodeStateMachine, SettableFuture.create());
-                            peerNodeStateMachine.appendFirst(runnable);
-                        }
-                    } else {
-                        if (!peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.INSTALLSNAPSHOT)) {
-//                            long nextPreLogIndex = peerNodeStateMachine.getNextIndex() - 2;
-                            long nextPreLogIndex = replicatedLogResponse.getLastCommitIndex();
-                            //如果已经是在Snapshot中
-                            if (logService.hasInSnapshot(nextPreLogIndex)) {
-                                Runnable runnable = prepareInstallSnapshot(peerRaftNode, peerNodeStateMachine);
-                                peerNodeStateMachine.appendFirst(runnable);
-                            } else {
-                                peerNodeStateMachine.setNextIndex(nextPreLogIndex + 1);
-                                Runnable runnable = prepareAppendLog(peerRaftNode, peerNodeStateMachine, SettableFuture.create());
-                                peerNodeStateMachine.appendFirst(runnable);
-                            }
+                        if (peerNodeStateMachine.onAppendLogFail(inflight, peerNodeStateMachine.getMatchIndex() + 1)) {
+                            peerNodeStateMachine.replicate(prepareAppendLog(peerRaftNode, peerNodeStateMachine));
                         }
                     }
-                    appendLogResult.set(replicatedLogResponse.getSuccess());
+                };
+                try {
+                    //不要在这里把日志转成JSON，每个Follower都转一遍的开销比发送本身还大
+                    log.debug("send to {} replicatedLogRequest={}", peerRaftNode.getNodeId(), replicatedLogRequest);
+                    Futures.addCallback(peerRaftNode.requestAppendLog(replicatedLogRequest), callback, RpcExecutors.commonExecutor());
                 } catch (Exception e) {
-                    appendLogResult.set(Boolean.FALSE);
-                    log.error("fail appendLog to {}", JSON.toJSONString(peerRaftNode));
                     log.error("isConnectAlive={}", peerRaftNode.isConnectAlive());
+                    callback.onFailure(e);
+                }
+            };
+        }
+
+        /**
+         * 心跳不带日志，只带commitIndex
+         * prevLogIndex用matchIndex而不是nextIndex - 1，流水线发出去的日志Follower可能还没收到，用nextIndex会被误判为不一致
+         * 心跳不占用流水线的窗口，被拒绝之后交给正常的复制流程去探测
+         * 带readIndexRound的心跳是ReadIndex的确认，对方认可这个term就算一票，不管日志是否一致
+         */
+        private Runnable prepareHeartbeat(PeerRaftNode peerRaftNode, PeerNodeStateMachine peerNodeStateMachine, @Nullable ReadIndexRound readIndexRound) {
+            long term = currentTerm;
+            return () -> {
+                ReplicatedLogRequest replicatedLogRequest;
+                try {
+                    long matchIndex = peerNodeStateMachine.getMatchIndex();
+                    if (logService.hasInSnapshot(matchIndex)) {
+                        peerNodeStateMachine.replicate(prepareAppendLog(peerRaftNode, peerNodeStateMachine));
+                        if (Objects.nonNull(readIndexRound)) {
+                            readIndexRound.onFail();
+                        }
+                        return;
+                    }
+                    replicatedLogRequest = new ReplicatedLogRequest();
+                    replicatedLogRequest.setTerm(term);
+                    replicatedLogRequest.setLeaderId(nodeId);
+                    replicatedLogRequest.setLeaderCommit(logService.getLastCommitLogIndex());
+                    replicatedLogRequest.setPrevLogIndex(matchIndex);
+                    replicatedLogRequest.setPrevLogTerm(logService.get(matchIndex).getTerm());
+                    replicatedLogRequest.setEntries(Collections.emptyList());
+                    peerNodeStateMachine.onHeartbeatSent();
+                } catch (Exception e) {
+                    log.error("fail prepareHeartbeat to {}", JSON.toJSONString(peerRaftNode));
                     log.error(e.getMessage(), e);
+                    if (Objects.nonNull(readIndexRound)) {
+                        readIndexRound.onFail();
+                    }
+                    return;
+                }
+                long sendNanos = System.nanoTime();
+                FutureCallback<ReplicatedLogResponse> callback = new FutureCallback<ReplicatedLogResponse>() {
+                    @Override
+                    public void onSuccess(@Nullable ReplicatedLogResponse replicatedLogResponse) {
+                        Preconditions.checkNotNull(replicatedLogResponse);
+                        peerNodeStateMachine.setReachable(true);
+                        if (stepDownIfStale(term, replicatedLogResponse, peerRaftNode)) {
+                            if (Objects.nonNull(readIndexRound)) {
+                                readIndexRound.fail();
+                            }
+                            return;
+                        }
+                        peerNodeStateMachine.onAcked(sendNanos);
+                        if (Objects.nonNull(readIndexRound)) {
+                            readIndexRound.onAck();
+                        }
+                        if (!replicatedLogResponse.getSuccess() || peerNodeStateMachine.getNextIndex() <= logService.getLastLogIndex()) {
+                            peerNodeStateMachine.replicate(prepareAppendLog(peerRaftNode, peerNodeStateMachine));
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        log.error("fail heartbeat to {}, errMsg={}", JSON.toJSONString(peerRaftNode), t.getMessage());
+                        peerNodeStateMachine.setReachable(false);
+                        if (Objects.nonNull(readIndexRound)) {
+                            readIndexRound.onFail();
+                        }
+                        checkQuorumReachable();
+                    }
+                };
+                try {
+                    Futures.addCallback(peerRaftNode.requestAppendLog(replicatedLogRequest), callback, RpcExecutors.commonExecutor());
+                } catch (Exception e) {
+                    callback.onFailure(e);
                 }
             };
         }
 
+        /**
+         * 可能发生
+         * 成为Leader后直接被网络分区了
+         * 然后又好了，此时另外一个分区已经有Leader且Term比自己大
+         *
+         * @return 是否因为发现了更大的term变回了Follower
+         */
+        private boolean stepDownIfStale(long term, ReplicatedLogResponse replicatedLogResponse, PeerRaftNode peerRaftNode) {
+            if (replicatedLogResponse.getTerm() <= term) {
+                return false;
+            }
+            log.error("currentTerm={}, remoteServerTerm={}, remoteNodeId={}", term, replicatedLogResponse.getTerm(), peerRaftNode.getNodeId());
+            log.error("may have network isolate");
+            currentTerm = replicatedLogResponse.getTerm();
+            nodeScheduler.changeNodeStatus(NodeStatus.FOLLOWER);
+            tickManager.tickElectionTimeOut();
+            close();
+            return true;
+        }
+
+        /**
+         * AppendLog被拒绝之后nextIndex回退到哪儿，每次至少跳过一个term
+         * Leader有conflictTerm的日志，从Leader中这个term的最后一条之后开始；否则跳过Follower中的整个conflictTerm
+         */
+        private long rewindIndex(ReplicatedLogRequest replicatedLogRequest, ReplicatedLogResponse replicatedLogResponse) {
+            if (Objects.isNull(replicatedLogResponse.getConflictIndex())) {
+                return replicatedLogResponse.getLastCommitIndex() + 1;
+            }
+            long rewindIndex = replicatedLogResponse.getConflictIndex();
+            if (Objects.nonNull(replicatedLogResponse.getConflictTerm())) {
+                long lastIndexOfTerm = logService.getLastIndexOfTerm(replicatedLogResponse.getConflictTerm(), replicatedLogRequest.getPrevLogIndex());
+                if (lastIndexOfTerm >= 0) {
+                    rewindIndex = lastIndexOfTerm + 1;
+                }
+            }
+            return Math.min(rewindIndex, replicatedLogRequest.getPrevLogIndex());
+        }
+
         private Runnable prepareInstallSnapshot(PeerRaftNode peerRaftNode, PeerNodeStateMachine peerNodeStateMachine) {
             long term = currentTerm;
             return () -> {
                 try {
                     log.info("prepareInstallSnapshot peerNode={}",peerRaftNode.getNodeId());
-                    if (peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.INSTALLSNAPSHOT) || peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.PROBE)) {
-                        return;
-                    }
-                    peerNodeStateMachine.setNodeStatus(PeerNodeStatus.INSTALLSNAPSHOT);
-                    Snapshot snapShot = logService.getSnapShot();
-                    InstallSnapshotRequest installSnapShotRequest = new InstallSnapshotRequest();
-                    installSnapShotRequest.setLeaderId(nodeId);
-                    installSnapShotRequest.setTerm(term);
-                    installSnapShotRequest.setSnapshot(snapShot);
-                    installSnapShotRequest.setLogEntry(logService.get(snapShot.getLastLogIndex()));
-                    InstallSnapshotResponse installSnapshotResponse = peerRaftNode.getRaftService().requestInstallSnapShot(installSnapShotRequest);
-                    if (installSnapshotResponse.getSuccess()) {
-                        peerNodeStateMachine.setNodeStatus(PeerNodeStatus.PROBE);
-                        peerNodeStateMachine.setNextIndex(snapShot.getLastLogIndex() + 1);
-                        peerNodeStateMachine.setMatchIndex(snapShot.getLastLogIndex());
-                    } else {
-                        throw new IllegalStateException();
+                    synchronized (peerNodeStateMachine) {
+                        //可能已经有一个InstallSnapshot的任务完成了
+                        if (peerNodeStateMachine.getNodeStatus().equals(PeerNodeStatus.INSTALLSNAPSHOT) || !logService.hasInSnapshot(peerNodeStateMachine.getNextIndex() - 1)) {
+                            return;
+                        }
+                        peerNodeStateMachine.setNodeStatus(PeerNodeStatus.INSTALLSNAPSHOT);
                     }
+                    //发snapshot会阻塞，不占复制队列的线程，发完之后再把AppendLog放回队列
+                    SnapshotSender.execute(() -> installSnapshot(peerRaftNode, peerNodeStateMachine, term));
                 } catch (Exception e) {
-                    peerNodeStateMachine.setNodeStatus(PeerNodeStatus.NORMAL);
+                    peerNodeStateMachine.setNodeStatus(PeerNodeStatus.PROBE);
                     log.info("prepareInstallSnapshot fail, errMsg={}", e.getMessage(), e);
                     log.error(e.getMessage());
                 }
             };
         }
 
+        private void installSnapshot(PeerRaftNode peerRaftNode, PeerNodeStateMachine peerNodeStateMachine, long term) {
+            try {
+                Snapshot snapShot = logService.getSnapShot();
+                InstallSnapshotResponse installSnapshotResponse = SnapshotSender.send(logService, snapShot, peerRaftNode.getRaftService(), nodeId, term);
+                if (installSnapshotResponse.getSuccess()) {
+                    synchronized (peerNodeStateMachine) {
+                        peerNodeStateMachine.setNodeStatus(PeerNodeStatus.PROBE);
+                        peerNodeStateMachine.setNextIndex(snapShot.getLastLogIndex() + 1);
+                        peerNodeStateMachine.setMatchIndex(snapShot.getLastLogIndex());
+                    }
+                    advanceCommitIndex();
+                    peerNodeStateMachine.replicate(prepareAppendLog(peerRaftNode, peerNodeStateMachine));
+                } else {
+                    throw new IllegalStateException();
+                }
+            } catch (Exception e) {
+                peerNodeStateMachine.setNodeStatus(PeerNodeStatus.PROBE);
+                log.info("prepareInstallSnapshot fail, errMsg={}", e.getMessage(), e);
+                log.error(e.getMessage());
+            }
+        }
+
         @Override
         public void close() {
+            closed = true;
+            if (Objects.nonNull(heartbeatTimeout)) {
+                heartbeatTimeout.cancel();
+            }
             peerNode.values().forEach(PeerNodeStateMachine::close);
+            failProposals();
+            failReadRounds();
         }
     }
 
+    /**
+     * 超时选举，挂在共用的时间轮上，不再每个节点占一个线程
+     * <p>
+     * 每次tick取消上一个Timeout重新挂一个，到期之后如果没有发起选举，按同样的超时时间再挂一次
+     * preVote里会阻塞等投票结果，不能在时间轮的线程里跑，扔到ELECTION_EXECUTOR里，同一个节点同时只跑一轮
+     */
     public class TickManager {
-        private ExecutorService electionExecutor;
 
-        private Future<?> electionFuture;
+        private Timeout electionTimeout;
 
-        private final Object object = new Object();
+        private long electionTimeOutVersion = 0;
 
-        private volatile long waitTimeOut = -1;
+        private final AtomicBoolean electing = new AtomicBoolean(false);
 
-        private volatile long electionTimeOutVersion = -1;
+        synchronized void init() {
+            cancel();
+            electing.set(false);
+        }
 
-        private Runnable runnable = () -> {
-            long currentVersion;
-            long currentWaitTimeOut;
-            while (true) {
-                synchronized (object) {
-                    currentVersion = electionTimeOutVersion;
-                    currentWaitTimeOut = waitTimeOut;
-                }
-                if (currentWaitTimeOut == -1) {
-                    continue;
-                }
-                if (waitTimeOut > 0) {
-                    synchronized (object) {
-                        try {
-                            object.wait(waitTimeOut);
-                        } catch (InterruptedException e) {
-                            //ignore
-                        }
-                    }
-                }
-                if (stopped) {
-                    return;
-                }
-                if (waitTimeOut == currentWaitTimeOut && currentVersion == electionTimeOutVersion) {
-                    if (nodeScheduler.isLoseHeartbeat(currentWaitTimeOut) && !nodeScheduler.isLeader() && clusterConfig.getNodeCount() >= 2) {
-                        preVote(currentTerm + 1);
-                    }
-                }
+        synchronized void cancelAll() {
+            cancel();
+        }
+
+        private void cancel() {
+            electionTimeOutVersion++;
+            if (Objects.nonNull(electionTimeout)) {
+                electionTimeout.cancel();
+                electionTimeout = null;
             }
-        };
+        }
 
-        void init() {
-            waitTimeOut = -1;
-            electionTimeOutVersion = -1;
-            electionExecutor = Executors.newSingleThreadExecutor();
-            electionFuture = electionExecutor.submit(runnable);
+        private synchronized void schedule(long waitTimeOut) {
+            cancel();
+            long version = electionTimeOutVersion;
+            electionTimeout = TimeCountDownUtil.newTimeout(() -> onElectionTimeOut(version, waitTimeOut), waitTimeOut, DEFAULT_TIME_UNIT);
         }
 
-        void cancelAll() {
-            if (Objects.nonNull(electionFuture)) {
-                electionFuture.cancel(true);
-            }
-            electionExecutor.shutdown();
-            while (!electionExecutor.isShutdown()) {
-                continue;
-            }
+        private synchronized boolean isCurrent(long version) {
+            return !stopped && version == electionTimeOutVersion;
         }
 
-        void update(long waitTimeOut) {
-            synchronized (object) {
-                electionTimeOutVersion++;
-                this.waitTimeOut = waitTimeOut;
-                object.notifyAll();
+        private void onElectionTimeOut(long version, long waitTimeOut) {
+            if (!isCurrent(version)) {
+                return;
+            }
+            if (nodeScheduler.isLoseHeartbeat(waitTimeOut) && !nodeScheduler.isLeader() && clusterConfig.getVoterCount() >= 2 && clusterConfig.isVoter(nodeId)
+                    && electing.compareAndSet(false, true)) {
+                //preVote开头会重新tick
+                ELECTION_EXECUTOR.execute(() -> {
+                    try {
+                        if (isCurrent(version)) {
+                            preVote(currentTerm + 1);
+                        }
+                    } catch (Exception e) {
+                        log.error(e.getMessage(), e);
+                    } finally {
+                        electing.set(false);
+                    }
+                });
+                return;
+            }
+            synchronized (this) {
+                if (isCurrent(version)) {
+                    schedule(waitTimeOut);
+                }
             }
         }
 
@@ -920,7 +1602,7 @@ public class RaftNode implements RaftService {
                 return -1;
             }
             long waitTimeOut = getRandomStartElectionTimeout();
-            update(waitTimeOut);
+            schedule(waitTimeOut);
             return waitTimeOut;
         }
     }
@@ -928,99 +1610,187 @@ public class RaftNode implements RaftService {
     /**
      * 向外界提供服务的
      */
-    public class OuterService {
+    public class OuterService implements Closeable {
 
-        public synchronized JsonObject appendLog(Command command) {
-            return appendLog(command, true);
-        }
+        private final ProposalQueue proposalQueue = new ProposalQueue(this::appendBatch);
 
         /**
-         * SelfAppend 一般对于Leader而言，自己append到LogService中就算成功
-         * success 是指append到大多数
-         * //todo,需要做一个区分
+         * 同步的写接口，等待propose的结果
          */
-        private AddNodeScheduler addNodeScheduler;
+        public JsonObject appendLog(Command command) {
+            try {
+                return propose(command).get(PROPOSAL_COMMIT_TIMEOUT, DEFAULT_TIME_UNIT).toJson();
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+                return ApplyResult.fail(String.valueOf(e.getMessage())).toJson();
+            }
+        }
 
-        public synchronized JsonObject appendLog(Command command, boolean needSyncLog) {
-            if (nodeScheduler.isLeader()) {
+        /**
+         * 不阻塞调用线程，日志commit并且在Leader上apply之后完成
+         * 普通的写请求走ProposalQueue，和并发的请求一起append、一起复制
+         * 配置变更需要串行，在锁里append，commit之后在回调里生效
+         */
+        public CompletableFuture<ApplyResult> propose(Command command) {
+            Preconditions.checkNotNull(command);
+            if (!nodeScheduler.isLeader()) {
+                log.info("i am not leader command={}", JSON.toJSONString(command));
+                return CompletableFuture.completedFuture(ApplyResult.fail("not leader"));
+            }
+            if (command instanceof ClusterConfCommand) {
+                return appendLog(command, true);
+            }
+            return proposalQueue.submit(command);
+        }
 
-                if (command instanceof ClusterConfCommand) {
-                    ClusterConfCommand clusterConfCommand = (ClusterConfCommand) command;
-                    if (clusterConfCommand.isAddCommand(clusterConfig) && needSyncLog) {
-                        NodeId newNodeId = clusterConfCommand.extractNewNodeId(clusterConfig);
-                        EndPoint newNodeEndPoint = clusterConfCommand.extractNewNodeIdEndPoint(clusterConfig);
-                        addNodeScheduler = AddNodeScheduler.create(nodeId, newNodeId, newNodeEndPoint, currentTerm, logService);
-                        SettableFuture<Boolean> booleanSettableFuture = addNodeScheduler.startSyncLog();
-                        Futures.addCallback(booleanSettableFuture, new FutureCallback<Boolean>() {
-                            @Override
-                            public void onSuccess(@Nullable Boolean aBoolean) {
-                                appendLog(command, false);
+        /**
+         * 一批请求一次append，只在append的时候持有锁
+         */
+        private void appendBatch(List<ProposalQueue.Proposal> proposals) {
+            long term;
+            long firstIndex;
+            List<SettableFuture<Boolean>> commitFutures;
+            synchronized (this) {
+                if (!nodeScheduler.isLeader()) {
+                    proposals.forEach(proposal -> proposal.fail("not leader"));
+                    return;
+                }
+                term = currentTerm;
+                List<LogEntry> logEntries = proposals.stream().map(proposal -> LogEntry.of(proposal.getCommand(), term)).collect(Collectors.toList());
+                long lastIndex = logService.appendLog(logEntries);
+                firstIndex = lastIndex - logEntries.size() + 1;
+                commitFutures = peerNodeScheduler.appendLog(firstIndex, lastIndex);
+            }
+            for (int i = 0; i < proposals.size(); i++) {
+                CompletableFuture<ApplyResult> proposalFuture = proposals.get(i).getFuture();
+                long logIndex = firstIndex + i;
+                Futures.addCallback(commitFutures.get(i), new FutureCallback<Boolean>() {
+                    @Override
+                    public void onSuccess(@Nullable Boolean result) {
+                        if (!Boolean.TRUE.equals(result)) {
+                            proposalFuture.complete(ApplyResult.fail(logIndex, term, "not committed"));
+                            return;
+                        }
+                        logService.waitApplied(logIndex).whenComplete((v, t) -> {
+                            if (Objects.isNull(t)) {
+                                proposalFuture.complete(ApplyResult.success(logIndex, term));
+                            } else {
+                                proposalFuture.complete(ApplyResult.fail(logIndex, term, String.valueOf(t.getMessage())));
                             }
+                        });
+                    }
 
-                            @Override
-                            public void onFailure(Throwable throwable) {
-                                //ignore
-                            }
-                        }, RpcExecutors.commonExecutor());
-                        JsonObject jsonObject = new JsonObject();
-                        return jsonObject;
+                    @Override
+                    public void onFailure(Throwable t) {
+                        proposalFuture.complete(ApplyResult.fail(logIndex, term, String.valueOf(t.getMessage())));
                     }
-                }
+                }, MoreExecutors.directExecutor());
+            }
+        }
+
+        @Override
+        public void close() {
+            proposalQueue.close();
+        }
+
+        private AddNodeScheduler addNodeScheduler;
+
+        /**
+         * 上一条配置变更还没有结果之前，不接受新的配置变更
+         */
+        private boolean confChanging;
 
-                JsonObject jsonObject = new JsonObject();
-                log.info("http append {}", JSON.toJSONString(command));
-                LogEntry logEntry = LogEntry.of(command, currentTerm);
-                int logIndex = logService.appendLog(logEntry);
-                jsonObject.put("selfAppend", true);
-                VoteAction voteAction = new VoteAction(clusterConfig.getNodeCount() / 2, clusterConfig.getNodeCount() / 2 + 1);
-                //TODO 刚成为Leader，这里就来了一个Append
-                List<SettableFuture<Boolean>> settableFutureList = RaftNode.this.peerNodeScheduler.appendLog(logIndex);
-                settableFutureList.forEach(settableFuture -> {
-                    Futures.addCallback(settableFuture, new FutureCallback<Boolean>() {
+        /**
+         * 只在append的时候持有锁，不在锁里等commit
+         * 配置变更commit之后才在Leader上生效
+         */
+        private synchronized CompletableFuture<ApplyResult> appendLog(Command command, boolean needSyncLog) {
+            if (!nodeScheduler.isLeader()) {
+                log.info("i am not leader command={}", JSON.toJSONString(command));
+                return CompletableFuture.completedFuture(ApplyResult.fail("not leader"));
+            }
+            if (command instanceof ClusterConfCommand) {
+                if (confChanging) {
+                    return CompletableFuture.completedFuture(ApplyResult.fail("conf change in progress"));
+                }
+                ClusterConfCommand clusterConfCommand = (ClusterConfCommand) command;
+                //新加的Learner不影响commit，不用先追日志
+                if (clusterConfCommand.isAddCommand(clusterConfig) && needSyncLog && !clusterConfCommand.isNewNodeLearner(clusterConfig)) {
+                    NodeId newNodeId = clusterConfCommand.extractNewNodeId(clusterConfig);
+                    EndPoint newNodeEndPoint = clusterConfCommand.extractNewNodeIdEndPoint(clusterConfig);
+                    addNodeScheduler = AddNodeScheduler.create(nodeId, newNodeId, newNodeEndPoint, currentTerm, logService);
+                    SettableFuture<Boolean> booleanSettableFuture = addNodeScheduler.startSyncLog();
+                    Futures.addCallback(booleanSettableFuture, new FutureCallback<Boolean>() {
                         @Override
-                        public void onSuccess(@Nullable Boolean result) {
-                            if (result) {
-                                voteAction.success();
-                            } else {
-                                voteAction.fail();
-                            }
+                        public void onSuccess(@Nullable Boolean aBoolean) {
+                            appendLog(command, false);
                         }
 
                         @Override
-                        public void onFailure(Throwable t) {
-                            voteAction.fail();
+                        public void onFailure(Throwable throwable) {
+                            //ignore
                         }
                     }, RpcExecutors.commonExecutor());
-                });
-                try {
-                    voteAction.await();
-                } catch (Exception e) {
-                    log.error(e.getMessage(), e);
+                    //新加的节点先追日志，追上之后才会append这条配置
+                    return CompletableFuture.completedFuture(ApplyResult.fail("syncing log to new node"));
                 }
-                if (voteAction.votedSuccess()) {
-                    if (command instanceof ClusterConfCommand) {
-                        boolean isAddCommand = ((ClusterConfCommand) command).isAddCommand(clusterConfig);
-                        applyClusterConfig(((ClusterConfCommand) command));
-                        if (isAddCommand) {
-                            peerNodeScheduler.peerNode.put(addNodeScheduler.getPeerRaftNode(), addNodeScheduler.getPeerNodeStateMachine());
+                NodeId promotedNodeId = clusterConfCommand.extractPromotedNodeId(clusterConfig);
+                if (Objects.nonNull(promotedNodeId) && !peerNodeScheduler.isCaughtUp(promotedNodeId)) {
+                    return CompletableFuture.completedFuture(ApplyResult.fail("learner not caught up"));
+                }
+                confChanging = true;
+            }
+
+            log.info("http append {}", JSON.toJSONString(command));
+            long term = currentTerm;
+            int logIndex = logService.appendLog(LogEntry.of(command, term));
+            SettableFuture<Boolean> commitFuture = RaftNode.this.peerNodeScheduler.appendLog(logIndex);
+            Timeout timeout = TimeCountDownUtil.newTimeout(() -> commitFuture.set(false), PROPOSAL_COMMIT_TIMEOUT, DEFAULT_TIME_UNIT);
+            CompletableFuture<ApplyResult> future = new CompletableFuture<>();
+            Futures.addCallback(commitFuture, new FutureCallback<Boolean>() {
+                @Override
+                public void onSuccess(@Nullable Boolean result) {
+                    timeout.cancel();
+                    onCommitted(command, logIndex, term, Boolean.TRUE.equals(result), future);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    timeout.cancel();
+                    log.error(t.getMessage(), t);
+                    onCommitted(command, logIndex, term, false, future);
+                }
+            }, RpcExecutors.commonExecutor());
+            return future;
+        }
+
+        private synchronized void onCommitted(Command command, long logIndex, long term, boolean success, CompletableFuture<ApplyResult> future) {
+            if (command instanceof ClusterConfCommand) {
+                confChanging = false;
+                if (success) {
+                    ClusterConfCommand clusterConfCommand = (ClusterConfCommand) command;
+                    NodeId newNodeId = clusterConfCommand.isAddCommand(clusterConfig) ? clusterConfCommand.extractNewNodeId(clusterConfig) : null;
+                    applyClusterConfig(clusterConfCommand);
+                    if (Objects.nonNull(newNodeId) && Objects.nonNull(peerNodeScheduler)) {
+                        //追过日志的节点沿用追日志时候的状态，Learner从头开始复制
+                        if (Objects.nonNull(addNodeScheduler) && addNodeScheduler.getPeerRaftNode().getNodeId().equals(newNodeId)) {
+                            peerNodeScheduler.putPeer(addNodeScheduler);
+                        } else {
+                            peerNodeScheduler.addPeer(newNodeId);
                         }
                     }
-                    logService.commit(logIndex);
-                    log.info("commit success, index=" + logIndex + " command=" + JSON.toJSONString(command));
-                    jsonObject.put("success", true);
-                } else {
-                    log.info("commit fail, index=" + logIndex + " command=" + JSON.toJSONString(command));
-                    jsonObject.put("success", false);
                 }
-                jsonObject.put("index", logIndex);
-                if (command instanceof ClusterConfCommand && ((ClusterConfCommand) command).needRemoveNode(nodeId)) {
-                    System.out.println("close self");
-                    CompletableFuture.runAsync(RaftNode.this::close);
-                }
-                return jsonObject;
+            }
+            if (success) {
+                log.info("commit success, index=" + logIndex + " command=" + JSON.toJSONString(command));
+                future.complete(ApplyResult.success(logIndex, term));
             } else {
-                log.info("i am not leader command={}", JSON.toJSONString(command));
-                return new JsonObject().put("success", false);
+                log.info("commit fail, index=" + logIndex + " command=" + JSON.toJSONString(command));
+                future.complete(ApplyResult.fail(logIndex, term, "not committed"));
+            }
+            if (command instanceof ClusterConfCommand && ((ClusterConfCommand) command).needRemoveNode(nodeId)) {
+                System.out.println("close self");
+                CompletableFuture.runAsync(RaftNode.this::close);
             }
         }
 
@@ -1061,21 +1831,197 @@ public class RaftNode implements RaftService {
         }
 
         public JsonObject getKVData() {
-            DefaultStateMachine defaultStateMachine = (DefaultStateMachine) logService.getStateMachine();
-            return new JsonObject(defaultStateMachine.getMap());
+            return new JsonObject(logService.getStateMachine().fetchAllEntry());
         }
 
         public JsonObject getSnapShot() {
             Snapshot snapShot = logService.getSnapShot();
-            DefaultStateMachine defaultStateMachine = new DefaultStateMachine();
-            defaultStateMachine.fromSnapShot(snapShot.getData());
-            return new JsonObject(defaultStateMachine.getMap());
+            //不能和正在使用的DiskStateMachine共用一个目录
+            StateMachine stateMachine = stateMachineType == StateMachineType.DISK ? DiskStateMachine.createTemporary() : newStateMachine();
+            try {
+                try (InputStream inputStream = logService.openSnapShot(snapShot)) {
+                    stateMachine.fromSnapShot(inputStream);
+                }
+                return new JsonObject(stateMachine.fetchAllEntry());
+            } catch (IOException e) {
+                log.error(e.getMessage(), e);
+                throw new IllegalStateException(e.getMessage(), e);
+            } finally {
+                stateMachine.close();
+            }
         }
 
         public byte[] getKey(String key) {
             return logService.getStateMachine().getValue(key);
         }
 
+        /**
+         * 读状态机之前按consistency等待，完成之后再读状态机
+         * LOCAL直接读本地的状态机，可能读到旧数据
+         * LINEARIZABLE走ReadIndex，不写日志，代价是一轮心跳；Follower上向Leader要ReadIndex，等自己apply到之后读本地
+         * LEASE在Leader的租约内直接读，没有网络开销，依赖节点之间的时钟走速误差不超过CLOCK_DRIFT_BOUND
+         */
+        public CompletableFuture<Void> awaitReadable(ReadConsistency consistency) {
+            Preconditions.checkNotNull(consistency);
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            switch (consistency) {
+                case BOUNDED_STALENESS:
+                    future.completeExceptionally(new IllegalStateException("use awaitBoundedStaleness for bounded staleness read"));
+                    break;
+                case LOCAL:
+                    future.complete(null);
+                    break;
+                case LINEARIZABLE:
+                    if (!nodeScheduler.isLeader()) {
+                        return followerReadIndex();
+                    }
+                    //Leader上和LEASE一样处理
+                case LEASE:
+                    PeerNodeScheduler scheduler = peerNodeScheduler;
+                    if (!nodeScheduler.isLeader() || Objects.isNull(scheduler)) {
+                        future.completeExceptionally(new IllegalStateException("not leader"));
+                        break;
+                    }
+                    if (consistency == ReadConsistency.LEASE && !leaderLease) {
+                        future.completeExceptionally(new IllegalStateException("leader lease not enabled"));
+                        break;
+                    }
+                    CompletableFuture<Long> readIndexFuture = consistency == ReadConsistency.LEASE ? scheduler.leaseRead() : scheduler.readIndex();
+                    readIndexFuture.whenComplete((readIndex, t) -> {
+                        if (Objects.isNull(t)) {
+                            future.complete(null);
+                        } else {
+                            future.completeExceptionally(t);
+                        }
+                    });
+                    break;
+                default:
+                    future.completeExceptionally(new IllegalStateException(String.format("consistency=%s not support", consistency)));
+            }
+            return future;
+        }
+
+        /**
+         * 有界陈旧读，任何节点都直接读本地，不访问Leader
+         * Follower用最近一次收到的AppendLog里的leaderCommit和收到的时间判断，Leader用最近一次多数派确认的时间
+         * 本地已经commit但还没apply的，等apply完；还没复制过来的直接失败，不等网络
+         * 只限制条数的时候也要求CHECK_QUORUM_TIMEOUT之内联系过Leader，否则断网之后记下的leaderCommit会一直被当成最新的
+         *
+         * @param maxStalenessMills 最多比Leader旧多久，为空的时候按CHECK_QUORUM_TIMEOUT
+         * @param maxLagEntries     最多落后Leader的commitIndex多少条，为空的时候不限制
+         */
+        public CompletableFuture<Void> awaitBoundedStaleness(@Nullable Long maxStalenessMills, @Nullable Long maxLagEntries) {
+            Preconditions.checkState(Objects.nonNull(maxStalenessMills) || Objects.nonNull(maxLagEntries), "maxStalenessMills and maxLagEntries are both null");
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            long leaderCommitIndex;
+            long stalenessMills;
+            PeerNodeScheduler scheduler = peerNodeScheduler;
+            if (nodeScheduler.isLeader() && Objects.nonNull(scheduler)) {
+                leaderCommitIndex = logService.getLastCommitLogIndex();
+                long confirmedElapsedNanos = scheduler.getConfirmedElapsedNanos();
+                stalenessMills = confirmedElapsedNanos == Long.MAX_VALUE ? Long.MAX_VALUE : DEFAULT_TIME_UNIT.convert(confirmedElapsedNanos, TimeUnit.NANOSECONDS);
+            } else {
+                leaderCommitIndex = leaderCommitRecorder.get();
+                long leaderContactTime = leaderContactTimeRecorder.get();
+                stalenessMills = leaderContactTime == 0 ? Long.MAX_VALUE : System.currentTimeMillis() - leaderContactTime;
+            }
+            if (stalenessMills > (Objects.isNull(maxStalenessMills) ? CHECK_QUORUM_TIMEOUT : maxStalenessMills)) {
+                future.completeExceptionally(new IllegalStateException(String.format("too stale, stalenessMills=%d", stalenessMills)));
+                return future;
+            }
+            long readIndex = Objects.isNull(maxLagEntries) ? leaderCommitIndex : leaderCommitIndex - maxLagEntries;
+            if (readIndex > logService.getLastCommitLogIndex()) {
+                future.completeExceptionally(new IllegalStateException(String.format("too stale, lastCommitLogIndex=%d, leaderCommitIndex=%d", logService.getLastCommitLogIndex(), leaderCommitIndex)));
+                return future;
+            }
+            logService.waitApplied(readIndex).whenComplete((v, t) -> {
+                if (Objects.isNull(t)) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(t);
+                }
+            });
+            return future;
+        }
+
+        /**
+         * 向当前的Leader要ReadIndex，拿到之后等自己的状态机apply到这个位置
+         */
+        private CompletableFuture<Void> followerReadIndex() {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            NodeId leaderId = nodeScheduler.getVotedFor();
+            PeerRaftNode leader = peerRaftNodes.stream().filter(peerRaftNode -> peerRaftNode.getNodeId().equals(leaderId)).findAny().orElse(null);
+            if (Objects.isNull(leader)) {
+                future.completeExceptionally(new IllegalStateException("leader unknown"));
+                return future;
+            }
+            FutureCallback<ReadIndexResponse> callback = new FutureCallback<ReadIndexResponse>() {
+                @Override
+                public void onSuccess(@Nullable ReadIndexResponse readIndexResponse) {
+                    if (Objects.isNull(readIndexResponse) || !Boolean.TRUE.equals(readIndexResponse.getSuccess())) {
+                        future.completeExceptionally(new IllegalStateException("leader refuse readIndex"));
+                        return;
+                    }
+                    long readIndex = readIndexResponse.getReadIndex();
+                    //自己落后太多或者和Leader断开了，apply不到readIndex，不能一直挂着
+                    Timeout timeout = TimeCountDownUtil.newTimeout(() -> future.completeExceptionally(
+                            new IllegalStateException(String.format("wait apply timeout, readIndex=%d, lastAppliedLogIndex=%d", readIndex, logService.getLastAppliedLogIndex()))),
+                            PROPOSAL_COMMIT_TIMEOUT, DEFAULT_TIME_UNIT);
+                    logService.waitApplied(readIndex).whenComplete((v, t) -> {
+                        timeout.cancel();
+                        if (Objects.isNull(t)) {
+                            future.complete(null);
+                        } else {
+                            future.completeExceptionally(t);
+                        }
+                    });
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            };
+            try {
+                Futures.addCallback(leader.requestReadIndex(ReadIndexRequest.of(nodeId)), callback, RpcExecutors.commonExecutor());
+            } catch (Exception e) {
+                callback.onFailure(e);
+            }
+            return future;
+        }
+
+        public byte[] getKey(byte[] key) {
+            checkBinaryCommandSupported();
+            return logService.getStateMachine().getValue(key);
+        }
+
+        /**
+         * 不支持BinaryCommand的状态机会跳过这条日志，写入commit了但是数据被丢掉，所以直接拒绝
+         */
+        public void checkBinaryCommandSupported() {
+            StateMachine stateMachine = logService.getStateMachine();
+            if (!stateMachine.supportBinaryCommand()) {
+                throw new UnsupportedOperationException(String.format("stateMachine=%s not support binary command", stateMachine.getClass().getSimpleName()));
+            }
+        }
+
+        /**
+         * 范围查询，只有OrderedStateMachine支持
+         *
+         * @param prefix 不为空的时候忽略from和to
+         */
+        public Iterator<Map.Entry<String, String>> scan(@Nullable String from, @Nullable String to, @Nullable String prefix, int limit) {
+            StateMachine stateMachine = logService.getStateMachine();
+            if (!(stateMachine instanceof OrderedStateMachine)) {
+                throw new UnsupportedOperationException(String.format("stateMachine=%s not support scan", stateMachine.getClass().getSimpleName()));
+            }
+            OrderedStateMachine orderedStateMachine = (OrderedStateMachine) stateMachine;
+            if (Objects.nonNull(prefix)) {
+                return orderedStateMachine.scanPrefix(prefix, limit);
+            }
+            return orderedStateMachine.scan(from, to, limit);
+        }
+
         public JsonObject getEventLog(EventRecorder.Event event) {
             return new JsonObject(eventRecorder.eventRecorders(event));
         }
@@ -0,0 +1,41 @@
+package cc.lovezhy.raft.server.node;
+
+import javax.annotation.Nullable;
+
+/**
+ * 读请求的一致性级别
+ */
+public enum ReadConsistency {
+    /**
+     * 直接读本地状态机，可能读到旧数据
+     */
+    LOCAL,
+    /**
+     * ReadIndex，线性一致，只能在Leader上读
+     */
+    LINEARIZABLE,
+    /**
+     * Leader租约内直接读，需要开启leaderLease
+     */
+    LEASE,
+    /**
+     * 有界陈旧读，任何节点直接读本地，需要指定最多旧多久或者最多落后多少条
+     */
+    BOUNDED_STALENESS;
+
+    /**
+     * @return 参数为空的时候是LOCAL，不认识的时候为null
+     */
+    @Nullable
+    public static ReadConsistency fromParam(@Nullable String param) {
+        if (param == null || param.isEmpty()) {
+            return LOCAL;
+        }
+        for (ReadConsistency consistency : values()) {
+            if (consistency.name().equalsIgnoreCase(param)) {
+                return consistency;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,60 @@
+package cc.lovezhy.raft.server.node;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * ReadIndex的一轮心跳确认
+ * <p>
+ * Leader自己算一票，收到多数派Voter的心跳响应之后确认自己还是Leader，future完成为true
+ * 剩下的节点全部响应成功也凑不够多数派的时候，future完成为false
+ * 这一轮开始之前到达的读请求共用这一轮的结果
+ */
+class ReadIndexRound {
+
+    private final int quorum;
+
+    private final int voterCount;
+
+    private int ackCount = 1;
+
+    private int failCount = 0;
+
+    private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+    /**
+     * @param quorum     需要的多数派大小
+     * @param voterCount 这一轮发了心跳的Voter数，包括Leader自己
+     */
+    ReadIndexRound(int quorum, int voterCount) {
+        Preconditions.checkState(quorum > 0 && quorum <= voterCount, String.format("quorum=%d, voterCount=%d", quorum, voterCount));
+        this.quorum = quorum;
+        this.voterCount = voterCount;
+        if (ackCount >= quorum) {
+            future.complete(true);
+        }
+    }
+
+    synchronized void onAck() {
+        ackCount++;
+        if (ackCount >= quorum) {
+            future.complete(true);
+        }
+    }
+
+    synchronized void onFail() {
+        failCount++;
+        if (voterCount - failCount < quorum) {
+            future.complete(false);
+        }
+    }
+
+    void fail() {
+        future.complete(false);
+    }
+
+    CompletableFuture<Boolean> getFuture() {
+        return future;
+    }
+}
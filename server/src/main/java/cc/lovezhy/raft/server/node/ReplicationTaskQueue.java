@@ -0,0 +1,91 @@
+package cc.lovezhy.raft.server.node;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个Peer的复制任务队列
+ * <p>
+ * 同一个队列里的任务按顺序串行执行，不同队列之间并行
+ * 所有RaftNode的所有Peer共用REPLICATION_THREADS个线程，队列里有任务的时候才占用线程，线程数不随Peer的数量增长
+ * 一次最多连续执行MAX_TASKS_PER_RUN个任务，之后让出线程，避免一个Peer占住线程饿死其他Peer
+ */
+class ReplicationTaskQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicationTaskQueue.class);
+
+    static final int REPLICATION_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    static final int MAX_TASKS_PER_RUN = 16;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger(0);
+
+    private static final ExecutorService REPLICATION_EXECUTOR = Executors.newFixedThreadPool(REPLICATION_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "raft-replication-" + threadCounter.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LinkedBlockingDeque<Runnable> tasks = new LinkedBlockingDeque<>();
+
+    /**
+     * 是否已经有一个drain在线程池里排队或者执行，保证同一个队列同时只有一个线程在执行
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private volatile boolean shutdown = false;
+
+    void offer(Runnable task) {
+        Preconditions.checkNotNull(task);
+        tasks.offer(task);
+        schedule();
+    }
+
+    void offerFirst(Runnable task) {
+        Preconditions.checkNotNull(task);
+        tasks.offerFirst(task);
+        schedule();
+    }
+
+    boolean isEmpty() {
+        return tasks.isEmpty();
+    }
+
+    private void schedule() {
+        if (!shutdown && !tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+            REPLICATION_EXECUTOR.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            for (int i = 0; i < MAX_TASKS_PER_RUN && !shutdown; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error(e.getMessage(), e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            //清标记之前进来的任务可能没有触发schedule
+            schedule();
+        }
+    }
+
+    void close() {
+        shutdown = true;
+        tasks.clear();
+    }
+}
@@ -0,0 +1,115 @@
+package cc.lovezhy.raft.server.node;
+
+import cc.lovezhy.raft.server.log.Snapshot;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Follower接收分块的InstallSnapshot
+ * <p>
+ * 收到的块先追加到临时文件，最后一块到了之后再从文件恢复状态机，内存里同时只有一块
+ * offset为0的块开始一个新的接收；已经收到过的块直接返回成功，Leader超时重发的时候不用从头开始
+ */
+class SnapshotReceiver implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotReceiver.class);
+
+    /**
+     * 正在接收的snapshot和已经收到的长度
+     */
+    private Snapshot receiving;
+    private File file;
+    private OutputStream output;
+    private long received;
+
+    /**
+     * 最近一次安装完的snapshot，Leader重发最后一块的时候直接返回成功
+     */
+    private Snapshot installed;
+    private long installedLength;
+
+    /**
+     * @param install 最后一块收完之后从流中恢复状态机
+     * @return 这一块是否已经收到，offset对不上的时候返回false，Leader要从头重发
+     */
+    synchronized boolean receive(Snapshot snapshot, long offset, byte[] data, boolean done, Consumer<InputStream> install) throws IOException {
+        Preconditions.checkNotNull(snapshot);
+        Preconditions.checkNotNull(data);
+        Preconditions.checkNotNull(install);
+        if (isSame(installed, snapshot) && offset + data.length <= installedLength) {
+            return true;
+        }
+        if (isSame(receiving, snapshot) && offset + data.length <= received) {
+            return true;
+        }
+        if (offset == 0) {
+            reset();
+            file = Files.createTempFile("raft-snapshot-", ".tmp").toFile();
+            output = new BufferedOutputStream(new FileOutputStream(file));
+            receiving = snapshot;
+        }
+        if (!isSame(receiving, snapshot) || offset != received) {
+            log.info("snapshot chunk not match, offset={}, received={}", offset, received);
+            return false;
+        }
+        output.write(data);
+        received += data.length;
+        if (!done) {
+            return true;
+        }
+        try {
+            output.close();
+            output = null;
+            try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+                install.accept(inputStream);
+            }
+            installed = receiving;
+            installedLength = received;
+            return true;
+        } finally {
+            reset();
+        }
+    }
+
+    private static boolean isSame(Snapshot snapshot, Snapshot other) {
+        return Objects.nonNull(snapshot)
+                && Objects.equals(snapshot.getLastLogIndex(), other.getLastLogIndex())
+                && Objects.equals(snapshot.getLastLogTerm(), other.getLastLogTerm());
+    }
+
+    private void reset() {
+        if (Objects.nonNull(output)) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                log.warn(e.getMessage(), e);
+            }
+            output = null;
+        }
+        if (Objects.nonNull(file) && !file.delete()) {
+            log.warn("delete file fail, file={}", file);
+        }
+        file = null;
+        receiving = null;
+        received = 0;
+    }
+
+    @Override
+    public synchronized void close() {
+        reset();
+    }
+}
@@ -0,0 +1,123 @@
+package cc.lovezhy.raft.server.node;
+
+import cc.lovezhy.raft.server.log.LogService;
+import cc.lovezhy.raft.server.log.Snapshot;
+import cc.lovezhy.raft.server.service.RaftService;
+import cc.lovezhy.raft.server.service.model.InstallSnapshotRequest;
+import cc.lovezhy.raft.server.service.model.InstallSnapshotResponse;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cc.lovezhy.raft.server.RaftConstants.DEFAULT_TIME_UNIT;
+import static cc.lovezhy.raft.server.RaftConstants.HEART_BEAT_TIME_INTERVAL;
+
+/**
+ * 把snapshot按块发给一个节点，每块最多SNAPSHOT_CHUNK_BYTES，内存里同时只有一块
+ * <p>
+ * 一块超时之后原样重发，Follower会忽略已经收到的块
+ * 最后一块要等Follower恢复完状态机才返回，可能超过RPC的超时时间，在SNAPSHOT_INSTALL_TIMEOUT之内一直重发
+ * <p>
+ * 发送会阻塞很久，在自己的线程池里跑，不占复制队列共用的线程
+ */
+class SnapshotSender {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotSender.class);
+
+    static final int SNAPSHOT_CHUNK_BYTES = 512 * 1024;
+
+    static final int MAX_CHUNK_RETRY_TIMES = 3;
+
+    static final long SNAPSHOT_INSTALL_TIMEOUT = 30 * 1000;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger(0);
+
+    /**
+     * 所有节点共用，只在发snapshot的时候占用线程，空闲一段时间之后回收
+     */
+    private static final ExecutorService SNAPSHOT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "raft-snapshot-" + threadCounter.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private SnapshotSender() {
+    }
+
+    static void execute(Runnable task) {
+        SNAPSHOT_EXECUTOR.execute(task);
+    }
+
+    /**
+     * @return 最后一块的响应，或者第一个被拒绝的响应
+     * @throws IllegalStateException 重试之后还是超时
+     */
+    static InstallSnapshotResponse send(LogService logService, Snapshot snapshot, RaftService raftService, NodeId leaderId, long term) throws IOException {
+        //数据按块放在data里，snapshot只带位置
+        Snapshot meta = new Snapshot();
+        meta.setLastLogIndex(snapshot.getLastLogIndex());
+        meta.setLastLogTerm(snapshot.getLastLogTerm());
+        try (PushbackInputStream inputStream = new PushbackInputStream(logService.openSnapShot(snapshot), 1)) {
+            long offset = 0;
+            while (true) {
+                byte[] chunk = new byte[SNAPSHOT_CHUNK_BYTES];
+                int len = ByteStreams.read(inputStream, chunk, 0, chunk.length);
+                boolean done = len < chunk.length || isEnd(inputStream);
+                InstallSnapshotRequest request = new InstallSnapshotRequest();
+                request.setLeaderId(leaderId);
+                request.setTerm(term);
+                request.setSnapshot(meta);
+                request.setLogEntry(logService.get(snapshot.getLastLogIndex()));
+                request.setOffset(offset);
+                request.setData(len == chunk.length ? chunk : Arrays.copyOf(chunk, len));
+                request.setDone(done);
+                InstallSnapshotResponse response = sendChunk(raftService, request);
+                if (!response.getSuccess() || done) {
+                    return response;
+                }
+                offset += len;
+            }
+        }
+    }
+
+    private static boolean isEnd(PushbackInputStream inputStream) throws IOException {
+        int next = inputStream.read();
+        if (next < 0) {
+            return true;
+        }
+        inputStream.unread(next);
+        return false;
+    }
+
+    private static InstallSnapshotResponse sendChunk(RaftService raftService, InstallSnapshotRequest request) {
+        long deadline = System.currentTimeMillis() + SNAPSHOT_INSTALL_TIMEOUT;
+        for (int retryTimes = 0; ; retryTimes++) {
+            try {
+                return raftService.requestInstallSnapShot(request);
+            } catch (Exception e) {
+                boolean canRetry = request.getDone() ? System.currentTimeMillis() < deadline : retryTimes < MAX_CHUNK_RETRY_TIMES;
+                if (!canRetry) {
+                    throw new IllegalStateException(String.format("send snapshot chunk fail, offset=%d, errMsg=%s", request.getOffset(), e.getMessage()), e);
+                }
+                log.info("send snapshot chunk fail, offset={}, retryTimes={}, errMsg={}", request.getOffset(), retryTimes, e.getMessage());
+                if (request.getDone()) {
+                    //Follower可能还在恢复状态机
+                    try {
+                        DEFAULT_TIME_UNIT.sleep(HEART_BEAT_TIME_INTERVAL);
+                    } catch (InterruptedException interruptedException) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException(interruptedException);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -13,4 +13,6 @@ public interface RaftService {
     ReplicatedLogResponse requestAppendLog(ReplicatedLogRequest replicatedLogRequest);
 
     InstallSnapshotResponse requestInstallSnapShot(InstallSnapshotRequest installSnapShotRequest);
+
+    ReadIndexResponse requestReadIndex(ReadIndexRequest readIndexRequest);
 }
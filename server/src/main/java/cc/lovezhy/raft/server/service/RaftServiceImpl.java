@@ -32,6 +32,11 @@ public class RaftServiceImpl implements RaftService {
         return raftService.requestInstallSnapShot(installSnapshotRequest);
     }
 
+    @Override
+    public ReadIndexResponse requestReadIndex(ReadIndexRequest readIndexRequest) {
+        return raftService.requestReadIndex(readIndexRequest);
+    }
+
     @Override
     public void requestConnect(ConnectRequest connectRequest) {
         raftService.requestConnect(connectRequest);
@@ -4,6 +4,9 @@ import cc.lovezhy.raft.server.log.LogEntry;
 import cc.lovezhy.raft.server.log.Snapshot;
 import cc.lovezhy.raft.server.node.NodeId;
 
+/**
+ * snapshot按块发送，snapshot里只有lastLogIndex和lastLogTerm，数据在data里
+ */
 public class InstallSnapshotRequest {
     private Snapshot snapshot;
     private Long term;
@@ -12,6 +15,15 @@ public class InstallSnapshotRequest {
      * 保留最后一个CommitIndex的LogEntry，防止进行PrevIndex的发现找不到
      */
     private LogEntry logEntry;
+    /**
+     * 这一块在整个snapshot数据中的位置
+     */
+    private Long offset;
+    private byte[] data;
+    /**
+     * 是不是最后一块
+     */
+    private Boolean done;
 
     public Snapshot getSnapshot() {
         return snapshot;
@@ -44,4 +56,28 @@ public class InstallSnapshotRequest {
     public void setLogEntry(LogEntry logEntry) {
         this.logEntry = logEntry;
     }
+
+    public Long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(Long offset) {
+        this.offset = offset;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public void setData(byte[] data) {
+        this.data = data;
+    }
+
+    public Boolean getDone() {
+        return done;
+    }
+
+    public void setDone(Boolean done) {
+        this.done = done;
+    }
 }
@@ -0,0 +1,30 @@
+package cc.lovezhy.raft.server.service.model;
+
+import cc.lovezhy.raft.server.node.NodeId;
+
+public class ReadIndexRequest {
+
+    public static ReadIndexRequest of(NodeId nodeId) {
+        return new ReadIndexRequest(nodeId);
+    }
+
+    public ReadIndexRequest() {
+    }
+
+    public ReadIndexRequest(NodeId nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * 发起读请求的Follower
+     */
+    private NodeId nodeId;
+
+    public NodeId getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(NodeId nodeId) {
+        this.nodeId = nodeId;
+    }
+}
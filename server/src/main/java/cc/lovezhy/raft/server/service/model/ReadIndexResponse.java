@@ -0,0 +1,47 @@
+package cc.lovezhy.raft.server.service.model;
+
+public class ReadIndexResponse {
+
+    private Boolean success;
+
+    private Long term;
+
+    /**
+     * Leader确认过身份之后的commitIndex，Follower apply到这里之后就可以读了
+     */
+    private Long readIndex;
+
+    public ReadIndexResponse() {
+    }
+
+    public ReadIndexResponse(Long term, Boolean success, Long readIndex) {
+        this.term = term;
+        this.success = success;
+        this.readIndex = readIndex;
+    }
+
+    public Boolean getSuccess() {
+        return success;
+    }
+
+    public void setSuccess(Boolean success) {
+        this.success = success;
+    }
+
+    public Long getTerm() {
+        return term;
+    }
+
+    public void setTerm(Long term) {
+        this.term = term;
+    }
+
+    public Long getReadIndex() {
+        return readIndex;
+    }
+
+    public void setReadIndex(Long readIndex) {
+        this.readIndex = readIndex;
+    }
+
+}
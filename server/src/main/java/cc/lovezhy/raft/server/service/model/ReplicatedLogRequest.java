@@ -2,9 +2,12 @@ package cc.lovezhy.raft.server.service.model;
 
 import cc.lovezhy.raft.server.node.NodeId;
 import cc.lovezhy.raft.server.log.LogEntry;
+import cc.lovezhy.raft.server.utils.KryoUtils;
 import com.google.common.base.MoreObjects;
 
 import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
 
 public class ReplicatedLogRequest {
 
@@ -16,7 +19,16 @@ public class ReplicatedLogRequest {
 
     private Long prevLogTerm;
 
-    private List<LogEntry> entries;
+    /**
+     * 日志序列化之后的数据，Leader直接把存储里的byte[]拿出来发，不反序列化再序列化
+     * 同一段日志发给多个Follower的时候共用同一批byte[]
+     */
+    private List<byte[]> encodedEntries;
+
+    /**
+     * encodedEntries反序列化之后的结果，不参与序列化
+     */
+    private transient List<LogEntry> entries;
 
     private Long leaderCommit;
 
@@ -53,11 +65,31 @@ public class ReplicatedLogRequest {
     }
 
     public List<LogEntry> getEntries() {
+        if (Objects.isNull(entries) && Objects.nonNull(encodedEntries)) {
+            entries = encodedEntries.stream().map(KryoUtils::deserializeLogEntry).collect(Collectors.toList());
+        }
         return entries;
     }
 
     public void setEntries(List<LogEntry> entries) {
         this.entries = entries;
+        this.encodedEntries = entries.stream().map(entry -> entry.toStorageEntry().getValues()).collect(Collectors.toList());
+    }
+
+    public List<byte[]> getEncodedEntries() {
+        return encodedEntries;
+    }
+
+    public void setEncodedEntries(List<byte[]> encodedEntries) {
+        this.encodedEntries = encodedEntries;
+        this.entries = null;
+    }
+
+    /**
+     * 日志条数，不用反序列化
+     */
+    public int getEntryCount() {
+        return Objects.isNull(encodedEntries) ? 0 : encodedEntries.size();
     }
 
     public Long getLeaderCommit() {
@@ -75,7 +107,7 @@ public class ReplicatedLogRequest {
                 .add("leaderId", leaderId)
                 .add("prevLogIndex", prevLogIndex)
                 .add("prevLogTerm", prevLogTerm)
-                .add("entries", entries)
+                .add("entries", getEntries())
                 .add("leaderCommit", leaderCommit)
                 .toString();
     }
@@ -8,6 +8,16 @@ public class ReplicatedLogResponse {
 
     private Long lastCommitIndex;
 
+    /**
+     * 拒绝的时候，Follower在prevLogIndex位置的日志的term，prevLogIndex超出Follower日志长度的时候为null
+     */
+    private Long conflictTerm;
+
+    /**
+     * 拒绝的时候，conflictTerm在Follower中的第一条日志，conflictTerm为null的时候是Follower日志的长度
+     */
+    private Long conflictIndex;
+
     public ReplicatedLogResponse() {
     }
 
@@ -25,6 +35,22 @@ public class ReplicatedLogResponse {
         this.lastCommitIndex = lastCommitIndex;
     }
 
+    public Long getConflictTerm() {
+        return conflictTerm;
+    }
+
+    public void setConflictTerm(Long conflictTerm) {
+        this.conflictTerm = conflictTerm;
+    }
+
+    public Long getConflictIndex() {
+        return conflictIndex;
+    }
+
+    public void setConflictIndex(Long conflictIndex) {
+        this.conflictIndex = conflictIndex;
+    }
+
     public Long getTerm() {
         return term;
     }
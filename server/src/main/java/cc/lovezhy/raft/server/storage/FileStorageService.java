@@ -52,6 +52,11 @@ public class FileStorageService implements StorageService {
         //TODO
     }
 
+    @Override
+    public void flush() {
+        storageFile.force();
+    }
+
     @Override
     public void remove(int fromIndex) {
 
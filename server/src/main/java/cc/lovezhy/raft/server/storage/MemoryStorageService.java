@@ -56,6 +56,16 @@ public class MemoryStorageService implements StorageService {
         }
     }
 
+    @Override
+    public void flush() {
+        //内存存储不需要刷盘
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return false;
+    }
+
     @Override
     public void discard(int toIndex) {
         entries = Lists.newLinkedList(this.entries.subList(toIndex, entries.size()));
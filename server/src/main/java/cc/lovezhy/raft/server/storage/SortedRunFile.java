@@ -0,0 +1,279 @@
+package cc.lovezhy.raft.server.storage;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.primitives.UnsignedBytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 不可变的有序文件，LSM中的一个run
+ * <p>
+ * |keyLen|key|flag|valueLen|value|...|index|bloomFilter|indexOffset|bloomOffset|magic|
+ * <p>
+ * flag为1表示这个key已经被删除了，每INDEX_INTERVAL个key在内存中留一个稀疏索引
+ */
+public class SortedRunFile implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(SortedRunFile.class);
+
+    /**
+     * 被删除的key，按引用比较
+     */
+    public static final byte[] TOMBSTONE = new byte[0];
+
+    public static final Comparator<byte[]> KEY_COMPARATOR = UnsignedBytes.lexicographicalComparator();
+
+    private static final int MAGIC = 0x52554e31;
+
+    private static final int TRAILER_LENGTH = 8 + 8 + 4;
+
+    private static final int INDEX_INTERVAL = 64;
+
+    private static final double BLOOM_FILTER_FPP = 0.01;
+
+    private static final byte FLAG_VALUE = 0;
+    private static final byte FLAG_TOMBSTONE = 1;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long dataLength;
+    private final List<byte[]> indexKeys;
+    private final List<Long> indexOffsets;
+    private final BloomFilter<byte[]> bloomFilter;
+
+    /**
+     * 把有序的entries写成一个run文件
+     *
+     * @param entries          按KEY_COMPARATOR升序，value为TOMBSTONE表示删除
+     * @param expectedEntries 用来初始化BloomFilter
+     */
+    public static SortedRunFile write(File file, Iterator<Map.Entry<byte[], byte[]>> entries, int expectedEntries) {
+        Preconditions.checkState(!file.exists(), String.format("file=%s exist", file));
+        BloomFilter<byte[]> bloomFilter = BloomFilter.create(Funnels.byteArrayFunnel(), Math.max(expectedEntries, 1), BLOOM_FILTER_FPP);
+        List<byte[]> indexKeys = Lists.newArrayList();
+        List<Long> indexOffsets = Lists.newArrayList();
+        try (CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+             DataOutputStream output = new DataOutputStream(counter)) {
+            long count = 0;
+            byte[] lastKey = null;
+            while (entries.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = entries.next();
+                byte[] key = entry.getKey();
+                Preconditions.checkState(lastKey == null || KEY_COMPARATOR.compare(lastKey, key) < 0, "entries not sorted");
+                if (count % INDEX_INTERVAL == 0) {
+                    indexKeys.add(key);
+                    indexOffsets.add(counter.getCount());
+                }
+                bloomFilter.put(key);
+                output.writeInt(key.length);
+                output.write(key);
+                if (entry.getValue() == TOMBSTONE) {
+                    output.writeByte(FLAG_TOMBSTONE);
+                    output.writeInt(0);
+                } else {
+                    output.writeByte(FLAG_VALUE);
+                    output.writeInt(entry.getValue().length);
+                    output.write(entry.getValue());
+                }
+                lastKey = key;
+                count++;
+            }
+            long indexOffset = counter.getCount();
+            output.writeInt(indexKeys.size());
+            for (int i = 0; i < indexKeys.size(); i++) {
+                output.writeInt(indexKeys.get(i).length);
+                output.write(indexKeys.get(i));
+                output.writeLong(indexOffsets.get(i));
+            }
+            long bloomOffset = counter.getCount();
+            bloomFilter.writeTo(output);
+            output.writeLong(indexOffset);
+            output.writeLong(bloomOffset);
+            output.writeInt(MAGIC);
+            output.flush();
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        return open(file);
+    }
+
+    public static SortedRunFile open(File file) {
+        Preconditions.checkState(file.exists(), String.format("file=%s not exist", file));
+        try {
+            return new SortedRunFile(file);
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    private SortedRunFile(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        long fileLength = channel.size();
+        Preconditions.checkState(fileLength >= TRAILER_LENGTH, String.format("file=%s broken", file));
+        ByteBuffer trailer = readFully(fileLength - TRAILER_LENGTH, TRAILER_LENGTH);
+        long indexOffset = trailer.getLong();
+        long bloomOffset = trailer.getLong();
+        Preconditions.checkState(trailer.getInt() == MAGIC, String.format("file=%s broken", file));
+        this.dataLength = indexOffset;
+
+        DataInputStream indexInput = new DataInputStream(new ByteArrayInputStream(readFully(indexOffset, (int) (bloomOffset - indexOffset)).array()));
+        int indexSize = indexInput.readInt();
+        this.indexKeys = Lists.newArrayListWithCapacity(indexSize);
+        this.indexOffsets = Lists.newArrayListWithCapacity(indexSize);
+        for (int i = 0; i < indexSize; i++) {
+            byte[] key = new byte[indexInput.readInt()];
+            indexInput.readFully(key);
+            indexKeys.add(key);
+            indexOffsets.add(indexInput.readLong());
+        }
+        byte[] bloomBytes = readFully(bloomOffset, (int) (fileLength - TRAILER_LENGTH - bloomOffset)).array();
+        this.bloomFilter = BloomFilter.readFrom(new ByteArrayInputStream(bloomBytes), Funnels.byteArrayFunnel());
+    }
+
+    /**
+     * @return null表示这个run里没有这个key，TOMBSTONE表示已经被删除
+     */
+    @Nullable
+    public byte[] get(byte[] key) {
+        if (indexKeys.isEmpty() || !bloomFilter.mightContain(key)) {
+            return null;
+        }
+        int block = floorIndex(key);
+        if (block < 0) {
+            return null;
+        }
+        long from = indexOffsets.get(block);
+        long to = block + 1 < indexOffsets.size() ? indexOffsets.get(block + 1) : dataLength;
+        try {
+            ByteBuffer buffer = readFully(from, (int) (to - from));
+            while (buffer.hasRemaining()) {
+                byte[] currentKey = new byte[buffer.getInt()];
+                buffer.get(currentKey);
+                byte flag = buffer.get();
+                int valueLength = buffer.getInt();
+                int compare = KEY_COMPARATOR.compare(currentKey, key);
+                if (compare == 0) {
+                    if (flag == FLAG_TOMBSTONE) {
+                        return TOMBSTONE;
+                    }
+                    byte[] value = new byte[valueLength];
+                    buffer.get(value);
+                    return value;
+                }
+                if (compare > 0) {
+                    return null;
+                }
+                buffer.position(buffer.position() + valueLength);
+            }
+            return null;
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 顺序读整个run，包括TOMBSTONE
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+        DataInputStream input;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        } catch (FileNotFoundException e) {
+            log.error(e.getMessage(), e);
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        return new AbstractIterator<Map.Entry<byte[], byte[]>>() {
+            private long position = 0;
+
+            @Override
+            protected Map.Entry<byte[], byte[]> computeNext() {
+                try {
+                    if (position >= dataLength) {
+                        input.close();
+                        return endOfData();
+                    }
+                    byte[] key = new byte[input.readInt()];
+                    input.readFully(key);
+                    byte flag = input.readByte();
+                    byte[] value = new byte[input.readInt()];
+                    input.readFully(value);
+                    position += 4 + key.length + 1 + 4 + value.length;
+                    return Maps.immutableEntry(key, flag == FLAG_TOMBSTONE ? TOMBSTONE : value);
+                } catch (IOException e) {
+                    log.error(e.getMessage(), e);
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long length() {
+        return file.length();
+    }
+
+    /**
+     * 根据稀疏索引估算，用来初始化合并后的BloomFilter
+     */
+    public long approximateEntryCount() {
+        return (long) indexKeys.size() * INDEX_INTERVAL;
+    }
+
+    private int floorIndex(byte[] key) {
+        int low = 0;
+        int high = indexKeys.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int compare = KEY_COMPARATOR.compare(indexKeys.get(mid), key);
+            if (compare <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException(String.format("file=%s, position=%d", file, position));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+}
@@ -14,6 +14,20 @@ public class StorageEntry {
      */
     private volatile byte[] values;
 
+    /**
+     * 序列化之后的长度
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * 直接拿序列化之后的数据，不要修改
+     */
+    public byte[] getValues() {
+        return values;
+    }
+
     public LogEntry toLogEntry() {
         Preconditions.checkNotNull(values);
         return KryoUtils.deserializeLogEntry(values);
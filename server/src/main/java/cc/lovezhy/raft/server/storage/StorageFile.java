@@ -60,6 +60,11 @@ public interface StorageFile {
      * 得到读指针位置
      */
     long getReadPointer();
+
+    /**
+     * 把写入的数据fsync到磁盘，返回之后掉电也不会丢
+     */
+    void force();
     /**
      * 清除自己
      */
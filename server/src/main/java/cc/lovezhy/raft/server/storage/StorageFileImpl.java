@@ -155,6 +155,17 @@ public class StorageFileImpl implements StorageFile {
         }
     }
 
+    @Override
+    public void force() {
+        try {
+            //只需要数据落盘，文件的修改时间之类的元数据不用等
+            randomAccessFile.getChannel().force(false);
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
     @Override
     public void delete() {
     }
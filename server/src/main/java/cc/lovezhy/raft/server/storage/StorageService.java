@@ -29,4 +29,16 @@ public interface StorageService {
     int getLen();
 
     void discard(int toIndex);
+
+    /**
+     * 把已经append的Entry刷到磁盘
+     */
+    void flush();
+
+    /**
+     * flush是不是真的要写盘，内存存储的flush什么都不做
+     */
+    default boolean isPersistent() {
+        return true;
+    }
 }
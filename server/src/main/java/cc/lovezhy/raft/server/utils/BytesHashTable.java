@@ -0,0 +1,174 @@
+package cc.lovezhy.raft.server.utils;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * key和value都是byte[]的开放寻址哈希表，线性探测
+ * 相比HashMap<String, String>，不需要Entry对象和String的包装，每个key只多一个int的hash
+ */
+@NotThreadSafe
+public class BytesHashTable {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * 被删除的位置，查找的时候需要跳过继续探测
+     */
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    private byte[][] keys;
+    private byte[][] values;
+    private int[] hashes;
+
+    private int size;
+
+    /**
+     * size + 墓碑的数量
+     */
+    private int used;
+
+    public BytesHashTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public BytesHashTable(int expectedSize) {
+        Preconditions.checkState(expectedSize >= 0, String.format("expectedSize=%d", expectedSize));
+        allocate(tableSizeFor((int) (expectedSize / LOAD_FACTOR) + 1));
+    }
+
+    @Nullable
+    public byte[] get(byte[] key) {
+        Preconditions.checkNotNull(key);
+        int slot = findSlot(key, hash(key));
+        return slot < 0 ? null : values[slot];
+    }
+
+    public boolean containsKey(byte[] key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return 之前的value
+     */
+    @Nullable
+    public byte[] put(byte[] key, byte[] value) {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(value);
+        int hash = hash(key);
+        int slot = findSlot(key, hash);
+        if (slot >= 0) {
+            byte[] oldValue = values[slot];
+            values[slot] = value;
+            return oldValue;
+        }
+        if (used + 1 > keys.length * LOAD_FACTOR) {
+            //墓碑太多的时候原地rehash就够了，否则扩容
+            resize(size + 1 > keys.length * LOAD_FACTOR / 2 ? keys.length << 1 : keys.length);
+        }
+        int mask = keys.length - 1;
+        int index = hash & mask;
+        while (keys[index] != null && keys[index] != TOMBSTONE) {
+            index = (index + 1) & mask;
+        }
+        if (keys[index] == null) {
+            used++;
+        }
+        keys[index] = key;
+        values[index] = value;
+        hashes[index] = hash;
+        size++;
+        return null;
+    }
+
+    /**
+     * @return 被删除的value
+     */
+    @Nullable
+    public byte[] remove(byte[] key) {
+        Preconditions.checkNotNull(key);
+        int slot = findSlot(key, hash(key));
+        if (slot < 0) {
+            return null;
+        }
+        byte[] oldValue = values[slot];
+        keys[slot] = TOMBSTONE;
+        values[slot] = null;
+        size--;
+        return oldValue;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && keys[i] != TOMBSTONE) {
+                action.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    private int findSlot(byte[] key, int hash) {
+        int mask = keys.length - 1;
+        int index = hash & mask;
+        while (keys[index] != null) {
+            if (keys[index] != TOMBSTONE && hashes[index] == hash && Arrays.equals(keys[index], key)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize(int newCapacity) {
+        byte[][] oldKeys = keys;
+        byte[][] oldValues = values;
+        int[] oldHashes = hashes;
+        allocate(newCapacity);
+        int mask = newCapacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null || oldKeys[i] == TOMBSTONE) {
+                continue;
+            }
+            int index = oldHashes[i] & mask;
+            while (keys[index] != null) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = oldKeys[i];
+            values[index] = oldValues[i];
+            hashes[index] = oldHashes[i];
+            size++;
+            used++;
+        }
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new byte[capacity][];
+        this.values = new byte[capacity][];
+        this.hashes = new int[capacity];
+        this.size = 0;
+        this.used = 0;
+    }
+
+    private static int hash(byte[] key) {
+        int h = Arrays.hashCode(key);
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int n = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        return Math.max(n, DEFAULT_CAPACITY);
+    }
+}
@@ -1,6 +1,8 @@
 package cc.lovezhy.raft.server.utils;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.util.Objects;
 
 public class FileUtils {
     public static boolean createCategoryIfNotExist(String category) {
@@ -22,4 +24,20 @@ public class FileUtils {
         }
         return true;
     }
+
+    /**
+     * 删除文件或者整个目录，不存在的时候直接返回
+     * 符号链接只删除链接本身，不进入链接指向的目录
+     */
+    public static void deleteRecursively(File file) {
+        File[] children = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+        if (Objects.nonNull(children)) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if ((file.exists() || Files.isSymbolicLink(file.toPath())) && !file.delete()) {
+            throw new IllegalStateException(String.format("file=%s can not be delete!", file));
+        }
+    }
 }
@@ -1,5 +1,7 @@
 package cc.lovezhy.raft.server.utils;
 
+import cc.lovezhy.raft.server.log.BatchCommand;
+import cc.lovezhy.raft.server.log.BinaryCommand;
 import cc.lovezhy.raft.server.log.DefaultCommand;
 import cc.lovezhy.raft.server.log.DefaultCommandEnum;
 import cc.lovezhy.raft.server.log.LogEntry;
@@ -25,6 +27,9 @@ public class KryoUtils {
             Kryo kryo = new Kryo();
             kryo.register(DefaultCommandEnum.class);
             kryo.register(DefaultCommand.class);
+            kryo.register(BinaryCommand.class);
+            kryo.register(BatchCommand.class);
+            kryo.register(BatchCommand.Guard.class);
             kryo.register(LogEntry.class);
             kryo.register(StorageEntry.class);
             return kryo;
@@ -1,47 +1,77 @@
 package cc.lovezhy.raft.server.utils;
 
 import cc.lovezhy.raft.rpc.common.RpcExecutors;
-import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.base.Preconditions;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
+/**
+ * 所有RaftNode共用一个时间轮，选举超时和心跳都挂在上面，没有到期的定时任务不占线程
+ * <p>
+ * 任务在时间轮自己的线程里执行，会阻塞的任务要自己扔到别的线程池里
+ */
 public class TimeCountDownUtil {
 
+    /**
+     * 时间轮的精度，心跳间隔和选举超时都是几十上百毫秒，10ms足够
+     */
+    public static final long TICK_DURATION_MILLS = 10;
+
+    private static final int TICKS_PER_WHEEL = 512;
+
+    private static final HashedWheelTimer TIMER = new HashedWheelTimer(new DefaultThreadFactory("raft-timer", true), TICK_DURATION_MILLS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
 
     public static final AtomicInteger counter = new AtomicInteger();
 
-    public static ListenableFuture addSchedulerTask(long delay,
-                                                    TimeUnit timeUnit,
-                                                    Runnable task,
-                                                    Supplier<Boolean> doWhenReturnTrue) {
-        return RpcExecutors.listeningScheduledExecutor().schedule(() -> {
-                    if (doWhenReturnTrue.get()) {
-                        task.run();
-                    }
-                },
-                delay, timeUnit);
+    /**
+     * 返回的Timeout可以cancel，cancel之后任务不会再执行
+     */
+    public static Timeout newTimeout(Runnable task, long delay, TimeUnit timeUnit) {
+        Preconditions.checkNotNull(task);
+        return TIMER.newTimeout(timeout -> task.run(), delay, timeUnit);
+    }
+
+    public static Timeout addSchedulerTask(long delay,
+                                           TimeUnit timeUnit,
+                                           Runnable task,
+                                           Supplier<Boolean> doWhenReturnTrue) {
+        return newTimeout(() -> {
+            if (doWhenReturnTrue.get()) {
+                task.run();
+            }
+        }, delay, timeUnit);
     }
 
-    public static void addSchedulerTaskWithListener(long delay,
-                                                    TimeUnit timeUnit,
-                                                    Runnable task,
-                                                    Supplier<Boolean> doWhenReturnTrue,
-                                                    Runnable listener) {
-        RpcExecutors.listeningScheduledExecutor().schedule(() -> {
-                    if (doWhenReturnTrue.get()) {
-                        task.run();
-                    }
-                },
-                delay, timeUnit).addListener(listener, RpcExecutors.commonExecutor());
+    public static Timeout addSchedulerTaskWithListener(long delay,
+                                                       TimeUnit timeUnit,
+                                                       Runnable task,
+                                                       Supplier<Boolean> doWhenReturnTrue,
+                                                       Runnable listener) {
+        return newTimeout(() -> {
+            try {
+                if (doWhenReturnTrue.get()) {
+                    task.run();
+                }
+            } finally {
+                RpcExecutors.commonExecutor().execute(listener);
+            }
+        }, delay, timeUnit);
     }
 
 
-    public static void addSchedulerListener(long delay, TimeUnit timeUnit, Runnable task, Runnable listener) {
-        RpcExecutors.listeningScheduledExecutor()
-                .schedule(task, delay, timeUnit)
-                .addListener(listener, RpcExecutors.commonExecutor());
+    public static Timeout addSchedulerListener(long delay, TimeUnit timeUnit, Runnable task, Runnable listener) {
+        return newTimeout(() -> {
+            try {
+                task.run();
+            } finally {
+                RpcExecutors.commonExecutor().execute(listener);
+            }
+        }, delay, timeUnit);
     }
 
 }
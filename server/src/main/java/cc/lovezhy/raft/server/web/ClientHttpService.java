@@ -1,15 +1,21 @@
 package cc.lovezhy.raft.server.web;
 
+import cc.lovezhy.raft.server.log.BatchCommand;
+import cc.lovezhy.raft.server.log.BinaryCommand;
 import cc.lovezhy.raft.server.log.ClusterConfCommand;
 import cc.lovezhy.raft.server.log.DefaultCommand;
+import cc.lovezhy.raft.server.node.ApplyResult;
 import cc.lovezhy.raft.server.node.RaftNode;
+import cc.lovezhy.raft.server.node.ReadConsistency;
 import cc.lovezhy.raft.server.utils.EventRecorder;
 import com.google.common.base.Preconditions;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
@@ -17,7 +23,12 @@ import io.vertx.ext.web.handler.impl.BodyHandlerImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
 
 public class ClientHttpService extends AbstractVerticle {
@@ -26,6 +37,10 @@ public class ClientHttpService extends AbstractVerticle {
 
     private final String COMMAND_FILE_NAME = ClientHttpService.class.getResource("/index.html").getFile();
 
+    private static final int DEFAULT_SCAN_LIMIT = 1000;
+
+    private static final int SCAN_CHUNK_SIZE = 128;
+
     private HttpServer httpServer;
     private int port;
 
@@ -63,9 +78,27 @@ public class ClientHttpService extends AbstractVerticle {
             HttpServerResponse response = routingContext.response();
             JsonObject bodyJson = routingContext.getBodyAsJson();
             DefaultCommand command = bodyJson.mapTo(DefaultCommand.class);
-            JsonObject jsonObject = this.outerService.appendLog(command);
             response.putHeader(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
-            response.end(jsonObject.toString());
+            endWhenApplied(response, this.outerService.propose(command));
+        });
+
+        /*
+         * 一条日志写多个key，guards全部满足才执行
+         * {"commands":[{"commandEnum":"SET","key":"k","value":"v"}],"guards":[{"key":"k","notExist":true}]}
+         */
+        router.post("/batch").handler(routingContext -> {
+            HttpServerResponse response = routingContext.response();
+            response.putHeader(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+            BatchCommand command;
+            try {
+                BatchCommand body = routingContext.getBodyAsJson().mapTo(BatchCommand.class);
+                command = BatchCommand.create(body.getCommands(), body.getGuards());
+            } catch (RuntimeException e) {
+                response.setStatusCode(400);
+                response.end(new JsonObject().put("success", false).put("errMsg", e.getMessage()).toString());
+                return;
+            }
+            endWhenApplied(response, this.outerService.propose(command));
         });
 
         /*
@@ -81,13 +114,77 @@ public class ClientHttpService extends AbstractVerticle {
             response.end(res.toString());
         });
 
+        /*
+         * /key/:key?consistency=linearizable 走ReadIndex，lease走Leader租约，默认直接读本地
+         * /key/:key?consistency=bounded_staleness&maxStalenessMills=1000&maxLagEntries=100 有界陈旧读，两个参数至少要有一个
+         */
         router.get("/key/:key").handler(routingContext -> {
             HttpServerResponse response = routingContext.response();
             String key = routingContext.request().getParam("key");
-            JsonObject jsonObject = new JsonObject();
-            jsonObject.put("value", new String(outerService.getKey(key)));
             response.putHeader(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
-            response.end(jsonObject.toString());
+            endWhenReadable(routingContext.request(), response, () -> {
+                JsonObject jsonObject = new JsonObject();
+                jsonObject.put("value", new String(outerService.getKey(key), StandardCharsets.UTF_8));
+                response.end(jsonObject.toString());
+            });
+        });
+
+        /*
+         * 范围查询，每行一个JSON，分块输出
+         * /scan?from=&to=&limit= 或者 /scan?prefix=&limit=
+         */
+        router.get("/scan").handler(routingContext -> {
+            HttpServerResponse response = routingContext.response();
+            HttpServerRequest request = routingContext.request();
+            int limit;
+            Iterator<Map.Entry<String, String>> iterator;
+            try {
+                limit = Objects.isNull(request.getParam("limit")) ? DEFAULT_SCAN_LIMIT : Integer.parseInt(request.getParam("limit"));
+                iterator = outerService.scan(request.getParam("from"), request.getParam("to"), request.getParam("prefix"), limit);
+            } catch (NumberFormatException | UnsupportedOperationException | IllegalStateException e) {
+                response.setStatusCode(400);
+                response.end(new JsonObject().put("success", false).put("errMsg", e.getMessage()).toString());
+                return;
+            }
+            response.setChunked(true);
+            response.putHeader(HttpHeaderNames.CONTENT_TYPE, "application/x-ndjson");
+            writeScanResult(response, iterator);
+        });
+
+        /*
+         * 二进制的KV，value直接是body的bytes
+         */
+        router.get("/binary/:key").handler(routingContext -> {
+            HttpServerResponse response = routingContext.response();
+            if (!checkBinaryCommandSupported(response)) {
+                return;
+            }
+            byte[] key = routingContext.request().getParam("key").getBytes(StandardCharsets.UTF_8);
+            endWhenReadable(routingContext.request(), response, () -> {
+                response.putHeader(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM);
+                response.end(Buffer.buffer(outerService.getKey(key)));
+            });
+        });
+
+        router.put("/binary/:key").handler(routingContext -> {
+            HttpServerResponse response = routingContext.response();
+            if (!checkBinaryCommandSupported(response)) {
+                return;
+            }
+            byte[] key = routingContext.request().getParam("key").getBytes(StandardCharsets.UTF_8);
+            BinaryCommand command = BinaryCommand.setCommand(key, routingContext.getBody().getBytes());
+            response.putHeader(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+            endWhenApplied(response, this.outerService.propose(command));
+        });
+
+        router.delete("/binary/:key").handler(routingContext -> {
+            HttpServerResponse response = routingContext.response();
+            if (!checkBinaryCommandSupported(response)) {
+                return;
+            }
+            byte[] key = routingContext.request().getParam("key").getBytes(StandardCharsets.UTF_8);
+            response.putHeader(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+            endWhenApplied(response, this.outerService.propose(BinaryCommand.removeCommand(key)));
         });
 
         /*
@@ -97,9 +194,8 @@ public class ClientHttpService extends AbstractVerticle {
             HttpServerResponse response = routingContext.response();
             JsonObject bodyJson = routingContext.getBodyAsJson();
             ClusterConfCommand clusterConfCommand = bodyJson.mapTo(ClusterConfCommand.class);
-            JsonObject jsonObject = outerService.appendLog(clusterConfCommand, true);
             response.putHeader(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
-            response.end(jsonObject.toString());
+            endWhenApplied(response, outerService.propose(clusterConfCommand));
         });
 
         /*
@@ -136,6 +232,93 @@ public class ClientHttpService extends AbstractVerticle {
         log.info("start httpServer at port={}", this.port);
     }
 
+    /**
+     * 每次最多写SCAN_CHUNK_SIZE条，写缓冲满了就等drain再继续
+     */
+    private void writeScanResult(HttpServerResponse response, Iterator<Map.Entry<String, String>> iterator) {
+        while (iterator.hasNext()) {
+            Buffer chunk = Buffer.buffer();
+            for (int i = 0; i < SCAN_CHUNK_SIZE && iterator.hasNext(); i++) {
+                Map.Entry<String, String> entry = iterator.next();
+                chunk.appendString(new JsonObject().put("key", entry.getKey()).put("value", entry.getValue()).toString()).appendString("\n");
+            }
+            response.write(chunk);
+            if (response.writeQueueFull()) {
+                response.drainHandler(v -> writeScanResult(response, iterator));
+                return;
+            }
+        }
+        response.end();
+    }
+
+    /**
+     * 按请求里的consistency等到可以读了再读状态机，不阻塞event loop
+     */
+    private void endWhenReadable(HttpServerRequest request, HttpServerResponse response, Runnable read) {
+        ReadConsistency consistency = ReadConsistency.fromParam(request.getParam("consistency"));
+        if (Objects.isNull(consistency)) {
+            response.setStatusCode(400);
+            response.putHeader(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+            response.end(new JsonObject().put("success", false).put("errMsg", "unknown consistency " + request.getParam("consistency")).toString());
+            return;
+        }
+        CompletableFuture<Void> readable;
+        if (consistency == ReadConsistency.BOUNDED_STALENESS) {
+            try {
+                readable = outerService.awaitBoundedStaleness(parseLong(request.getParam("maxStalenessMills")), parseLong(request.getParam("maxLagEntries")));
+            } catch (NumberFormatException | IllegalStateException e) {
+                response.setStatusCode(400);
+                response.putHeader(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+                response.end(new JsonObject().put("success", false).put("errMsg", e.getMessage()).toString());
+                return;
+            }
+        } else {
+            readable = outerService.awaitReadable(consistency);
+        }
+        readable.whenComplete((v, t) -> {
+            if (Objects.isNull(t)) {
+                read.run();
+                return;
+            }
+            Throwable cause = t instanceof CompletionException && Objects.nonNull(t.getCause()) ? t.getCause() : t;
+            response.setStatusCode(503);
+            response.putHeader(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+            response.end(new JsonObject().put("success", false).put("errMsg", String.valueOf(cause.getMessage())).toString());
+        });
+    }
+
+    /**
+     * 状态机不支持BinaryCommand的时候返回400
+     */
+    private boolean checkBinaryCommandSupported(HttpServerResponse response) {
+        try {
+            outerService.checkBinaryCommandSupported();
+            return true;
+        } catch (UnsupportedOperationException e) {
+            response.setStatusCode(400);
+            response.putHeader(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+            response.end(new JsonObject().put("success", false).put("errMsg", e.getMessage()).toString());
+            return false;
+        }
+    }
+
+    private static Long parseLong(String param) {
+        return Objects.isNull(param) ? null : Long.parseLong(param);
+    }
+
+    /**
+     * 不阻塞event loop，propose完成之后再返回
+     */
+    private void endWhenApplied(HttpServerResponse response, CompletableFuture<ApplyResult> future) {
+        future.whenComplete((applyResult, t) -> {
+            if (Objects.nonNull(t)) {
+                response.end(ApplyResult.fail(String.valueOf(t.getMessage())).toJson().toString());
+            } else {
+                response.end(applyResult.toJson().toString());
+            }
+        });
+    }
+
     public void close() {
         try {
             CountDownLatch countDownLatch = new CountDownLatch(1);
@@ -0,0 +1,54 @@
+package cc.lovezhy.raft.server;
+
+import cc.lovezhy.raft.server.log.BinaryCommand;
+import cc.lovezhy.raft.server.log.DefaultCommand;
+import cc.lovezhy.raft.server.log.LogEntry;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class BinaryStateMachineTest {
+
+    @Test
+    public void applyAndSnapshotTest() {
+        BinaryStateMachine stateMachine = new BinaryStateMachine();
+        Map<String, Object> expect = Maps.newHashMap();
+        Random random = new Random(1);
+        List<LogEntry> logEntries = Lists.newArrayList();
+        for (int i = 0; i < 10000; i++) {
+            String key = "key" + random.nextInt(2000);
+            if (random.nextInt(4) == 0) {
+                logEntries.add(LogEntry.of(BinaryCommand.removeCommand(key.getBytes()), 1L));
+                expect.remove(key);
+            } else {
+                String value = "value" + i;
+                logEntries.add(LogEntry.of(BinaryCommand.setCommand(key.getBytes(), value.getBytes()), 1L));
+                expect.put(key, value);
+            }
+        }
+        stateMachine.applyBatch(logEntries, 1L);
+        stateMachine.apply(DefaultCommand.setCommand("stringKey", "stringValue"));
+        expect.put("stringKey", "stringValue");
+        Assert.assertEquals(expect, stateMachine.fetchAllEntry());
+        Assert.assertEquals("stringValue", new String(stateMachine.getValue("stringKey")));
+        Assert.assertEquals(0, stateMachine.getValue("notExist").length);
+
+        BinaryStateMachine restored = new BinaryStateMachine();
+        restored.fromSnapShot(stateMachine.takeSnapShot());
+        Assert.assertEquals(expect, restored.fetchAllEntry());
+        Assert.assertEquals(expect.size(), restored.size());
+    }
+
+    @Test
+    public void supportBinaryCommandTest() {
+        Assert.assertTrue(new BinaryStateMachine().supportBinaryCommand());
+        //其他状态机会跳过BinaryCommand，http接口要拒绝
+        Assert.assertFalse(new DefaultStateMachine().supportBinaryCommand());
+        Assert.assertFalse(new OrderedStateMachine().supportBinaryCommand());
+    }
+}
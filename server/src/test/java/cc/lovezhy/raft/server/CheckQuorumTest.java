@@ -0,0 +1,57 @@
+package cc.lovezhy.raft.server;
+
+import cc.lovezhy.raft.server.log.DefaultCommand;
+import cc.lovezhy.raft.server.node.NodeId;
+import cc.lovezhy.raft.server.node.RaftNode;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static cc.lovezhy.raft.server.RaftConstants.CHECK_QUORUM_TIMEOUT;
+import static cc.lovezhy.raft.server.RaftConstants.HEART_BEAT_TIME_INTERVAL;
+import static cc.lovezhy.raft.server.mock6824.Utils.pause;
+
+public class CheckQuorumTest {
+
+    private ClusterManager clusterManager;
+
+    @Test
+    public void testPartitionedLeaderStepDown() {
+        int servers = 3;
+        clusterManager = ClusterManager.newCluster(servers, false);
+        clusterManager.one(DefaultCommand.setCommand("key", "value"), servers, true);
+
+        NodeId leaderId = clusterManager.checkOneLeader();
+        RaftNode leader = clusterManager.getRaftNode(leaderId);
+        clusterManager.disconnect(leaderId);
+        //联系不上多数派，一个选举超时之后自己变回Follower
+        pause(CHECK_QUORUM_TIMEOUT + 2 * HEART_BEAT_TIME_INTERVAL);
+        Assert.assertFalse(leader.getNodeScheduler().isLeader());
+        Assert.assertFalse(leader.getOuterService().appendLog(DefaultCommand.setCommand("key", "value1")).getBoolean("success"));
+
+        //剩下的多数派照常工作
+        clusterManager.one(DefaultCommand.setCommand("key", "value2"), servers - 1, true);
+
+        clusterManager.connect(leaderId);
+        clusterManager.one(DefaultCommand.setCommand("key", "value3"), servers, true);
+    }
+
+    @Test
+    public void testLeaderKeepsQuorum() {
+        int servers = 3;
+        clusterManager = ClusterManager.newCluster(servers, false);
+        clusterManager.one(DefaultCommand.setCommand("key", "value"), servers, true);
+
+        NodeId leaderId = clusterManager.checkOneLeader();
+        //只断开一个Follower，Leader还能联系上多数派
+        clusterManager.disconnect(clusterManager.nextNode(leaderId));
+        pause(3 * CHECK_QUORUM_TIMEOUT);
+        Assert.assertTrue(clusterManager.getRaftNode(leaderId).getNodeScheduler().isLeader());
+        Assert.assertEquals(leaderId, clusterManager.checkOneLeader());
+    }
+
+    @After
+    public void end() {
+        clusterManager.end();
+    }
+}
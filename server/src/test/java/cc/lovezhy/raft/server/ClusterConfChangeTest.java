@@ -74,6 +74,31 @@ public class ClusterConfChangeTest {
         clusterChangeConfig.one(defineNumberCommand(3), servers - 1, true);
     }
 
+    @Test
+    public void testAddLearner() {
+        int servers = 3;
+        clusterChangeConfig = ClusterManager.newCluster(servers, false);
+        clusterChangeConfig.one(defineNumberCommand(1), servers, true);
+
+        ClusterConfCommand clusterConfCommand = clusterChangeConfig.newAddLearnerCommand();
+        NodeId learnerNodeId = NodeId.create(servers);
+        EndPoint leaderRpcEndPoint = clusterChangeConfig.fetchLeaderEndPoint();
+        HttpUtils.postConfCommand(EndPoint.create(leaderRpcEndPoint.getHost(), leaderRpcEndPoint.getPort() + 2), clusterConfCommand);
+        clusterChangeConfig.one(defineNumberCommand(2), servers + 1, true);
+
+        //Learner不算进多数派，断开之后照样commit
+        clusterChangeConfig.disconnect(learnerNodeId);
+        clusterChangeConfig.one(defineNumberCommand(3), servers, true);
+        clusterChangeConfig.connect(learnerNodeId);
+
+        pause(TimeUnit.SECONDS.toMillis(1));
+        clusterConfCommand = clusterChangeConfig.newPromoteLearnerCommand(learnerNodeId);
+        leaderRpcEndPoint = clusterChangeConfig.fetchLeaderEndPoint();
+        HttpUtils.postConfCommand(EndPoint.create(leaderRpcEndPoint.getHost(), leaderRpcEndPoint.getPort() + 2), clusterConfCommand);
+        clusterChangeConfig.one(defineNumberCommand(4), servers + 1, true);
+        clusterChangeConfig.checkClusterConfig();
+    }
+
     @After
     public void end() {
         clusterChangeConfig.end();
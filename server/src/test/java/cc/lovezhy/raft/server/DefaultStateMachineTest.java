@@ -0,0 +1,92 @@
+package cc.lovezhy.raft.server;
+
+import cc.lovezhy.raft.server.log.BatchCommand;
+import cc.lovezhy.raft.server.log.DefaultCommand;
+import cc.lovezhy.raft.server.log.LogEntry;
+import cc.lovezhy.raft.server.utils.KryoUtils;
+import com.google.common.collect.Lists;
+import io.vertx.core.json.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class DefaultStateMachineTest {
+
+    @Test
+    public void applyBatchTest() {
+        DefaultStateMachine stateMachine = new DefaultStateMachine();
+        stateMachine.apply(DefaultCommand.setCommand("c", "0"));
+        List<LogEntry> logEntries = Lists.newArrayList();
+        logEntries.add(LogEntry.of(DefaultCommand.setCommand("a", "1"), 1L));
+        logEntries.add(LogEntry.of(DefaultCommand.setCommand("b", "2"), 1L));
+        logEntries.add(LogEntry.of(DefaultCommand.removeCommand("a"), 1L));
+        logEntries.add(LogEntry.of(DefaultCommand.setCommand("b", "3"), 1L));
+        logEntries.add(LogEntry.of(DefaultCommand.removeCommand("c"), 1L));
+        logEntries.add(LogEntry.of(DefaultCommand.setCommand("c", "4"), 1L));
+        stateMachine.applyBatch(logEntries, 1L);
+        Assert.assertFalse(stateMachine.getMap().containsKey("a"));
+        Assert.assertEquals("3", new String(stateMachine.getValue("b")));
+        Assert.assertEquals("4", new String(stateMachine.getValue("c")));
+    }
+
+    @Test
+    public void batchCommandTest() {
+        DefaultStateMachine stateMachine = new DefaultStateMachine();
+        BatchCommand transfer = BatchCommand.create(
+                Lists.newArrayList(DefaultCommand.setCommand("a", "0"), DefaultCommand.setCommand("b", "10"), DefaultCommand.removeCommand("lock")),
+                Lists.newArrayList(BatchCommand.Guard.create("a", "10"), BatchCommand.Guard.create("b", "0")));
+        LogEntry transferEntry = KryoUtils.deserializeLogEntry(KryoUtils.serializeLogEntry(LogEntry.of(transfer, 1L)));
+        Assert.assertEquals(transfer, transferEntry.getCommand());
+        JsonObject body = new JsonObject("{\"commands\":[{\"commandEnum\":\"SET\",\"key\":\"a\",\"value\":\"0\"},{\"commandEnum\":\"SET\",\"key\":\"b\",\"value\":\"10\"},{\"commandEnum\":\"REMOVE\",\"key\":\"lock\",\"value\":\"\"}],"
+                + "\"guards\":[{\"key\":\"a\",\"expectedValue\":\"10\"},{\"key\":\"b\",\"expectedValue\":\"0\"}]}");
+        Assert.assertEquals(transfer, body.mapTo(BatchCommand.class));
+
+        List<LogEntry> logEntries = Lists.newArrayList();
+        logEntries.add(LogEntry.of(DefaultCommand.setCommand("a", "10"), 1L));
+        logEntries.add(LogEntry.of(DefaultCommand.setCommand("b", "0"), 1L));
+        logEntries.add(LogEntry.of(DefaultCommand.setCommand("lock", "1"), 1L));
+        //guards要看到同一批里前面的日志
+        logEntries.add(transferEntry);
+        //guards不满足，不生效
+        logEntries.add(LogEntry.of(transfer, 1L));
+        logEntries.add(LogEntry.of(BatchCommand.create(Lists.newArrayList(DefaultCommand.setCommand("c", "1")), Lists.newArrayList(BatchCommand.Guard.notExist("lock"))), 1L));
+        stateMachine.applyBatch(logEntries, 1L);
+        Assert.assertEquals("0", new String(stateMachine.getValue("a")));
+        Assert.assertEquals("10", new String(stateMachine.getValue("b")));
+        Assert.assertFalse(stateMachine.getMap().containsKey("lock"));
+        Assert.assertEquals("1", new String(stateMachine.getValue("c")));
+    }
+
+    @Test
+    public void guardTest() {
+        DefaultStateMachine stateMachine = new DefaultStateMachine();
+        stateMachine.apply(DefaultCommand.setCommand("empty", ""));
+        stateMachine.apply(DefaultCommand.setCommand("中文", "值"));
+        //空字符串和不存在是两回事
+        Assert.assertFalse(stateMachine.apply(guarded(BatchCommand.Guard.create("missing", ""))));
+        Assert.assertFalse(stateMachine.apply(guarded(BatchCommand.Guard.notExist("empty"))));
+        Assert.assertTrue(stateMachine.apply(guarded(BatchCommand.Guard.create("empty", ""))));
+        Assert.assertTrue(stateMachine.apply(guarded(BatchCommand.Guard.notExist("missing"))));
+        Assert.assertTrue(stateMachine.apply(guarded(BatchCommand.Guard.create("中文", "值"))));
+        Assert.assertEquals("值", new String(stateMachine.getValue("中文".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+
+        JsonObject body = new JsonObject("{\"commands\":[{\"commandEnum\":\"SET\",\"key\":\"k\",\"value\":\"v\"}],\"guards\":[{\"key\":\"k\",\"notExist\":true}]}");
+        BatchCommand parsed = body.mapTo(BatchCommand.class);
+        Assert.assertEquals(BatchCommand.Guard.notExist("k"), parsed.getGuards().get(0));
+        Assert.assertEquals(parsed, KryoUtils.deserializeLogEntry(KryoUtils.serializeLogEntry(LogEntry.of(parsed, 1L))).getCommand());
+        //既没有expectedValue也没有notExist的guard不合法
+        BatchCommand invalid = new JsonObject("{\"commands\":[{\"commandEnum\":\"SET\",\"key\":\"k\",\"value\":\"v\"}],\"guards\":[{\"key\":\"k\"}]}").mapTo(BatchCommand.class);
+        try {
+            BatchCommand.create(invalid.getCommands(), invalid.getGuards());
+            Assert.fail("guard without expectedValue should be rejected");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+    }
+
+    private static BatchCommand guarded(BatchCommand.Guard guard) {
+        return BatchCommand.create(Lists.newArrayList(DefaultCommand.setCommand("c", "1")), Lists.newArrayList(guard));
+    }
+}
@@ -0,0 +1,149 @@
+package cc.lovezhy.raft.server;
+
+import cc.lovezhy.raft.server.log.BatchCommand;
+import cc.lovezhy.raft.server.log.DefaultCommand;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class DiskStateMachineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public TemporaryFolder otherFolder = new TemporaryFolder();
+
+    private DiskStateMachine stateMachine;
+
+    @Before
+    public void setUp() {
+        stateMachine = new DiskStateMachine(folder.getRoot(), 1024, false);
+    }
+
+    @After
+    public void tearDown() {
+        stateMachine.close();
+    }
+
+    @Test
+    public void flushAndCompactionTest() throws InterruptedException {
+        for (int i = 0; i < 2000; i++) {
+            stateMachine.apply(DefaultCommand.setCommand("key" + i, "value" + i));
+        }
+        for (int i = 0; i < 2000; i += 2) {
+            stateMachine.apply(DefaultCommand.removeCommand("key" + i));
+        }
+        stateMachine.apply(DefaultCommand.setCommand("key1", "newValue"));
+        assertData(stateMachine);
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (stateMachine.runCount() > 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(stateMachine.runCount() <= 4);
+        assertData(stateMachine);
+        Map<String, Object> entries = stateMachine.fetchAllEntry();
+        Assert.assertEquals(1000, entries.size());
+        Assert.assertEquals("newValue", entries.get("key1"));
+    }
+
+    @Test
+    public void guardTest() {
+        stateMachine.apply(DefaultCommand.setCommand("empty", ""));
+        stateMachine.apply(DefaultCommand.setCommand("removed", "1"));
+        stateMachine.apply(DefaultCommand.removeCommand("removed"));
+        Assert.assertTrue(stateMachine.containsKey("empty"));
+        Assert.assertFalse(stateMachine.containsKey("removed"));
+        Assert.assertFalse(stateMachine.apply(BatchCommand.create(Lists.newArrayList(DefaultCommand.setCommand("c", "1")), Lists.newArrayList(BatchCommand.Guard.notExist("empty")))));
+        Assert.assertTrue(stateMachine.apply(BatchCommand.create(Lists.newArrayList(DefaultCommand.setCommand("c", "1")), Lists.newArrayList(BatchCommand.Guard.notExist("removed")))));
+        Assert.assertEquals("1", new String(stateMachine.getValue("c"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void snapshotTest() throws IOException {
+        for (int i = 0; i < 2000; i++) {
+            stateMachine.apply(DefaultCommand.setCommand("key" + i, "value" + i));
+        }
+        for (int i = 0; i < 2000; i += 2) {
+            stateMachine.apply(DefaultCommand.removeCommand("key" + i));
+        }
+        stateMachine.apply(DefaultCommand.setCommand("key1", "newValue"));
+        byte[] snapShot = stateMachine.takeSnapShot();
+        //snapshot之后的写入不影响snapshot
+        stateMachine.apply(DefaultCommand.setCommand("key3", "afterSnapshot"));
+
+        DiskStateMachine local = DiskStateMachine.createTemporary();
+        DiskStateMachine remote = DiskStateMachine.createTemporary();
+        DiskStateMachine streamed = DiskStateMachine.createTemporary();
+        try {
+            local.fromSnapShot(snapShot);
+            assertData(local);
+            remote.fromSnapShot(stateMachine.exportSnapShot(snapShot));
+            assertData(remote);
+            Assert.assertEquals(local.fetchAllEntry(), remote.fetchAllEntry());
+            //按流导出和恢复，不经过byte[]
+            try (InputStream inputStream = stateMachine.openSnapShot(snapShot)) {
+                streamed.fromSnapShot(inputStream);
+            }
+            Assert.assertEquals(local.fetchAllEntry(), streamed.fetchAllEntry());
+        } finally {
+            local.close();
+            remote.close();
+            streamed.close();
+        }
+    }
+
+    private void assertData(DiskStateMachine diskStateMachine) {
+        Assert.assertEquals("newValue", new String(diskStateMachine.getValue("key1")));
+        for (int i = 2; i < 2000; i++) {
+            byte[] value = diskStateMachine.getValue(("key" + i).getBytes(StandardCharsets.UTF_8));
+            if (i % 2 == 0) {
+                Assert.assertEquals(0, value.length);
+            } else {
+                Assert.assertEquals("value" + i, new String(value));
+            }
+        }
+    }
+
+    @Test
+    public void directoryTest() throws IOException {
+        //自己创建的目录重启的时候清空
+        stateMachine.apply(DefaultCommand.setCommand("key", "value"));
+        stateMachine.takeSnapShot();
+        stateMachine.close();
+        stateMachine = new DiskStateMachine(folder.getRoot(), 1024, false);
+        Assert.assertEquals(0, stateMachine.getValue("key").length);
+
+        //不是自己创建的非空目录拒绝启动，不能删掉里面的文件
+        File other = otherFolder.getRoot();
+        File data = new File(other, "data");
+        Files.write(data.toPath(), "data".getBytes(StandardCharsets.UTF_8));
+        try {
+            new DiskStateMachine(other, 1024, false);
+            Assert.fail("should not clear directory not created by DiskStateMachine");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        Assert.assertTrue(data.exists());
+
+        //清空的时候不进入符号链接指向的目录
+        File linked = new File(folder.getRoot(), "linked");
+        Files.createSymbolicLink(linked.toPath(), other.toPath());
+        stateMachine.close();
+        stateMachine = new DiskStateMachine(folder.getRoot(), 1024, false);
+        Assert.assertTrue(data.exists());
+    }
+}
@@ -0,0 +1,54 @@
+package cc.lovezhy.raft.server;
+
+import cc.lovezhy.raft.server.log.DefaultCommand;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class OrderedStateMachineTest {
+
+    private OrderedStateMachine stateMachine;
+
+    @Before
+    public void setUp() {
+        stateMachine = new OrderedStateMachine();
+        for (String key : new String[]{"user/3", "user/1", "order/1", "user/2", "zone"}) {
+            stateMachine.apply(DefaultCommand.setCommand(key, key + "-value"));
+        }
+        stateMachine.apply(DefaultCommand.removeCommand("user/3"));
+    }
+
+    @Test
+    public void scanRangeTest() {
+        Assert.assertEquals(Lists.newArrayList("order/1", "user/1", "user/2", "zone"), keys(stateMachine.scan(null, null, 10)));
+        Assert.assertEquals(Lists.newArrayList("user/1", "user/2"), keys(stateMachine.scan("user/", "zone", 10)));
+        Assert.assertEquals(Lists.newArrayList("user/1"), keys(stateMachine.scan("user/", null, 1)));
+        Assert.assertEquals(Lists.newArrayList("order/1"), keys(stateMachine.scan(null, "user/1", 10)));
+        Assert.assertTrue(keys(stateMachine.scan("zone", "a", 10)).isEmpty());
+    }
+
+    @Test
+    public void scanPrefixTest() {
+        Assert.assertEquals(Lists.newArrayList("user/1", "user/2"), keys(stateMachine.scanPrefix("user/", 10)));
+        Assert.assertTrue(keys(stateMachine.scanPrefix("none", 10)).isEmpty());
+    }
+
+    @Test
+    public void snapshotTest() {
+        OrderedStateMachine restored = new OrderedStateMachine();
+        restored.fromSnapShot(stateMachine.takeSnapShot());
+        Assert.assertEquals(stateMachine.fetchAllEntry(), restored.fetchAllEntry());
+        Assert.assertEquals(keys(stateMachine.scan(null, null, 10)), keys(restored.scan(null, null, 10)));
+    }
+
+    private List<String> keys(Iterator<Map.Entry<String, String>> iterator) {
+        List<String> keys = Lists.newArrayList();
+        iterator.forEachRemaining(entry -> keys.add(entry.getKey()));
+        return keys;
+    }
+}
@@ -0,0 +1,158 @@
+package cc.lovezhy.raft.server;
+
+import cc.lovezhy.raft.server.log.DefaultCommand;
+import cc.lovezhy.raft.server.node.NodeId;
+import cc.lovezhy.raft.server.node.RaftNode;
+import cc.lovezhy.raft.server.node.ReadConsistency;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static cc.lovezhy.raft.server.mock6824.Utils.pause;
+
+public class ReadIndexTest {
+
+    private ClusterManager clusterManager;
+
+    @Test
+    public void testLinearizableRead() throws Exception {
+        int servers = 3;
+        clusterManager = ClusterManager.newCluster(servers, false);
+        clusterManager.one(DefaultCommand.setCommand("key", "value"), servers, true);
+
+        RaftNode leader = clusterManager.getRaftNode(clusterManager.checkOneLeader());
+        leader.getOuterService().awaitReadable(ReadConsistency.LINEARIZABLE).get(1, TimeUnit.SECONDS);
+        Assert.assertEquals("value", new String(leader.getOuterService().getKey("key")));
+
+        //并发的读共用心跳，全部都能完成
+        List<CompletableFuture<Void>> futures = IntStream.range(0, 100)
+                .mapToObj(i -> leader.getOuterService().awaitReadable(ReadConsistency.LINEARIZABLE))
+                .collect(Collectors.toList());
+        for (CompletableFuture<Void> future : futures) {
+            future.get(1, TimeUnit.SECONDS);
+        }
+
+    }
+
+    @Test
+    public void testFollowerRead() throws Exception {
+        int servers = 3;
+        clusterManager = ClusterManager.newCluster(servers, false);
+        clusterManager.one(DefaultCommand.setCommand("key", "value"), servers, true);
+
+        NodeId leaderId = clusterManager.checkOneLeader();
+        RaftNode follower = clusterManager.getRaftNode(clusterManager.nextNode(leaderId));
+        //写在Leader上apply之后马上在Follower上读，Follower要先等自己apply到Leader的commitIndex
+        for (int i = 0; i < 20; i++) {
+            String value = String.valueOf(i);
+            Assert.assertTrue(clusterManager.getRaftNode(leaderId).getOuterService().appendLog(DefaultCommand.setCommand("key", value)).getBoolean("success"));
+            follower.getOuterService().awaitReadable(ReadConsistency.LINEARIZABLE).get(1, TimeUnit.SECONDS);
+            Assert.assertEquals(value, new String(follower.getOuterService().getKey("key")));
+        }
+
+        //Follower和Leader断开之后拿不到ReadIndex
+        clusterManager.disconnect(follower.getNodeId());
+        try {
+            follower.getOuterService().awaitReadable(ReadConsistency.LINEARIZABLE).get(1, TimeUnit.SECONDS);
+            Assert.fail("partitioned follower should not serve linearizable read");
+        } catch (ExecutionException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testPartitionedLeaderRead() throws Exception {
+        int servers = 3;
+        clusterManager = ClusterManager.newCluster(servers, false);
+        clusterManager.one(DefaultCommand.setCommand("key", "value"), servers, true);
+
+        NodeId leaderId = clusterManager.checkOneLeader();
+        clusterManager.disconnect(leaderId);
+        //被分区的旧Leader确认不了自己的身份，不能返回可能过期的数据
+        try {
+            clusterManager.getRaftNode(leaderId).getOuterService().awaitReadable(ReadConsistency.LINEARIZABLE).get(1, TimeUnit.SECONDS);
+            Assert.fail("partitioned leader should not serve linearizable read");
+        } catch (ExecutionException e) {
+            //expected
+        }
+
+        clusterManager.one(DefaultCommand.setCommand("key", "value1"), servers - 1, true);
+        RaftNode newLeader = clusterManager.getRaftNode(clusterManager.checkOneLeader());
+        newLeader.getOuterService().awaitReadable(ReadConsistency.LINEARIZABLE).get(1, TimeUnit.SECONDS);
+        Assert.assertEquals("value1", new String(newLeader.getOuterService().getKey("key")));
+    }
+
+    @Test
+    public void testLeaseRead() throws Exception {
+        int servers = 3;
+        clusterManager = ClusterManager.newCluster(servers, false);
+        clusterManager.fetchAllNodeId().forEach(nodeId -> clusterManager.getRaftNode(nodeId).setLeaderLease(true));
+        clusterManager.one(DefaultCommand.setCommand("key", "value"), servers, true);
+
+        NodeId leaderId = clusterManager.checkOneLeader();
+        RaftNode leader = clusterManager.getRaftNode(leaderId);
+        leader.getOuterService().awaitReadable(ReadConsistency.LEASE).get(1, TimeUnit.SECONDS);
+        Assert.assertEquals("value", new String(leader.getOuterService().getKey("key")));
+
+        //租约过期之后，被分区的旧Leader不能再读
+        clusterManager.disconnect(leaderId);
+        pause(RaftConstants.LEADER_LEASE_TIMEOUT + 50);
+        try {
+            leader.getOuterService().awaitReadable(ReadConsistency.LEASE).get(1, TimeUnit.SECONDS);
+            Assert.fail("partitioned leader should not serve lease read");
+        } catch (ExecutionException e) {
+            //expected
+        }
+
+        //Follower拒绝投票不影响旧Leader失联之后的选举
+        clusterManager.one(DefaultCommand.setCommand("key", "value1"), servers - 1, true);
+        RaftNode newLeader = clusterManager.getRaftNode(clusterManager.checkOneLeader());
+        newLeader.getOuterService().awaitReadable(ReadConsistency.LEASE).get(1, TimeUnit.SECONDS);
+        Assert.assertEquals("value1", new String(newLeader.getOuterService().getKey("key")));
+    }
+
+    @Test
+    public void testBoundedStalenessRead() throws Exception {
+        int servers = 3;
+        clusterManager = ClusterManager.newCluster(servers, false);
+        clusterManager.one(DefaultCommand.setCommand("key", "value"), servers, true);
+
+        NodeId leaderId = clusterManager.checkOneLeader();
+        RaftNode follower = clusterManager.getRaftNode(clusterManager.nextNode(leaderId));
+        follower.getOuterService().awaitBoundedStaleness(1000L, null).get(1, TimeUnit.SECONDS);
+        Assert.assertEquals("value", new String(follower.getOuterService().getKey("key")));
+        clusterManager.getRaftNode(leaderId).getOuterService().awaitBoundedStaleness(1000L, null).get(1, TimeUnit.SECONDS);
+        follower.getOuterService().awaitBoundedStaleness(null, 0L).get(1, TimeUnit.SECONDS);
+
+        //和Leader断开之后，超过了时间的读失败，时间范围够大的还能继续读本地
+        clusterManager.disconnect(follower.getNodeId());
+        pause(500);
+        try {
+            follower.getOuterService().awaitBoundedStaleness(200L, null).get(1, TimeUnit.SECONDS);
+            Assert.fail("partitioned follower should be too stale");
+        } catch (ExecutionException e) {
+            //expected
+        }
+        //只限制条数的时候，太久没联系Leader也算太旧
+        try {
+            follower.getOuterService().awaitBoundedStaleness(null, 0L).get(1, TimeUnit.SECONDS);
+            Assert.fail("partitioned follower should not trust an old leaderCommit");
+        } catch (ExecutionException e) {
+            //expected
+        }
+        follower.getOuterService().awaitBoundedStaleness(TimeUnit.MINUTES.toMillis(1), null).get(1, TimeUnit.SECONDS);
+        Assert.assertEquals("value", new String(follower.getOuterService().getKey("key")));
+    }
+
+    @After
+    public void end() {
+        clusterManager.end();
+    }
+}
@@ -2,9 +2,12 @@ package cc.lovezhy.raft.server.log;
 
 import cc.lovezhy.raft.server.DefaultStateMachine;
 import cc.lovezhy.raft.server.StateMachine;
+import cc.lovezhy.raft.server.service.model.ReplicatedLogRequest;
 import cc.lovezhy.raft.server.storage.StorageType;
 import cc.lovezhy.raft.server.utils.EventRecorder;
+import cc.lovezhy.raft.server.utils.KryoUtils;
 import com.google.common.collect.Lists;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -12,6 +15,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 public class LogServiceTest {
 
@@ -33,6 +41,11 @@ public class LogServiceTest {
         this.logEntries.add(LogEntry.of(DefaultCommand.setCommand("zhuyichen3", "3"), 3L));
     }
 
+    @After
+    public void tearDown() {
+        this.logService.close();
+    }
+
     @Test(expected = IllegalStateException.class)
     public void getEntryTestOfWrongIndex() {
         logService.get(-1);
@@ -73,6 +86,167 @@ public class LogServiceTest {
         logService.appendLog(4, this.logEntries.subList(2, 4));
     }
 
+    @Test
+    public void staleAppendLogNotTruncateTest() {
+        logService.appendLog(this.logEntries);
+        //比本地日志短的旧请求，不能删除后面已经有的日志
+        logService.appendLog(1, this.logEntries.subList(0, 2));
+        Assert.assertEquals(this.logEntries.size(), logService.getLastLogIndex());
+        //term冲突的时候才删除
+        LogEntry conflictEntry = LogEntry.of(DefaultCommand.setCommand("conflict", "2"), 5L);
+        logService.appendLog(3, Lists.newArrayList(conflictEntry));
+        Assert.assertEquals(3, logService.getLastLogIndex());
+        Assert.assertEquals(conflictEntry, logService.get(3));
+    }
+
+    @Test
+    public void flushTest() {
+        logService.appendLog(this.logEntries);
+        //append之后还没有刷盘
+        Assert.assertEquals(0, logService.getLastPersistedLogIndex());
+        Assert.assertEquals(this.logEntries.size(), logService.flush());
+        Assert.assertEquals(this.logEntries.size(), logService.getLastPersistedLogIndex());
+        //截断之后持久化的位置跟着回退
+        LogEntry conflictEntry = LogEntry.of(DefaultCommand.setCommand("conflict", "2"), 5L);
+        logService.appendLog(3, Lists.newArrayList(conflictEntry));
+        Assert.assertEquals(2, logService.getLastPersistedLogIndex());
+        Assert.assertEquals(3, logService.flush());
+    }
+
+    @Test
+    public void boundedGetTest() {
+        logService.appendLog(this.logEntries);
+        long lastLogIndex = logService.getLastLogIndex();
+        Assert.assertEquals(lastLogIndex, logService.getEncoded(1, lastLogIndex, Long.MAX_VALUE).size());
+        //至少返回一条
+        List<byte[]> entries = logService.getEncoded(1, lastLogIndex, 1);
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals(logService.get(1), KryoUtils.deserializeLogEntry(entries.get(0)));
+        List<LogEntry> boundedEntries = logService.getEncoded(2, 4, Long.MAX_VALUE).stream().map(KryoUtils::deserializeLogEntry).collect(Collectors.toList());
+        Assert.assertEquals(logService.get(2, 4), boundedEntries);
+        //超过maxBytes之后不再继续取
+        long firstBytes = entries.get(0).length;
+        Assert.assertEquals(2, logService.getEncoded(1, lastLogIndex, firstBytes + 1).size());
+    }
+
+    @Test
+    public void getEncodedTest() {
+        logService.appendLog(this.logEntries);
+        long lastLogIndex = logService.getLastLogIndex();
+        List<byte[]> encodedEntries = logService.getEncoded(1, lastLogIndex, Long.MAX_VALUE);
+        //多次取到的是存储中的同一批byte[]
+        List<byte[]> sharedEntries = logService.getEncoded(1, lastLogIndex, Long.MAX_VALUE);
+        for (int i = 0; i < encodedEntries.size(); i++) {
+            Assert.assertSame(encodedEntries.get(i), sharedEntries.get(i));
+        }
+        ReplicatedLogRequest replicatedLogRequest = new ReplicatedLogRequest();
+        replicatedLogRequest.setEncodedEntries(encodedEntries);
+        Assert.assertEquals(this.logEntries.size(), replicatedLogRequest.getEntryCount());
+        Assert.assertEquals(this.logEntries, replicatedLogRequest.getEntries());
+    }
+
+    @Test
+    public void termIndexTest() {
+        //index:  0 1 2 3 4 5 6
+        //term:   0 1 1 1 2 2 4
+        List<LogEntry> entries = Lists.newArrayList();
+        long[] terms = {1, 1, 1, 2, 2, 4};
+        for (int i = 0; i < terms.length; i++) {
+            entries.add(LogEntry.of(DefaultCommand.setCommand("key" + i, String.valueOf(i)), terms[i]));
+        }
+        logService.appendLog(entries);
+        Assert.assertEquals(1, logService.getFirstIndexOfTerm(3));
+        Assert.assertEquals(4, logService.getFirstIndexOfTerm(5));
+        Assert.assertEquals(6, logService.getFirstIndexOfTerm(6));
+
+        Assert.assertEquals(5, logService.getLastIndexOfTerm(2, 6));
+        Assert.assertEquals(4, logService.getLastIndexOfTerm(2, 4));
+        Assert.assertEquals(3, logService.getLastIndexOfTerm(1, 100));
+        Assert.assertEquals(-1, logService.getLastIndexOfTerm(3, 6));
+        Assert.assertEquals(-1, logService.getLastIndexOfTerm(5, 6));
+    }
+
+    @Test
+    public void waitAppliedTest() throws Exception {
+        logService.appendLog(this.logEntries);
+        CompletableFuture<Void> future = logService.waitApplied(3);
+        Assert.assertTrue(logService.waitApplied(0).isDone());
+        Assert.assertFalse(future.isDone());
+        logService.commit(3);
+        future.get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(logService.getLastAppliedLogIndex() >= 3);
+        Assert.assertEquals("2", new String(stateMachine.getValue("zhuyichen2")));
+
+        CompletableFuture<Void> notApplied = logService.waitApplied(4);
+        logService.close();
+        Assert.assertTrue(notApplied.isCompletedExceptionally());
+    }
+
+    @Test
+    public void applyFailBackoffTest() throws Exception {
+        logService.close();
+        AtomicInteger applyTimes = new AtomicInteger();
+        this.stateMachine = new DefaultStateMachine() {
+            @Override
+            public void applyBatch(List<LogEntry> logEntries, long firstIndex) {
+                applyTimes.incrementAndGet();
+                throw new IllegalArgumentException("bad command");
+            }
+        };
+        this.logService = new LogServiceImpl(stateMachine, StorageType.MEMORY, new EventRecorder(log));
+        logService.appendLog(this.logEntries);
+        CompletableFuture<Void> future = logService.waitApplied(3);
+        logService.commit(3);
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            Assert.fail("apply should fail");
+        } catch (ExecutionException e) {
+            //expected
+        }
+        //失败之后的等待直接失败，不会一直挂着
+        Assert.assertTrue(logService.waitApplied(3).isCompletedExceptionally());
+        //失败之后退避重试，不会空转
+        Thread.sleep(300);
+        Assert.assertTrue(applyTimes.get() < 10);
+    }
+
+    @Test
+    public void applyFailNotReapplyBatchCommandTest() throws Exception {
+        logService.close();
+        AtomicInteger failTimes = new AtomicInteger();
+        this.stateMachine = new DefaultStateMachine() {
+            @Override
+            public synchronized void applyBatch(List<LogEntry> logEntries, long firstIndex) {
+                boolean boom = logEntries.stream()
+                        .anyMatch(logEntry -> logEntry.getCommand() instanceof DefaultCommand && "boom".equals(((DefaultCommand) logEntry.getCommand()).getKey()));
+                //先apply再失败，模拟一批日志apply了一半
+                super.applyBatch(logEntries, firstIndex);
+                if (boom && failTimes.getAndIncrement() == 0) {
+                    throw new IllegalArgumentException("bad command");
+                }
+            }
+        };
+        this.logService = new LogServiceImpl(stateMachine, StorageType.MEMORY, new EventRecorder(log));
+        logService.appendLog(LogEntry.of(DefaultCommand.setCommand("a", "0"), 1L));
+        logService.commit(1);
+        logService.waitApplied(1).get(1, TimeUnit.SECONDS);
+
+        //a存在，guard不通过，c不会被设置；重试的时候如果再apply一遍，a已经被删了，guard就会通过
+        BatchCommand batchCommand = BatchCommand.create(Lists.newArrayList(DefaultCommand.setCommand("c", "1")), Lists.newArrayList(BatchCommand.Guard.notExist("a")));
+        logService.appendLog(LogEntry.of(batchCommand, 1L));
+        logService.appendLog(LogEntry.of(DefaultCommand.removeCommand("a"), 1L));
+        logService.appendLog(LogEntry.of(DefaultCommand.setCommand("boom", "1"), 1L));
+        logService.commit(4);
+        long start = System.currentTimeMillis();
+        while (logService.getLastAppliedLogIndex() < 4 && System.currentTimeMillis() - start < 2000) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(4, logService.getLastAppliedLogIndex());
+        Assert.assertTrue(failTimes.get() > 0);
+        Assert.assertFalse(stateMachine.containsKey("a"));
+        Assert.assertFalse(stateMachine.containsKey("c"));
+    }
+
     @Test
     public void hasInSnapshotTest() {
         logService.appendLog(this.logEntries);
@@ -81,5 +255,20 @@ public class LogServiceTest {
         }
     }
 
+    @Test
+    public void commitApplyAsyncTest() throws InterruptedException {
+        logService.appendLog(this.logEntries);
+        logService.commit(this.logEntries.size());
+        Assert.assertEquals(this.logEntries.size(), logService.getLastCommitLogIndex());
+        long start = System.currentTimeMillis();
+        while (logService.getLastAppliedLogIndex() < logService.getLastCommitLogIndex() && System.currentTimeMillis() - start < 1000) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(logService.getLastCommitLogIndex(), logService.getLastAppliedLogIndex());
+        for (LogEntry logEntry : this.logEntries) {
+            DefaultCommand command = (DefaultCommand) logEntry.getCommand();
+            Assert.assertEquals(command.getValue(), new String(stateMachine.getValue(command.getKey())));
+        }
+    }
 
 }
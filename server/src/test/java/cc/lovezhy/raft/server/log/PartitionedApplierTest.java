@@ -0,0 +1,45 @@
+package cc.lovezhy.raft.server.log;
+
+import cc.lovezhy.raft.server.DefaultStateMachine;
+import cc.lovezhy.raft.server.OrderedStateMachine;
+import cc.lovezhy.raft.server.PartitionedStateMachine;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class PartitionedApplierTest {
+
+    @Test
+    public void sameResultAsSerialApplyTest() {
+        List<LogEntry> logEntries = Lists.newArrayList();
+        Random random = new Random(0);
+        for (int i = 0; i < 5000; i++) {
+            String key = "key" + random.nextInt(200);
+            if (random.nextInt(10) == 0) {
+                logEntries.add(LogEntry.of(DefaultCommand.removeCommand(key), 1L));
+            } else {
+                logEntries.add(LogEntry.of(DefaultCommand.setCommand(key, String.valueOf(i)), 1L));
+            }
+            if (i % 1000 == 999) {
+                logEntries.add(LogEntry.of(ClusterConfCommand.create(Collections.emptyList()), 1L));
+            }
+        }
+        assertSameResult(new DefaultStateMachine(), new DefaultStateMachine(), logEntries);
+        assertSameResult(new OrderedStateMachine(), new OrderedStateMachine(), logEntries);
+    }
+
+    private void assertSameResult(PartitionedStateMachine serial, PartitionedStateMachine partitioned, List<LogEntry> logEntries) {
+        PartitionedApplier partitionedApplier = new PartitionedApplier(partitioned, 4);
+        try {
+            serial.applyBatch(logEntries, 1);
+            partitionedApplier.apply(logEntries, 1);
+            Assert.assertEquals(serial.fetchAllEntry(), partitioned.fetchAllEntry());
+        } finally {
+            partitionedApplier.close();
+        }
+    }
+}
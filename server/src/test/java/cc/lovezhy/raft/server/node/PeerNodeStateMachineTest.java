@@ -0,0 +1,135 @@
+package cc.lovezhy.raft.server.node;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PeerNodeStateMachineTest {
+
+    private PeerNodeStateMachine peerNodeStateMachine;
+
+    @Before
+    public void setUp() {
+        peerNodeStateMachine = PeerNodeStateMachine.create(1L);
+    }
+
+    @After
+    public void tearDown() {
+        peerNodeStateMachine.close();
+    }
+
+    @Test
+    public void pipelineTest() {
+        List<PeerNodeStateMachine.Inflight> inflights = Lists.newArrayList();
+        for (int i = 0; i < PeerNodeStateMachine.MAX_INFLIGHT_APPEND_REQUEST; i++) {
+            Assert.assertTrue(peerNodeStateMachine.canSendAppendLog());
+            inflights.add(peerNodeStateMachine.onAppendLogSent(2 * i + 3, 2, 2));
+        }
+        Assert.assertFalse(peerNodeStateMachine.canSendAppendLog());
+        Assert.assertEquals(9L, peerNodeStateMachine.getNextIndex().longValue());
+
+        peerNodeStateMachine.onAppendLogSuccess(inflights.get(0), 2);
+        Assert.assertEquals(2L, peerNodeStateMachine.getMatchIndex().longValue());
+        Assert.assertTrue(peerNodeStateMachine.canSendAppendLog());
+        peerNodeStateMachine.onAppendLogSuccess(inflights.get(1), 6);
+        Assert.assertEquals(6L, peerNodeStateMachine.getMatchIndex().longValue());
+    }
+
+    @Test
+    public void rewindOnceTest() {
+        PeerNodeStateMachine.Inflight first = peerNodeStateMachine.onAppendLogSent(5, 4, 4);
+        PeerNodeStateMachine.Inflight second = peerNodeStateMachine.onAppendLogSent(8, 3, 3);
+
+        Assert.assertTrue(peerNodeStateMachine.onAppendLogFail(first, 3));
+        Assert.assertEquals(PeerNodeStatus.PROBE, peerNodeStateMachine.getNodeStatus());
+        Assert.assertEquals(3L, peerNodeStateMachine.getNextIndex().longValue());
+        //回退之前发出去的请求失败不会再次回退
+        Assert.assertFalse(peerNodeStateMachine.onAppendLogFail(second, 2));
+        Assert.assertEquals(3L, peerNodeStateMachine.getNextIndex().longValue());
+
+        //PROBE状态下一次只发一个
+        Assert.assertTrue(peerNodeStateMachine.canSendAppendLog());
+        PeerNodeStateMachine.Inflight probe = peerNodeStateMachine.onAppendLogSent(8, 5, 5);
+        Assert.assertFalse(peerNodeStateMachine.canSendAppendLog());
+        peerNodeStateMachine.onAppendLogSuccess(probe, 7);
+        Assert.assertEquals(PeerNodeStatus.NORMAL, peerNodeStateMachine.getNodeStatus());
+        Assert.assertEquals(8L, peerNodeStateMachine.getNextIndex().longValue());
+    }
+
+    @Test
+    public void inflightWindowTest() {
+        //字节数到了上限，即使请求数没到也不能再发
+        PeerNodeStateMachine.Inflight big = peerNodeStateMachine.onAppendLogSent(2, 1, PeerNodeStateMachine.MAX_INFLIGHT_APPEND_BYTES);
+        Assert.assertFalse(peerNodeStateMachine.canSendAppendLog());
+        peerNodeStateMachine.onAppendLogSuccess(big, 1);
+        Assert.assertTrue(peerNodeStateMachine.canSendAppendLog());
+
+        //窗口剩下的部分限制下一个请求的大小
+        PeerNodeStateMachine.Inflight inflight = peerNodeStateMachine.onAppendLogSent(3, PeerNodeStateMachine.MAX_INFLIGHT_APPEND_ENTRIES - 10, 0);
+        Assert.assertTrue(peerNodeStateMachine.canSendAppendLog());
+        Assert.assertEquals(10, peerNodeStateMachine.getSendableEntries());
+        peerNodeStateMachine.onAppendLogSent(4, 10, 0);
+        Assert.assertFalse(peerNodeStateMachine.canSendAppendLog());
+        peerNodeStateMachine.onAppendLogSuccess(inflight, 2);
+        Assert.assertEquals(PeerNodeStateMachine.MAX_APPEND_ENTRIES, peerNodeStateMachine.getSendableEntries());
+    }
+
+    @Test
+    public void replicateCoalesceTest() throws Exception {
+        CountDownLatch blocker = new CountDownLatch(1);
+        AtomicInteger runTimes = new AtomicInteger();
+        //第一个任务开始执行之后卡住，后面的触发合并成一个
+        peerNodeStateMachine.append(() -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                //ignore
+            }
+        });
+        Assert.assertTrue(peerNodeStateMachine.replicate(runTimes::incrementAndGet));
+        for (int i = 0; i < 100; i++) {
+            Assert.assertFalse(peerNodeStateMachine.replicate(runTimes::incrementAndGet));
+        }
+        blocker.countDown();
+        Thread.sleep(100);
+        Assert.assertEquals(1, runTimes.get());
+        Assert.assertTrue(peerNodeStateMachine.replicate(runTimes::incrementAndGet));
+    }
+
+    @Test
+    public void heartbeatSuppressTest() throws Exception {
+        Assert.assertTrue(peerNodeStateMachine.needHeartbeat(40));
+        //刚发过AppendLog，不用心跳
+        peerNodeStateMachine.onAppendLogSent(2, 1, 1);
+        Assert.assertFalse(peerNodeStateMachine.needHeartbeat(40));
+        Thread.sleep(50);
+        Assert.assertTrue(peerNodeStateMachine.needHeartbeat(40));
+        peerNodeStateMachine.onHeartbeatSent();
+        Assert.assertFalse(peerNodeStateMachine.needHeartbeat(40));
+    }
+
+    @Test
+    public void adjustAppendBatchTest() {
+        long initBytes = peerNodeStateMachine.getAppendBatchBytes();
+        peerNodeStateMachine.adjustAppendBatch(1, false);
+        Assert.assertEquals(initBytes, peerNodeStateMachine.getAppendBatchBytes());
+        peerNodeStateMachine.adjustAppendBatch(1, true);
+        Assert.assertEquals(initBytes * 2, peerNodeStateMachine.getAppendBatchBytes());
+        peerNodeStateMachine.adjustAppendBatch(PeerNodeStateMachine.TARGET_APPEND_RTT_MILLS + 1, true);
+        Assert.assertEquals(initBytes, peerNodeStateMachine.getAppendBatchBytes());
+        for (int i = 0; i < 32; i++) {
+            peerNodeStateMachine.shrinkAppendBatch();
+        }
+        Assert.assertEquals(PeerNodeStateMachine.MIN_APPEND_BATCH_BYTES, peerNodeStateMachine.getAppendBatchBytes());
+        for (int i = 0; i < 32; i++) {
+            peerNodeStateMachine.adjustAppendBatch(1, true);
+        }
+        Assert.assertEquals(PeerNodeStateMachine.MAX_APPEND_BATCH_BYTES, peerNodeStateMachine.getAppendBatchBytes());
+    }
+}
@@ -0,0 +1,68 @@
+package cc.lovezhy.raft.server.node;
+
+import cc.lovezhy.raft.server.log.DefaultCommand;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+public class ProposalQueueTest {
+
+    private List<Integer> batchSizes;
+
+    private ProposalQueue proposalQueue;
+
+    @Before
+    public void setUp() {
+        batchSizes = new CopyOnWriteArrayList<>();
+        proposalQueue = new ProposalQueue(proposals -> {
+            batchSizes.add(proposals.size());
+            //模拟一轮复制的耗时，期间进来的请求攒成下一批
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                //ignore
+            }
+            proposals.forEach(proposal -> {
+                long index = Long.parseLong(((DefaultCommand) proposal.getCommand()).getKey());
+                proposal.getFuture().complete(ApplyResult.success(index, 1));
+            });
+        });
+    }
+
+    @After
+    public void tearDown() {
+        proposalQueue.close();
+    }
+
+    @Test
+    public void groupCommitTest() throws Exception {
+        int count = 2000;
+        List<CompletableFuture<ApplyResult>> futures = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            futures.add(proposalQueue.submit(DefaultCommand.setCommand(String.valueOf(i), String.valueOf(i))));
+        }
+        for (int i = 0; i < count; i++) {
+            ApplyResult applyResult = futures.get(i).get(10, TimeUnit.SECONDS);
+            Assert.assertTrue(applyResult.isSuccess());
+            Assert.assertEquals(i, applyResult.getIndex());
+        }
+        Assert.assertEquals(count, batchSizes.stream().mapToInt(Integer::intValue).sum());
+        Assert.assertTrue(batchSizes.size() < count);
+        batchSizes.forEach(size -> Assert.assertTrue(size <= ProposalQueue.MAX_BATCH_SIZE));
+    }
+
+    @Test
+    public void closeTest() throws Exception {
+        proposalQueue.close();
+        ApplyResult applyResult = proposalQueue.submit(DefaultCommand.setCommand("key", "value")).get(1, TimeUnit.SECONDS);
+        Assert.assertFalse(applyResult.isSuccess());
+        Assert.assertFalse(applyResult.toJson().getBoolean("success"));
+    }
+}
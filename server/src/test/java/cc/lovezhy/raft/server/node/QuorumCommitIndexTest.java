@@ -0,0 +1,98 @@
+package cc.lovezhy.raft.server.node;
+
+import cc.lovezhy.raft.rpc.EndPoint;
+import cc.lovezhy.raft.server.ClusterConfig;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.function.LongUnaryOperator;
+
+public class QuorumCommitIndexTest {
+
+    private static final NodeId LEADER = NodeId.create(1);
+    private static final NodeId PEER2 = NodeId.create(2);
+    private static final NodeId PEER3 = NodeId.create(3);
+    private static final NodeId PEER4 = NodeId.create(4);
+    private static final NodeId PEER5 = NodeId.create(5);
+
+    private static final long LEADER_TERM = 2L;
+
+    /**
+     * 所有日志都是当前term
+     */
+    private static final LongUnaryOperator CURRENT_TERM = index -> LEADER_TERM;
+
+    @Test
+    public void quorumMatchIndexTest() {
+        ClusterConfig clusterConfig = voters(LEADER, PEER2, PEER3, PEER4, PEER5);
+        Map<NodeId, Long> peerMatchIndexes = Maps.newHashMap();
+        peerMatchIndexes.put(PEER2, 8L);
+        peerMatchIndexes.put(PEER3, 5L);
+        peerMatchIndexes.put(PEER4, 3L);
+        peerMatchIndexes.put(PEER5, 1L);
+        //10, 8, 5, 3, 1，第3大的是5
+        Assert.assertEquals(5L, QuorumCommitIndex.compute(clusterConfig, 10L, peerMatchIndexes, 0L, CURRENT_TERM, LEADER_TERM));
+        //不会往回退
+        Assert.assertEquals(6L, QuorumCommitIndex.compute(clusterConfig, 10L, peerMatchIndexes, 6L, CURRENT_TERM, LEADER_TERM));
+    }
+
+    @Test
+    public void previousTermNotCommitTest() {
+        ClusterConfig clusterConfig = voters(LEADER, PEER2, PEER3);
+        //1-5是之前term的日志，6开始是当前term
+        LongUnaryOperator termOf = index -> index <= 5 ? LEADER_TERM - 1 : LEADER_TERM;
+        Map<NodeId, Long> peerMatchIndexes = Maps.newHashMap();
+        peerMatchIndexes.put(PEER2, 5L);
+        peerMatchIndexes.put(PEER3, 0L);
+        Assert.assertEquals(0L, QuorumCommitIndex.compute(clusterConfig, 6L, peerMatchIndexes, 0L, termOf, LEADER_TERM));
+
+        //当前term的日志复制到多数派之后，之前term的日志跟着一起commit
+        peerMatchIndexes.put(PEER2, 6L);
+        Assert.assertEquals(6L, QuorumCommitIndex.compute(clusterConfig, 6L, peerMatchIndexes, 0L, termOf, LEADER_TERM));
+    }
+
+    @Test
+    public void learnerExcludedTest() {
+        ClusterConfig clusterConfig = ClusterConfig.create(Lists.newArrayList(
+                voter(LEADER), voter(PEER2), voter(PEER3), learner(PEER4), learner(PEER5)));
+        Map<NodeId, Long> peerMatchIndexes = Maps.newHashMap();
+        peerMatchIndexes.put(PEER2, 0L);
+        peerMatchIndexes.put(PEER3, 0L);
+        peerMatchIndexes.put(PEER4, 10L);
+        peerMatchIndexes.put(PEER5, 10L);
+        //Learner都复制到了也不算多数派
+        Assert.assertEquals(0L, QuorumCommitIndex.compute(clusterConfig, 10L, peerMatchIndexes, 0L, CURRENT_TERM, LEADER_TERM));
+
+        peerMatchIndexes.put(PEER3, 7L);
+        Assert.assertEquals(7L, QuorumCommitIndex.compute(clusterConfig, 10L, peerMatchIndexes, 0L, CURRENT_TERM, LEADER_TERM));
+    }
+
+    @Test
+    public void leaderUnflushedNotCountTest() {
+        ClusterConfig clusterConfig = voters(LEADER, PEER2, PEER3);
+        Map<NodeId, Long> peerMatchIndexes = Maps.newHashMap();
+        peerMatchIndexes.put(PEER2, 10L);
+        peerMatchIndexes.put(PEER3, 0L);
+        //Leader只刷盘到4，5-10还没刷盘，只能commit到4
+        Assert.assertEquals(4L, QuorumCommitIndex.compute(clusterConfig, 4L, peerMatchIndexes, 0L, CURRENT_TERM, LEADER_TERM));
+
+        //Follower都复制到了，Leader没刷盘也不影响
+        peerMatchIndexes.put(PEER3, 10L);
+        Assert.assertEquals(10L, QuorumCommitIndex.compute(clusterConfig, 4L, peerMatchIndexes, 0L, CURRENT_TERM, LEADER_TERM));
+    }
+
+    private static ClusterConfig voters(NodeId... nodeIds) {
+        return ClusterConfig.create(Lists.transform(Lists.newArrayList(nodeIds), QuorumCommitIndexTest::voter));
+    }
+
+    private static NodeConfig voter(NodeId nodeId) {
+        return NodeConfig.create(nodeId, EndPoint.create("localhost", 5000 + nodeId.getPeerId()));
+    }
+
+    private static NodeConfig learner(NodeId nodeId) {
+        return NodeConfig.createLearner(nodeId, EndPoint.create("localhost", 5000 + nodeId.getPeerId()));
+    }
+}
@@ -0,0 +1,38 @@
+package cc.lovezhy.raft.server.node;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReadIndexRoundTest {
+
+    @Test
+    public void quorumTest() {
+        ReadIndexRound readIndexRound = new ReadIndexRound(3, 5);
+        readIndexRound.onFail();
+        readIndexRound.onAck();
+        Assert.assertFalse(readIndexRound.getFuture().isDone());
+        readIndexRound.onAck();
+        Assert.assertTrue(readIndexRound.getFuture().join());
+        //确认之后的失败不影响结果
+        readIndexRound.onFail();
+        readIndexRound.onFail();
+        Assert.assertTrue(readIndexRound.getFuture().join());
+    }
+
+    @Test
+    public void failTest() {
+        ReadIndexRound readIndexRound = new ReadIndexRound(3, 5);
+        readIndexRound.onFail();
+        readIndexRound.onAck();
+        Assert.assertFalse(readIndexRound.getFuture().isDone());
+        readIndexRound.onFail();
+        readIndexRound.onFail();
+        Assert.assertFalse(readIndexRound.getFuture().join());
+    }
+
+    @Test
+    public void singleVoterTest() {
+        ReadIndexRound readIndexRound = new ReadIndexRound(1, 1);
+        Assert.assertTrue(readIndexRound.getFuture().join());
+    }
+}
@@ -0,0 +1,74 @@
+package cc.lovezhy.raft.server.node;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ReplicationTaskQueueTest {
+
+    @Test
+    public void serialOrderTest() throws Exception {
+        //队列数远多于线程数，每个队列内部仍然是按顺序串行执行的
+        int queueCount = ReplicationTaskQueue.REPLICATION_THREADS * 8;
+        int taskCount = 200;
+        CountDownLatch countDownLatch = new CountDownLatch(queueCount * taskCount);
+        AtomicBoolean concurrent = new AtomicBoolean(false);
+        List<ReplicationTaskQueue> taskQueues = Lists.newArrayList();
+        List<List<Integer>> results = Lists.newArrayList();
+        List<AtomicBoolean> runnings = Lists.newArrayList();
+        for (int i = 0; i < queueCount; i++) {
+            taskQueues.add(new ReplicationTaskQueue());
+            results.add(new CopyOnWriteArrayList<>());
+            runnings.add(new AtomicBoolean(false));
+        }
+        for (int j = 0; j < taskCount; j++) {
+            for (int i = 0; i < queueCount; i++) {
+                List<Integer> result = results.get(i);
+                AtomicBoolean running = runnings.get(i);
+                int value = j;
+                taskQueues.get(i).offer(() -> {
+                    if (!running.compareAndSet(false, true)) {
+                        concurrent.set(true);
+                    }
+                    result.add(value);
+                    running.set(false);
+                    countDownLatch.countDown();
+                });
+            }
+        }
+        Assert.assertTrue(countDownLatch.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(concurrent.get());
+        for (List<Integer> result : results) {
+            Assert.assertEquals(taskCount, result.size());
+            for (int j = 0; j < taskCount; j++) {
+                Assert.assertEquals(j, result.get(j).intValue());
+            }
+        }
+    }
+
+    @Test
+    public void closeTest() throws Exception {
+        ReplicationTaskQueue taskQueue = new ReplicationTaskQueue();
+        CountDownLatch blocker = new CountDownLatch(1);
+        AtomicBoolean executed = new AtomicBoolean(false);
+        taskQueue.offer(() -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                //ignore
+            }
+        });
+        taskQueue.offer(() -> executed.set(true));
+        taskQueue.close();
+        blocker.countDown();
+        Thread.sleep(100);
+        Assert.assertFalse(executed.get());
+        Assert.assertTrue(taskQueue.isEmpty());
+    }
+}
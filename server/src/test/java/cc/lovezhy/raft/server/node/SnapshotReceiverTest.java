@@ -0,0 +1,66 @@
+package cc.lovezhy.raft.server.node;
+
+import cc.lovezhy.raft.server.log.Snapshot;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+public class SnapshotReceiverTest {
+
+    private final SnapshotReceiver snapshotReceiver = new SnapshotReceiver();
+
+    private final AtomicReference<byte[]> installedData = new AtomicReference<>();
+
+    private final AtomicInteger installTimes = new AtomicInteger();
+
+    private final Consumer<InputStream> install = inputStream -> {
+        try {
+            installedData.set(ByteStreams.toByteArray(inputStream));
+            installTimes.incrementAndGet();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        snapshotReceiver.close();
+    }
+
+    @Test
+    public void receiveTest() throws Exception {
+        Snapshot snapshot = snapshot(10, 2);
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        Assert.assertTrue(snapshotReceiver.receive(snapshot, 0, Arrays.copyOfRange(data, 0, 40), false, install));
+        //重发的块直接成功
+        Assert.assertTrue(snapshotReceiver.receive(snapshot, 0, Arrays.copyOfRange(data, 0, 40), false, install));
+        //中间漏了一块，Leader要从头重发
+        Assert.assertFalse(snapshotReceiver.receive(snapshot, 80, Arrays.copyOfRange(data, 80, 100), true, install));
+        Assert.assertTrue(snapshotReceiver.receive(snapshot, 40, Arrays.copyOfRange(data, 40, 80), false, install));
+        Assert.assertTrue(snapshotReceiver.receive(snapshot, 80, Arrays.copyOfRange(data, 80, 100), true, install));
+        Assert.assertArrayEquals(data, installedData.get());
+        //最后一块的响应超时重发，不会再装一次
+        Assert.assertTrue(snapshotReceiver.receive(snapshot, 80, Arrays.copyOfRange(data, 80, 100), true, install));
+        Assert.assertEquals(1, installTimes.get());
+
+        //不同的snapshot不能接在后面
+        Assert.assertFalse(snapshotReceiver.receive(snapshot(20, 2), 40, Arrays.copyOfRange(data, 40, 80), false, install));
+    }
+
+    private static Snapshot snapshot(long lastLogIndex, long lastLogTerm) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.setLastLogIndex(lastLogIndex);
+        snapshot.setLastLogTerm(lastLogTerm);
+        return snapshot;
+    }
+}
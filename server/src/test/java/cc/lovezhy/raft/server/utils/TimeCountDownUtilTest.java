@@ -0,0 +1,39 @@
+package cc.lovezhy.raft.server.utils;
+
+import io.netty.util.Timeout;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TimeCountDownUtilTest {
+
+    @Test
+    public void newTimeoutTest() throws Exception {
+        CountDownLatch countDownLatch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        TimeCountDownUtil.newTimeout(countDownLatch::countDown, 50, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(countDownLatch.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50 - TimeCountDownUtil.TICK_DURATION_MILLS);
+    }
+
+    @Test
+    public void cancelTest() throws Exception {
+        AtomicBoolean executed = new AtomicBoolean(false);
+        Timeout timeout = TimeCountDownUtil.newTimeout(() -> executed.set(true), 50, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(timeout.cancel());
+        Thread.sleep(150);
+        Assert.assertFalse(executed.get());
+    }
+
+    @Test
+    public void addSchedulerTaskTest() throws Exception {
+        AtomicBoolean executed = new AtomicBoolean(false);
+        CountDownLatch countDownLatch = new CountDownLatch(1);
+        TimeCountDownUtil.addSchedulerTaskWithListener(20, TimeUnit.MILLISECONDS, () -> executed.set(true), () -> false, countDownLatch::countDown);
+        Assert.assertTrue(countDownLatch.await(1, TimeUnit.SECONDS));
+        Assert.assertFalse(executed.get());
+    }
+}